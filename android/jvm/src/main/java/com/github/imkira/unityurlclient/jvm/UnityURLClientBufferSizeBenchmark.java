@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.github.imkira.unityurlclient.jvm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.github.imkira.unityurlclient.UnityURLClientBinding;
+
+// Adaptive transfer buffers against the fixed 64KB buffer they replaced, at
+// both extremes: many tiny responses and a few bulk ones. Throughput is
+// reported per batch of concurrent downloads, bufferBytes the sum of the
+// largest buffer each connection was seen using (divide by connections), and
+// -prof gc the allocation per batch.
+//
+//   java -jar target/benchmarks.jar UnityURLClientBufferSizeBenchmark -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnityURLClientBufferSizeBenchmark {
+    private static final int FIXED_BUFFER_SIZE = 65536;
+
+    @Param({"fixed", "adaptive"})
+    public String bufferPolicy;
+
+    @Param({"1024", "16777216"})
+    public long responseSize;
+
+    @Param({"8"})
+    public int concurrency;
+
+    private UnityURLClientLocalServer _server;
+    private UnityURLClientBinding _binding;
+    private UnityURLClientFrameLoop _frameLoop;
+    private String _url;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class BufferCounters {
+        public long bufferBytes;
+        public long connections;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bufferBytes = 0;
+            connections = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        _server = new UnityURLClientLocalServer();
+        _server.start();
+        _binding = new UnityURLClientBinding();
+        _binding.setMaxConcurrentConnections(concurrency);
+        _frameLoop = new UnityURLClientFrameLoop(_binding, 65536, 0);
+        _url = _server.getURL("/bytes?size=" + responseSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _server.stop();
+    }
+
+    @Benchmark
+    public long download(BufferCounters counters) throws Exception {
+        int[] connectionIDs = new int[concurrency];
+        int[] bufferSizes = new int[concurrency];
+        UnityURLClientFrameLoop.Result[] results = new UnityURLClientFrameLoop.Result[concurrency];
+        int remaining = concurrency;
+
+        for (int i = 0; i < concurrency; ++i) {
+            results[i] = new UnityURLClientFrameLoop.Result();
+            connectionIDs[i] = _binding.createHTTPConnection("GET", _url, 0, 30.0f);
+
+            if (bufferPolicy.equals("fixed")) {
+                _binding.setBufferSizeLimits(connectionIDs[i], FIXED_BUFFER_SIZE, FIXED_BUFFER_SIZE);
+            }
+
+            _binding.sendRequest(connectionIDs[i]);
+        }
+
+        while (remaining > 0) {
+            for (int i = 0; i < concurrency; ++i) {
+                if (connectionIDs[i] == 0) {
+                    continue;
+                }
+
+                bufferSizes[i] = Math.max(bufferSizes[i], _binding.getBufferSize(connectionIDs[i]));
+
+                if (!_frameLoop.poll(connectionIDs[i], results[i])) {
+                    connectionIDs[i] = 0;
+                    --remaining;
+                }
+            }
+
+            Thread.yield();
+        }
+
+        long contentLength = 0;
+
+        for (int i = 0; i < concurrency; ++i) {
+            if (!results[i].isSuccess() || results[i].contentLength != responseSize) {
+                throw new IllegalStateException("download failed: error " + results[i].errorCode);
+            }
+
+            contentLength += results[i].contentLength;
+            counters.bufferBytes += bufferSizes[i];
+            ++counters.connections;
+        }
+
+        return contentLength;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.github.imkira.unityurlclient.jvm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.github.imkira.unityurlclient.UnityURLClientBinding;
+
+// Whole memory-mode downloads from a local server. The connection threads
+// run the processResponse read loop as producers while the benchmark thread
+// plays the Unity main thread, moving pending content out with
+// movePendingResponseContent (and so copyResponseContent) as it arrives.
+// SampleTime reports the completion latency percentiles, and -prof gc the
+// allocation rate.
+//
+//   java -jar target/benchmarks.jar UnityURLClientDrainBenchmark -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnityURLClientDrainBenchmark {
+    @Param({"1024", "1048576", "16777216"})
+    public long responseSize;
+
+    @Param({"1", "8"})
+    public int concurrency;
+
+    @Param({"65536"})
+    public int dstSize;
+
+    private UnityURLClientLocalServer _server;
+    private UnityURLClientBinding _binding;
+    private UnityURLClientFrameLoop _frameLoop;
+    private String _url;
+
+    @Setup
+    public void setUp() throws Exception {
+        _server = new UnityURLClientLocalServer();
+        _server.start();
+        _binding = new UnityURLClientBinding();
+        _binding.setMaxConcurrentConnections(concurrency);
+        _frameLoop = new UnityURLClientFrameLoop(_binding, dstSize, 0);
+        _url = _server.getURL("/bytes?size=" + responseSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        _server.stop();
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        int[] connectionIDs = new int[concurrency];
+        UnityURLClientFrameLoop.Result[] results = new UnityURLClientFrameLoop.Result[concurrency];
+
+        for (int i = 0; i < concurrency; ++i) {
+            results[i] = new UnityURLClientFrameLoop.Result();
+            connectionIDs[i] = _binding.createHTTPConnection("GET", _url, 0, 30.0f);
+            _binding.sendRequest(connectionIDs[i]);
+        }
+
+        _frameLoop.run(connectionIDs, results);
+        long contentLength = 0;
+
+        for (int i = 0; i < concurrency; ++i) {
+            if (!results[i].isSuccess() || results[i].contentLength != responseSize) {
+                throw new IllegalStateException("download failed: error " + results[i].errorCode +
+                                                ", " + results[i].contentLength + " bytes");
+            }
+
+            contentLength += results[i].contentLength;
+        }
+
+        return contentLength;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.github.imkira.unityurlclient.jvm;
+
+import com.github.imkira.unityurlclient.UnityURLClientBinding;
+import com.github.imkira.unityurlclient.UnityURLClientConnection;
+
+// Drives connections through the binding the way the Unity plugin does from
+// the main thread: each frame it looks at every unfinished connection,
+// moves whatever response content is pending and destroys the connections
+// that are done.
+public class UnityURLClientFrameLoop {
+    public static final int FINISHED_STATE = UnityURLClientConnection.State.FinishedState.ordinal();
+
+    private final UnityURLClientBinding _binding;
+    private final byte[] _dst;
+    private final long _frameInterval;
+
+    // frameInterval is in milliseconds, where 0 only yields between frames.
+    public UnityURLClientFrameLoop(UnityURLClientBinding binding, int dstSize, long frameInterval) {
+        _binding = binding;
+        _dst = new byte[dstSize];
+        _frameInterval = frameInterval;
+    }
+
+    // Returns false once the connection has ended and is destroyed.
+    public boolean poll(int connectionID, Result result) {
+        if (_binding.checkAndResetResponseDirtyFlag(connectionID)) {
+            result.statusCode = _binding.getResponseStatusCode(connectionID);
+            result.contentLength = 0;
+        }
+
+        // the state is read before draining, so nothing that arrives in
+        // between is lost
+        int state = _binding.getState(connectionID);
+        long errorCode = _binding.getErrorCode(connectionID);
+        long copied;
+
+        while ((copied = _binding.movePendingResponseContent(connectionID, _dst, _dst.length)) > 0) {
+            result.contentLength += copied;
+        }
+
+        if (state < FINISHED_STATE && errorCode == 0) {
+            return true;
+        }
+
+        if (_binding.checkAndResetResponseDirtyFlag(connectionID)) {
+            // a retry started over after the state was read
+            result.statusCode = _binding.getResponseStatusCode(connectionID);
+            result.contentLength = 0;
+            return true;
+        }
+
+        result.state = state;
+        result.errorCode = errorCode;
+        result.endTime = System.nanoTime();
+        _binding.destroyConnection(connectionID);
+        return false;
+    }
+
+    // Polls every connection until all of them have ended.
+    public void run(int[] connectionIDs, Result[] results) throws InterruptedException {
+        boolean[] isDone = new boolean[connectionIDs.length];
+        int remaining = connectionIDs.length;
+
+        while (remaining > 0) {
+            for (int i = 0; i < connectionIDs.length; ++i) {
+                if (!isDone[i] && !poll(connectionIDs[i], results[i])) {
+                    isDone[i] = true;
+                    --remaining;
+                }
+            }
+
+            if (remaining == 0) {
+                break;
+            }
+
+            if (_frameInterval > 0) {
+                Thread.sleep(_frameInterval);
+            }
+            else {
+                Thread.yield();
+            }
+        }
+    }
+
+    public static class Result {
+        public long startTime = System.nanoTime();
+        public long endTime;
+        public long statusCode;
+        public long contentLength;
+        public int state;
+        public long errorCode;
+
+        public boolean isSuccess() {
+            return errorCode == 0 && state == FINISHED_STATE;
+        }
+    }
+}
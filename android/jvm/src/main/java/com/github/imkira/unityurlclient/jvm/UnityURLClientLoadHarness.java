@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.github.imkira.unityurlclient.jvm;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.imkira.unityurlclient.UnityURLClientBinding;
+
+// Reproduces production load against the local server. Keeps --concurrency
+// requests in flight until --requests have completed, each going through
+// create, send, per-frame poll and drain, and destroy like the Unity plugin
+// does, and reports throughput, completion latency percentiles and heap
+// churn.
+//
+//   java -cp target/benchmarks.jar com.github.imkira.unityurlclient.jvm.UnityURLClientLoadHarness \
+//       --requests 2000 --concurrency 64 --size 262144 --latency 50 --bandwidth 4000000 --drop 0.05 --retries 3
+//
+// --chunked and --gzip change the response encoding. The plain JVM does not
+// decompress gzip bodies, unlike Android, so their compressed size is
+// counted.
+public class UnityURLClientLoadHarness {
+    private static final long ALLOCATION_SAMPLE_INTERVAL = 100;
+
+    private int _requestCount = 1000;
+    private int _concurrency = 32;
+    private long _size = 64 * 1024;
+    private long _latency;
+    private long _bandwidth;
+    private boolean _isChunked;
+    private boolean _isGzip;
+    private double _dropRate;
+    private int _retries;
+    private long _frameInterval = 16;
+
+    public static void main(String[] args) throws Exception {
+        UnityURLClientLoadHarness harness = new UnityURLClientLoadHarness();
+        harness.parseArguments(args);
+        harness.run();
+
+        // the connection threads linger for reuse
+        System.exit(0);
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            String name = args[i];
+
+            if (name.equals("--chunked")) {
+                _isChunked = true;
+                continue;
+            }
+
+            if (name.equals("--gzip")) {
+                _isGzip = true;
+                continue;
+            }
+
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value for " + name);
+            }
+
+            String value = args[++i];
+
+            if (name.equals("--requests")) {
+                _requestCount = Integer.parseInt(value);
+            }
+            else if (name.equals("--concurrency")) {
+                _concurrency = Integer.parseInt(value);
+            }
+            else if (name.equals("--size")) {
+                _size = Long.parseLong(value);
+            }
+            else if (name.equals("--latency")) {
+                _latency = Long.parseLong(value);
+            }
+            else if (name.equals("--bandwidth")) {
+                _bandwidth = Long.parseLong(value);
+            }
+            else if (name.equals("--drop")) {
+                _dropRate = Double.parseDouble(value);
+            }
+            else if (name.equals("--retries")) {
+                _retries = Integer.parseInt(value);
+            }
+            else if (name.equals("--frame")) {
+                _frameInterval = Long.parseLong(value);
+            }
+            else {
+                throw new IllegalArgumentException("unknown option " + name);
+            }
+        }
+    }
+
+    private String getPath() {
+        StringBuilder path = new StringBuilder("/bytes?size=").append(_size);
+        path.append("&latency=").append(_latency);
+        path.append("&bandwidth=").append(_bandwidth);
+        path.append("&drop=").append(_dropRate);
+
+        if (_isChunked) {
+            path.append("&chunked=1");
+        }
+
+        if (_isGzip) {
+            path.append("&gzip=1");
+        }
+
+        return path.toString();
+    }
+
+    public void run() throws Exception {
+        UnityURLClientLocalServer server = new UnityURLClientLocalServer();
+        server.start();
+
+        try {
+            UnityURLClientBinding binding = new UnityURLClientBinding();
+            binding.setMaxConcurrentConnections(_concurrency);
+            String url = server.getURL(getPath());
+            UnityURLClientFrameLoop frameLoop = new UnityURLClientFrameLoop(binding, 64 * 1024, 0);
+            AllocationSampler allocationSampler = new AllocationSampler();
+            long gcCount = getGCCount();
+            long gcTime = getGCTime();
+
+            int[] connectionIDs = new int[_concurrency];
+            UnityURLClientFrameLoop.Result[] results = new UnityURLClientFrameLoop.Result[_concurrency];
+            long[] latencies = new long[_requestCount];
+            int started = 0;
+            int completed = 0;
+            int failed = 0;
+            long contentLength = 0;
+            Map<Long, Integer> errors = new HashMap<Long, Integer>();
+            long startTime = System.nanoTime();
+            allocationSampler.start();
+
+            while (completed < _requestCount) {
+                for (int i = 0; i < _concurrency; ++i) {
+                    if (connectionIDs[i] == 0 && started < _requestCount) {
+                        results[i] = new UnityURLClientFrameLoop.Result();
+                        connectionIDs[i] = binding.createHTTPConnection("GET", url, 0, 30.0f);
+
+                        if (_retries > 0) {
+                            binding.setRetryPolicy(connectionIDs[i], _retries + 1, 0.05f, 1.0f, 0.5f);
+                        }
+
+                        binding.sendRequest(connectionIDs[i]);
+                        ++started;
+                    }
+
+                    if (connectionIDs[i] == 0 || frameLoop.poll(connectionIDs[i], results[i])) {
+                        continue;
+                    }
+
+                    UnityURLClientFrameLoop.Result result = results[i];
+                    latencies[completed++] = result.endTime - result.startTime;
+                    connectionIDs[i] = 0;
+
+                    if (result.isSuccess()) {
+                        contentLength += result.contentLength;
+                    }
+                    else {
+                        ++failed;
+                        Integer count = errors.get(result.errorCode);
+                        errors.put(result.errorCode, (count != null) ? count + 1 : 1);
+                    }
+                }
+
+                if (_frameInterval > 0) {
+                    Thread.sleep(_frameInterval);
+                }
+            }
+
+            long elapsed = System.nanoTime() - startTime;
+            long allocatedBytes = allocationSampler.finish();
+            Arrays.sort(latencies);
+            double seconds = elapsed / 1e9;
+
+            System.out.println("requests:     " + _requestCount + " (" + failed + " failed " + errors + ")");
+            System.out.println("concurrency:  " + _concurrency);
+            System.out.println("elapsed:      " + format(seconds) + " s");
+            System.out.println("throughput:   " + format(_requestCount / seconds) + " req/s, " +
+                               format(contentLength / seconds / (1024 * 1024)) + " MiB/s");
+            System.out.println("latency (ms): p50 " + formatMillis(percentile(latencies, 0.50)) +
+                               "  p90 " + formatMillis(percentile(latencies, 0.90)) +
+                               "  p99 " + formatMillis(percentile(latencies, 0.99)) +
+                               "  max " + formatMillis(latencies[latencies.length - 1]));
+            System.out.println("heap churn:   " + format(allocatedBytes / (1024.0 * 1024.0)) + " MiB allocated, " +
+                               format(allocatedBytes / (double)_requestCount / 1024.0) + " KiB/request");
+            System.out.println("gc:           " + (getGCCount() - gcCount) + " collections, " +
+                               (getGCTime() - gcTime) + " ms");
+            System.out.println("retained:     " + binding.getRetainedBytes() + " bytes, " +
+                               binding.getConnectionCount() + " connections");
+        }
+        finally {
+            server.stop();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int)Math.ceil(p * sorted.length) - 1;
+        return sorted[(index < 0) ? 0 : index];
+    }
+
+    private static String format(double value) {
+        return String.format("%.2f", value);
+    }
+
+    private static String formatMillis(long nanos) {
+        return format(nanos / 1e6);
+    }
+
+    private static long getGCCount() {
+        long count = 0;
+
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, bean.getCollectionCount());
+        }
+
+        return count;
+    }
+
+    private static long getGCTime() {
+        long time = 0;
+
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+        }
+
+        return time;
+    }
+
+    // Sums the bytes allocated by every thread, including the server's and
+    // the connection threads that come and go, by sampling them regularly.
+    private static class AllocationSampler extends Thread {
+        private final com.sun.management.ThreadMXBean _threads =
+            (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        private final Map<Long, Long> _baseline = new HashMap<Long, Long>();
+        private final Map<Long, Long> _latest = new HashMap<Long, Long>();
+        private volatile boolean _isRunning = true;
+
+        AllocationSampler() {
+            setDaemon(true);
+            sample(_baseline);
+        }
+
+        private synchronized void sample(Map<Long, Long> samples) {
+            long[] ids = _threads.getAllThreadIds();
+            long[] bytes = _threads.getThreadAllocatedBytes(ids);
+
+            for (int i = 0; i < ids.length; ++i) {
+                if (bytes[i] >= 0) {
+                    samples.put(ids[i], bytes[i]);
+                }
+            }
+        }
+
+        public void run() {
+            while (_isRunning) {
+                sample(_latest);
+
+                try {
+                    Thread.sleep(ALLOCATION_SAMPLE_INTERVAL);
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() throws InterruptedException {
+            _isRunning = false;
+            interrupt();
+            join();
+            sample(_latest);
+            long total = 0;
+
+            List<Long> ids = new ArrayList<Long>(_latest.keySet());
+
+            for (int i = 0; i < ids.size(); ++i) {
+                Long baseline = _baseline.get(ids.get(i));
+                total += _latest.get(ids.get(i)) - ((baseline != null) ? baseline : 0);
+            }
+
+            return total;
+        }
+    }
+}
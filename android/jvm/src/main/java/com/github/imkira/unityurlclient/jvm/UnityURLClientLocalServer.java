@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.github.imkira.unityurlclient.jvm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// An HTTP/1.1 server on the loopback interface for benchmarks and tests.
+// GET /bytes?size=N answers with N bytes of a fixed pattern, sent with a
+// Content-Length unless chunked=1 is given. The response can be shaped with
+// further parameters:
+//
+//   latency=MS     wait before sending the headers
+//   bandwidth=BPS  limit the body to BPS bytes per second
+//   gzip=1         compress the body, which is then always chunked
+//   drop=P         close the connection halfway through the body with
+//                  probability P (0 to 1)
+public class UnityURLClientLocalServer {
+    private static final int WRITE_SIZE = 8 * 1024;
+    private static final int PATTERN_SIZE = 64 * 1024;
+    private static final byte[] PATTERN = new byte[PATTERN_SIZE];
+
+    static {
+        for (int i = 0; i < PATTERN_SIZE; ++i) {
+            PATTERN[i] = (byte)i;
+        }
+    }
+
+    private HttpServer _server;
+    private ExecutorService _executor;
+    private final Random _random = new Random();
+
+    public UnityURLClientLocalServer() throws IOException {
+        _server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 256);
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.createContext("/bytes", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                handleBytes(exchange);
+            }
+        });
+    }
+
+    public void createContext(String path, HttpHandler handler) {
+        _server.createContext(path, handler);
+    }
+
+    public void start() {
+        _server.start();
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    public String getURL(String path) {
+        return "http://127.0.0.1:" + _server.getAddress().getPort() + path;
+    }
+
+    public static Map<String, String> parseQuery(String query) {
+        Map<String, String> params = new HashMap<String, String>();
+
+        if (query == null) {
+            return params;
+        }
+
+        String[] pairs = query.split("&");
+
+        for (int i = 0; i < pairs.length; ++i) {
+            int equals = pairs[i].indexOf('=');
+
+            if (equals > 0) {
+                params.put(pairs[i].substring(0, equals), pairs[i].substring(equals + 1));
+            }
+        }
+
+        return params;
+    }
+
+    public static long getLong(Map<String, String> params, String name, long defaultValue) {
+        String value = params.get(name);
+        return (value != null) ? Long.parseLong(value) : defaultValue;
+    }
+
+    public static double getDouble(Map<String, String> params, String name, double defaultValue) {
+        String value = params.get(name);
+        return (value != null) ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private synchronized boolean shouldDrop(double probability) {
+        return probability > 0 && _random.nextDouble() < probability;
+    }
+
+    protected void handleBytes(HttpExchange exchange) throws IOException {
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        long size = getLong(params, "size", 0);
+        long latency = getLong(params, "latency", 0);
+        long bandwidth = getLong(params, "bandwidth", 0);
+        boolean isGzip = getLong(params, "gzip", 0) != 0;
+        boolean isChunked = isGzip || getLong(params, "chunked", 0) != 0;
+        long dropOffset = shouldDrop(getDouble(params, "drop", 0)) ? size / 2 : -1;
+
+        try {
+            sleep(latency);
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+
+            if (isGzip) {
+                exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+            }
+
+            exchange.sendResponseHeaders(200, isChunked ? 0 : ((size > 0) ? size : -1));
+            OutputStream outputStream = exchange.getResponseBody();
+
+            if (isGzip) {
+                outputStream = new GZIPOutputStream(outputStream);
+            }
+
+            long startTime = System.currentTimeMillis();
+            long written = 0;
+
+            while (written < size) {
+                if (dropOffset >= 0 && written + WRITE_SIZE > dropOffset) {
+                    // the server closes the socket of a handler that throws,
+                    // without finishing the body or its chunked encoding
+                    writePattern(outputStream, dropOffset - written);
+                    outputStream.flush();
+                    throw new IOException("connection dropped");
+                }
+
+                int length = (size - written < WRITE_SIZE) ? (int)(size - written) : WRITE_SIZE;
+                writePattern(outputStream, length);
+                written += length;
+
+                if (bandwidth > 0) {
+                    outputStream.flush();
+                    sleep(written * 1000 / bandwidth - (System.currentTimeMillis() - startTime));
+                }
+            }
+
+            outputStream.close();
+        }
+        finally {
+            if (dropOffset < 0) {
+                exchange.close();
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public static void writePattern(OutputStream outputStream, long size) throws IOException {
+        while (size > 0) {
+            int length = (size < PATTERN_SIZE) ? (int)size : PATTERN_SIZE;
+            outputStream.write(PATTERN, 0, length);
+            size -= length;
+        }
+    }
+}
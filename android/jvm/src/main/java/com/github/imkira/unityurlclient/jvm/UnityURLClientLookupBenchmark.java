@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.github.imkira.unityurlclient.jvm;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.github.imkira.unityurlclient.UnityURLClientBinding;
+
+// Calls Unity makes on every frame for every open connection, each of which
+// looks the connection up by ID. setTimeouts goes through changeState.
+//
+//   java -jar target/benchmarks.jar UnityURLClientLookupBenchmark -prof gc
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnityURLClientLookupBenchmark {
+    @Param({"16", "1024"})
+    public int connectionCount;
+
+    private UnityURLClientBinding _binding;
+    private int[] _connectionIDs;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int index;
+    }
+
+    @Setup
+    public void setUp() {
+        _binding = new UnityURLClientBinding();
+        _connectionIDs = new int[connectionCount];
+
+        for (int i = 0; i < connectionCount; ++i) {
+            _connectionIDs[i] = _binding.createHTTPConnection("GET", "http://127.0.0.1/" + i, 0, 0.0f);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (int i = 0; i < connectionCount; ++i) {
+            _binding.destroyConnection(_connectionIDs[i]);
+        }
+    }
+
+    private int nextConnectionID(Cursor cursor) {
+        int index = cursor.index;
+        cursor.index = (index + 1 < _connectionIDs.length) ? index + 1 : 0;
+        return _connectionIDs[index];
+    }
+
+    @Benchmark
+    public int connectionHavingID(Cursor cursor) {
+        return _binding.getState(nextConnectionID(cursor));
+    }
+
+    @Benchmark
+    public void changeState(Cursor cursor) {
+        _binding.setTimeouts(nextConnectionID(cursor), 10.0f, 10.0f, 0.0f);
+    }
+
+    // the main thread polling while worker threads look up their own
+    // connections
+    @Benchmark
+    @Threads(4)
+    public int connectionHavingIDContended(Cursor cursor) {
+        return _binding.getState(nextConnectionID(cursor));
+    }
+}
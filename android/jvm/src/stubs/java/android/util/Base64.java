@@ -0,0 +1,13 @@
+package android.util;
+
+// Stand-in for the Android class, so that the client runs on a plain JVM.
+public final class Base64 {
+    public static final int DEFAULT = 0;
+
+    private Base64() {
+    }
+
+    public static byte[] encode(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encode(input);
+    }
+}
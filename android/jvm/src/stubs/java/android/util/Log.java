@@ -0,0 +1,16 @@
+package android.util;
+
+// Stand-in for the Android class, so that the client runs on a plain JVM.
+public final class Log {
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+}
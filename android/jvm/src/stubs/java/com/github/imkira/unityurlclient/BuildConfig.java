@@ -0,0 +1,6 @@
+package com.github.imkira.unityurlclient;
+
+// Generated by the Android build; debug logging stays off on the JVM.
+public final class BuildConfig {
+    public static final boolean DEBUG = false;
+}
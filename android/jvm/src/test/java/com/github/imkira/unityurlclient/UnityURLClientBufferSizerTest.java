@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.github.imkira.unityurlclient;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class UnityURLClientBufferSizerTest {
+    private static final long MILLI = 1000000L;
+
+    // Starts a transfer at size and feeds it bytesPerSample in every 250ms
+    // sample, returning the size after the given number of samples.
+    private static int run(UnityURLClientBufferSizer sizer, int size, long bytesPerSample, int samples) {
+        long now = 1000 * MILLI;
+        sizer.getInitialSize(-1);
+        size = sizer.update(0, size, now);
+
+        for (int i = 0; i < samples; ++i) {
+            now += 250 * MILLI;
+            size = sizer.update((int)bytesPerSample, size, now);
+        }
+
+        return size;
+    }
+
+    @Test
+    public void initialSizeFollowsExpectedLength() {
+        UnityURLClientBufferSizer sizer = new UnityURLClientBufferSizer();
+
+        assertEquals(4096, sizer.getInitialSize(0));
+        assertEquals(4096, sizer.getInitialSize(100));
+        assertEquals(8192, sizer.getInitialSize(5000));
+        assertEquals(16384, sizer.getInitialSize(16000));
+        assertEquals(16384, sizer.getInitialSize(100 * 1024 * 1024));
+        assertEquals(16384, sizer.getInitialSize(-1));
+    }
+
+    @Test
+    public void initialSizeRespectsLimits() {
+        UnityURLClientBufferSizer sizer = new UnityURLClientBufferSizer();
+        sizer.setLimits(512, 8192);
+
+        assertEquals(512, sizer.getInitialSize(100));
+        assertEquals(8192, sizer.getInitialSize(-1));
+    }
+
+    @Test
+    public void growsByAtMostTwicePerSampleOnFastTransfers() {
+        UnityURLClientBufferSizer sizer = new UnityURLClientBufferSizer();
+        // 100MB/s wants 5MB per 50ms read
+        long bytesPerSample = 25 * 1024 * 1024;
+
+        assertEquals(32768, run(sizer, 16384, bytesPerSample, 1));
+        assertEquals(65536, run(sizer, 32768, bytesPerSample, 1));
+        assertEquals(UnityURLClientBufferSizer.DEFAULT_MAX_SIZE, run(sizer, 16384, bytesPerSample, 10));
+    }
+
+    @Test
+    public void shrinksOnSlowTransfers() {
+        UnityURLClientBufferSizer sizer = new UnityURLClientBufferSizer();
+        // 40KB/s wants 2KB per 50ms read
+        long bytesPerSample = 10 * 1024;
+
+        assertEquals(32768, run(sizer, 65536, bytesPerSample, 1));
+        assertEquals(UnityURLClientBufferSizer.DEFAULT_MIN_SIZE, run(sizer, 65536, bytesPerSample, 10));
+    }
+
+    @Test
+    public void settlesAtTheThroughputTarget() {
+        UnityURLClientBufferSizer sizer = new UnityURLClientBufferSizer();
+        // 1MB/s wants about 51KB per 50ms read, rounded up to 64KB
+        long bytesPerSample = 256 * 1024;
+
+        assertEquals(65536, run(sizer, 4096, bytesPerSample, 10));
+        assertEquals(65536, run(sizer, 1024 * 1024, bytesPerSample, 10));
+    }
+
+    @Test
+    public void keepsSizeWithinASample() {
+        UnityURLClientBufferSizer sizer = new UnityURLClientBufferSizer();
+        long now = 1000 * MILLI;
+
+        assertEquals(16384, sizer.update(0, 16384, now));
+        assertEquals(16384, sizer.update(16384, 16384, now + 100 * MILLI));
+        assertEquals(16384, sizer.update(16384, 16384, now + 200 * MILLI));
+    }
+
+    @Test
+    public void staysWithinLimits() {
+        UnityURLClientBufferSizer sizer = new UnityURLClientBufferSizer();
+        sizer.setLimits(8192, 32768);
+
+        assertEquals(32768, run(sizer, 16384, 100 * 1024 * 1024, 10));
+        assertEquals(8192, run(sizer, 16384, 1, 10));
+    }
+}
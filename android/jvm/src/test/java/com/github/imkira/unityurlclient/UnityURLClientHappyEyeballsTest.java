@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.UnknownHostException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class UnityURLClientHappyEyeballsTest {
+    private static final String HOST = "dual.example";
+
+    private ServerSocket _listener;
+    private InetAddress _ipv4;
+    private InetAddress _ipv6;
+    private int _resolveCount;
+    private UnityURLClientHappyEyeballs _happyEyeballs;
+
+    @Before
+    public void setUp() throws Exception {
+        _ipv4 = InetAddress.getByName("127.0.0.1");
+        // a documentation address, which nothing answers
+        _ipv6 = InetAddress.getByName("2001:db8::1");
+        _listener = new ServerSocket(0, 50, _ipv4);
+        _happyEyeballs = new UnityURLClientHappyEyeballs();
+        _happyEyeballs.setResolver(new UnityURLClientHappyEyeballs.Resolver() {
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                ++_resolveCount;
+                return new InetAddress[] {_ipv6, _ipv4};
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _listener.close();
+    }
+
+    private InetAddress select() throws Exception {
+        return _happyEyeballs.selectAddress(HOST, _listener.getLocalPort(), 10000,
+                                            new UnityURLClientHappyEyeballs.Race());
+    }
+
+    @Test
+    public void ipv4WinsWhenIPv6IsUnreachable() throws Exception {
+        long startTime = System.currentTimeMillis();
+        InetAddress address = select();
+        long elapsed = System.currentTimeMillis() - startTime;
+
+        assertEquals(_ipv4, address);
+        // IPv6 is tried first, IPv4 at the latest one attempt delay later
+        assertTrue("took " + elapsed + "ms",
+                   elapsed < UnityURLClientHappyEyeballs.CONNECTION_ATTEMPT_DELAY * 2);
+    }
+
+    @Test
+    public void remembersTheWinner() throws Exception {
+        assertEquals(_ipv4, select());
+
+        long startTime = System.currentTimeMillis();
+        assertEquals(_ipv4, select());
+        assertTrue(System.currentTimeMillis() - startTime < UnityURLClientHappyEyeballs.CONNECTION_ATTEMPT_DELAY);
+        assertEquals(1, _resolveCount);
+    }
+
+    @Test
+    public void racesAgainOnceTheWinnerIsInvalidated() throws Exception {
+        assertEquals(_ipv4, select());
+
+        // only the remembered address invalidates the entry
+        _happyEyeballs.invalidate(HOST, _ipv6);
+        assertEquals(_ipv4, select());
+        assertEquals(1, _resolveCount);
+
+        _happyEyeballs.invalidate(HOST.toUpperCase(), _ipv4);
+        assertEquals(_ipv4, select());
+        assertEquals(2, _resolveCount);
+    }
+
+    @Test
+    public void doesNotRaceSingleFamilyHosts() throws Exception {
+        _happyEyeballs.setResolver(new UnityURLClientHappyEyeballs.Resolver() {
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                return new InetAddress[] {_ipv4};
+            }
+        });
+
+        assertEquals(null, select());
+    }
+}
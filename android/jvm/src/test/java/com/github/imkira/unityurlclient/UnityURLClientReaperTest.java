@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.imkira.unityurlclient.jvm.UnityURLClientFrameLoop;
+import com.github.imkira.unityurlclient.jvm.UnityURLClientLocalServer;
+
+public class UnityURLClientReaperTest {
+    private static final long REAP_WAIT = 5000;
+
+    private UnityURLClientLocalServer _server;
+    private UnityURLClientBinding _binding;
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new UnityURLClientLocalServer();
+        _server.start();
+        _binding = new UnityURLClientBinding();
+        _binding.setIdleConnectionTimeout(0.5f);
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+    // Waits without looking the connections up, which would keep them alive.
+    private void waitForReapedCount(long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + REAP_WAIT;
+
+        while (_binding.getReapedConnectionCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(count, _binding.getReapedConnectionCount());
+    }
+
+    private void assertDownloads(long size) throws InterruptedException {
+        int connectionID = _binding.createHTTPConnection("GET", _server.getURL("/bytes?size=" + size), 0, 10.0f);
+        UnityURLClientFrameLoop.Result result = new UnityURLClientFrameLoop.Result();
+        _binding.sendRequest(connectionID);
+        new UnityURLClientFrameLoop(_binding, 65536, 0).run(new int[] {connectionID},
+                new UnityURLClientFrameLoop.Result[] {result});
+        assertTrue("error " + result.errorCode, result.isSuccess());
+        assertEquals(size, result.contentLength);
+    }
+
+    @Test
+    public void reapsNeverSentConnections() throws Exception {
+        _binding.createHTTPConnection("GET", _server.getURL("/bytes?size=1"), 0, 10.0f);
+        waitForReapedCount(1);
+        assertEquals(0, _binding.getConnectionCount());
+    }
+
+    @Test
+    public void reapsTransfersStalledAtTheGlobalBudget() throws Exception {
+        _binding.setGlobalResponseBufferWatermarks(256 * 1024, 128 * 1024);
+        int connectionID = _binding.createHTTPConnection("GET", _server.getURL("/bytes?size=4194304"), 0, 10.0f);
+        _binding.sendRequest(connectionID);
+
+        waitForReapedCount(1);
+        assertEquals(0, _binding.getConnectionCount());
+
+        long deadline = System.currentTimeMillis() + REAP_WAIT;
+
+        while (_binding.getGlobalResponseBufferedBytes() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(0, _binding.getGlobalResponseBufferedBytes());
+        assertDownloads(1024 * 1024);
+    }
+
+    @Test
+    public void keepsTransfersThatAreReceivingData() throws Exception {
+        int connectionID = _binding.createHTTPConnection("GET",
+                _server.getURL("/bytes?size=262144&bandwidth=65536"), 0, 10.0f);
+        _binding.sendRequest(connectionID);
+
+        Thread.sleep(2500);
+        assertEquals(0, _binding.getReapedConnectionCount());
+        assertEquals(1, _binding.getConnectionCount());
+    }
+}
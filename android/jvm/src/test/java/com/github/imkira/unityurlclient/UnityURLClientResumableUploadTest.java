@@ -0,0 +1,209 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.imkira.unityurlclient.jvm.UnityURLClientFrameLoop;
+import com.github.imkira.unityurlclient.jvm.UnityURLClientLocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+public class UnityURLClientResumableUploadTest {
+    private static final int FILE_SIZE = 200 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int DROP_SIZE = 20000;
+
+    private UnityURLClientLocalServer _server;
+    private UnityURLClientBinding _binding;
+    private File _file;
+    private byte[] _content;
+
+    // A stand-in tus server for a single upload, which keeps what it
+    // received of an interrupted chunk like real servers do.
+    private class TusServer implements HttpHandler {
+        final List<String> requests = new ArrayList<String>();
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        int dropChunk = -1;
+        private int _chunkCount;
+
+        public void handle(HttpExchange exchange) throws IOException {
+            String method = exchange.getRequestMethod();
+            String override = exchange.getRequestHeaders().getFirst("X-HTTP-Method-Override");
+
+            if (override != null) {
+                method = override;
+            }
+
+            String offset = exchange.getRequestHeaders().getFirst("Upload-Offset");
+            requests.add((offset != null) ? method + " " + offset : method);
+
+            // HttpServer closes the connection without saying so, which
+            // would leave it in HttpURLConnection's keep-alive cache
+            exchange.getResponseHeaders().set("Connection", "close");
+
+            try {
+                if (!"1.0.0".equals(exchange.getRequestHeaders().getFirst("Tus-Resumable"))) {
+                    exchange.sendResponseHeaders(412, -1);
+                }
+                else if (exchange.getRequestURI().getPath().equals("/files")) {
+                    if (!method.equals("POST") || !String.valueOf(FILE_SIZE).equals(
+                            exchange.getRequestHeaders().getFirst("Upload-Length"))) {
+                        exchange.sendResponseHeaders(400, -1);
+                        return;
+                    }
+
+                    exchange.getResponseHeaders().set("Location", "/files/1");
+                    exchange.sendResponseHeaders(201, -1);
+                }
+                else if (method.equals("HEAD")) {
+                    exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(received.size()));
+                    exchange.getResponseHeaders().set("Upload-Length", String.valueOf(FILE_SIZE));
+                    exchange.sendResponseHeaders(200, -1);
+                }
+                else if (method.equals("PATCH")) {
+                    if (!String.valueOf(received.size()).equals(offset)) {
+                        exchange.sendResponseHeaders(409, -1);
+                        return;
+                    }
+
+                    InputStream inputStream = exchange.getRequestBody();
+                    byte[] buffer = new byte[4096];
+                    boolean isDropped = (_chunkCount++ == dropChunk);
+                    int read = 0;
+                    int size;
+
+                    while ((size = inputStream.read(buffer, 0, isDropped ?
+                            Math.min(buffer.length, DROP_SIZE - read) : buffer.length)) > 0) {
+                        received.write(buffer, 0, size);
+                        read += size;
+
+                        if (isDropped && read >= DROP_SIZE) {
+                            // the server closes the socket of a handler that
+                            // throws, without answering
+                            throw new IOException("chunk interrupted");
+                        }
+                    }
+
+                    exchange.getResponseHeaders().set("Upload-Offset", String.valueOf(received.size()));
+                    exchange.sendResponseHeaders(204, -1);
+                }
+                else {
+                    exchange.sendResponseHeaders(405, -1);
+                }
+            }
+            finally {
+                exchange.close();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new UnityURLClientLocalServer();
+        _binding = new UnityURLClientBinding();
+        _content = new byte[FILE_SIZE];
+
+        for (int i = 0; i < FILE_SIZE; ++i) {
+            _content[i] = (byte)(i * 31);
+        }
+
+        _file = File.createTempFile("unityurlclient", ".bin");
+        FileOutputStream outputStream = new FileOutputStream(_file);
+        outputStream.write(_content);
+        outputStream.close();
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop();
+        _file.delete();
+    }
+
+    private UnityURLClientFrameLoop.Result upload(TusServer tus) throws Exception {
+        _server.createContext("/files", tus);
+        _server.start();
+
+        int connectionID = _binding.createHTTPConnection("POST", _server.getURL("/files"), 0, 10.0f);
+        _binding.setRequestContentResumableSource(connectionID, _file.getPath(), CHUNK_SIZE);
+        _binding.sendRequest(connectionID);
+
+        UnityURLClientFrameLoop.Result result = new UnityURLClientFrameLoop.Result();
+        UnityURLClientFrameLoop frameLoop = new UnityURLClientFrameLoop(_binding, 65536, 0);
+
+        while (frameLoop.poll(connectionID, result)) {
+            if (_binding.getRequestUploadURL(connectionID) != null) {
+                assertEquals(_server.getURL("/files/1"), _binding.getRequestUploadURL(connectionID));
+                assertTrue(_binding.getRequestContentLengthSent(connectionID) <= FILE_SIZE);
+            }
+
+            Thread.sleep(1);
+        }
+
+        return result;
+    }
+
+    @Test
+    public void createsTheUploadAndSendsItInChunks() throws Exception {
+        TusServer tus = new TusServer();
+        UnityURLClientFrameLoop.Result result = upload(tus);
+
+        assertTrue("error " + result.errorCode, result.isSuccess());
+        assertEquals(200, result.statusCode);
+        assertEquals(Arrays.asList("POST", "PATCH 0", "PATCH 65536", "PATCH 131072", "PATCH 196608", "HEAD"),
+                     tus.requests);
+        assertArrayEquals(_content, tus.received.toByteArray());
+    }
+
+    @Test
+    public void resumesAfterAnInterruptedChunk() throws Exception {
+        TusServer tus = new TusServer();
+        tus.dropChunk = 1;
+        UnityURLClientFrameLoop.Result result = upload(tus);
+        int resumeOffset = CHUNK_SIZE + DROP_SIZE;
+
+        assertTrue("error " + result.errorCode, result.isSuccess());
+        assertEquals(200, result.statusCode);
+        assertEquals(Arrays.asList("POST", "PATCH 0", "PATCH 65536", "HEAD", "PATCH " + resumeOffset,
+                                   "PATCH " + (resumeOffset + CHUNK_SIZE),
+                                   "HEAD"),
+                     tus.requests);
+        assertArrayEquals(_content, tus.received.toByteArray());
+    }
+}
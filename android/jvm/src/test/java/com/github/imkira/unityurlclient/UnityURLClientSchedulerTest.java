@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.imkira.unityurlclient.jvm.UnityURLClientFrameLoop;
+import com.github.imkira.unityurlclient.jvm.UnityURLClientLocalServer;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+// With a single slot, a connection waiting for something other than the
+// network must not keep the queued ones from running.
+public class UnityURLClientSchedulerTest {
+    private static final long WAIT = 5000;
+
+    private UnityURLClientLocalServer _server;
+    private UnityURLClientBinding _binding;
+
+    @Before
+    public void setUp() throws Exception {
+        _server = new UnityURLClientLocalServer();
+        _server.createContext("/unavailable", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+            }
+        });
+        _server.start();
+        _binding = new UnityURLClientBinding();
+        _binding.setMaxConcurrentConnections(1);
+    }
+
+    @After
+    public void tearDown() {
+        _server.stop();
+    }
+
+    private int send(String path) {
+        int connectionID = _binding.createHTTPConnection("GET", _server.getURL(path), 0, 10.0f);
+        _binding.sendRequest(connectionID);
+        return connectionID;
+    }
+
+    private UnityURLClientFrameLoop.Result drain(int connectionID) throws InterruptedException {
+        UnityURLClientFrameLoop.Result result = new UnityURLClientFrameLoop.Result();
+        new UnityURLClientFrameLoop(_binding, 65536, 0).run(new int[] {connectionID},
+                new UnityURLClientFrameLoop.Result[] {result});
+        return result;
+    }
+
+    private void waitForState(int connectionID, int state) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT;
+
+        while (_binding.getState(connectionID) != state && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(state, _binding.getState(connectionID));
+    }
+
+    @Test
+    public void releasesTheSlotDuringRetryBackoff() throws Exception {
+        int retryingID = _binding.createHTTPConnection("GET", _server.getURL("/unavailable"), 0, 30.0f);
+        _binding.addAcceptableResponseStatusCodeRange(retryingID, 200, 299);
+        _binding.setRetryPolicy(retryingID, 2, 3.0f, 3.0f, 0.0f);
+        _binding.addRetryableResponseStatusCodeRange(retryingID, 503, 503);
+        _binding.sendRequest(retryingID);
+
+        long deadline = System.currentTimeMillis() + WAIT;
+
+        while (_binding.getResponseRetryCount(retryingID) == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertEquals(1, _binding.getResponseRetryCount(retryingID));
+
+        long startTime = System.currentTimeMillis();
+        UnityURLClientFrameLoop.Result result = drain(send("/bytes?size=1024"));
+        assertTrue("error " + result.errorCode, result.isSuccess());
+        assertTrue(System.currentTimeMillis() - startTime < 2000);
+
+        // the retry gets a slot back once its backoff is over
+        assertEquals(503, drain(retryingID).statusCode);
+    }
+
+    @Test
+    public void releasesTheSlotWhileWaitingForUnity() throws Exception {
+        _binding.setGlobalResponseBufferWatermarks(256 * 1024, 128 * 1024);
+        int stalledID = send("/bytes?size=1048576");
+        long deadline = System.currentTimeMillis() + WAIT;
+
+        // nothing drains it, so it stops at the global high watermark
+        while (_binding.getGlobalResponseBufferedBytes() < 256 * 1024 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(_binding.getGlobalResponseBufferedBytes() >= 256 * 1024);
+
+        int fileID = _binding.createHTTPConnection("GET", _server.getURL("/bytes?size=1024"), 0, 10.0f);
+        File file = File.createTempFile("unityurlclient", ".bin");
+        file.deleteOnExit();
+        _binding.setResponseContentDestination(fileID, file.getPath(), false);
+        _binding.sendRequest(fileID);
+        waitForState(fileID, UnityURLClientFrameLoop.FINISHED_STATE);
+        assertEquals(1024, file.length());
+
+        UnityURLClientFrameLoop.Result result = drain(stalledID);
+        assertTrue("error " + result.errorCode, result.isSuccess());
+        assertEquals(1048576, result.contentLength);
+    }
+}
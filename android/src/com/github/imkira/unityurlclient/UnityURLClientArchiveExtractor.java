@@ -0,0 +1,735 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+// Extracts zip or tar archives while they are being downloaded. Bytes are
+// pushed from the read loop, so the archive itself is never stored. After
+// every completed entry, the archive offset of the next entry is saved to
+// a journal in the target directory so that an interrupted download can be
+// resumed with a Range request starting at that entry.
+public class UnityURLClientArchiveExtractor {
+    private static final String TAG = "UnityURLClientArchiveExtractor";
+
+    public static final int FORMAT_ZIP = 0;
+    public static final int FORMAT_TAR = 1;
+
+    private static final String JOURNAL_NAME = ".urlclient-extract";
+    private static final int OUTPUT_BUFFER_SIZE = 65536;
+    private static final int TAR_BLOCK_SIZE = 512;
+
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP_DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int ZIP_LOCAL_HEADER_SIZE = 30;
+    private static final int ZIP_FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int ZIP_METHOD_STORED = 0;
+    private static final int ZIP_METHOD_DEFLATED = 8;
+
+    private enum Step {
+        Header,
+        HeaderNames,
+        Data,
+        Descriptor,
+        Padding,
+        Done,
+    }
+
+    private int _format;
+    private File _dstDir;
+    private String _canonicalDstDir;
+    private File _journalFile;
+
+    private Step _step;
+    private long _position;
+    private long _journalOffset;
+    private byte[] _header = new byte[TAR_BLOCK_SIZE];
+    private int _headerFill;
+    private int _headerNeed;
+    private byte[] _outputBuffer;
+
+    // current entry
+    private OutputStream _entryOutputStream;
+    private ByteArrayOutputStream _entryMetadataStream;
+    private String _entryLongName;
+    private long _entryRemaining;
+    private long _entryPadding;
+    private int _zipFlags;
+    private int _zipMethod;
+    private long _zipCrc;
+    private boolean _zipIsZip64;
+    private long _zipUncompressedSize;
+    private byte _tarMetadataType;
+    private boolean _isJournalPending;
+    private int _zipNameLength;
+    private Inflater _inflater;
+    private CRC32 _crc;
+
+    private int _sync_entryCount;
+    private String _sync_entryName;
+    private long _sync_entryLength;
+    private long _sync_entryExpectedLength;
+
+    public UnityURLClientArchiveExtractor(int format, String dstDir) throws IOException {
+        if (format != FORMAT_ZIP && format != FORMAT_TAR) {
+            throw new IOException("Unsupported archive format: " + format);
+        }
+
+        _format = format;
+        _dstDir = new File(dstDir);
+        _journalFile = new File(_dstDir, JOURNAL_NAME);
+    }
+
+    public void open() throws IOException {
+        if (!_dstDir.isDirectory() && !_dstDir.mkdirs()) {
+            throw new IOException("Could not create " + _dstDir);
+        }
+
+        _canonicalDstDir = _dstDir.getCanonicalPath() + File.separator;
+    }
+
+    // Returns the archive offset of the first entry that was not
+    // completely extracted, or 0 if there is nothing to resume.
+    public long getResumeOffset() {
+        BufferedReader reader = null;
+
+        try {
+            if (!_journalFile.isFile()) {
+                return 0;
+            }
+
+            reader = new BufferedReader(new FileReader(_journalFile));
+            String[] fields = reader.readLine().trim().split(" ");
+            long offset = Long.parseLong(fields[0]);
+            int entryCount = Integer.parseInt(fields[1]);
+
+            synchronized (this) {
+                _sync_entryCount = entryCount;
+            }
+
+            return offset;
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "getResumeOffset:" + e.toString());
+            return 0;
+        }
+        finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            }
+            catch (IOException e) {
+                UnityURLClientDebug.e(TAG, "getResumeOffset:" + e.toString());
+            }
+        }
+    }
+
+    public void begin(long offset) throws IOException {
+        closeEntry();
+        _position = offset;
+        _journalOffset = offset;
+        _step = Step.Header;
+        _headerFill = 0;
+        _headerNeed = (_format == FORMAT_ZIP) ? 4 : TAR_BLOCK_SIZE;
+        _entryLongName = null;
+
+        if (offset <= 0) {
+            _journalFile.delete();
+
+            synchronized (this) {
+                _sync_entryCount = 0;
+            }
+        }
+
+        if (_outputBuffer == null && _format == FORMAT_ZIP) {
+            _outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+        }
+    }
+
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0 && _step != Step.Done) {
+            int consumed;
+
+            if (_step == Step.Header || _step == Step.HeaderNames || _step == Step.Descriptor) {
+                consumed = fillHeader(buffer, offset, length);
+
+                if (_headerFill == _headerNeed) {
+                    if (_format == FORMAT_ZIP) {
+                        onZipHeader();
+                    }
+                    else {
+                        onTarHeader();
+                    }
+                }
+            }
+            else if (_step == Step.Data) {
+                consumed = (_format == FORMAT_ZIP) ? writeZipData(buffer, offset, length) :
+                           writeTarData(buffer, offset, length);
+            }
+            else {
+                consumed = (int)((length < _entryPadding) ? length : _entryPadding);
+                _entryPadding -= consumed;
+
+                if (_entryPadding <= 0) {
+                    onTarPaddingDone();
+                }
+            }
+
+            _position += consumed;
+            offset += consumed;
+            length -= consumed;
+
+            if (_isJournalPending) {
+                _isJournalPending = false;
+                _journalOffset = _position;
+                writeJournal(getEntryCount());
+            }
+        }
+    }
+
+    // Throws if the archive ended in the middle of an entry.
+    public void finish() throws IOException {
+        boolean isComplete = (_step == Step.Done) ||
+                             (_step == Step.Header && _headerFill == 0 && _format == FORMAT_TAR);
+        closeEntry();
+
+        if (!isComplete) {
+            throw new IOException("Archive is truncated at offset " + _position);
+        }
+
+        _journalFile.delete();
+    }
+
+    public void close() {
+        try {
+            closeEntry();
+        }
+        catch (IOException e) {
+            UnityURLClientDebug.e(TAG, "close:" + e.toString());
+        }
+
+        if (_inflater != null) {
+            _inflater.end();
+            _inflater = null;
+        }
+    }
+
+    public synchronized int getEntryCount() {
+        return _sync_entryCount;
+    }
+
+    public synchronized String getEntryName() {
+        return _sync_entryName;
+    }
+
+    public synchronized long getEntryLength() {
+        return _sync_entryLength;
+    }
+
+    public synchronized long getEntryExpectedLength() {
+        return _sync_entryExpectedLength;
+    }
+
+    private int fillHeader(byte[] buffer, int offset, int length) {
+        int size = _headerNeed - _headerFill;
+
+        if (size > length) {
+            size = length;
+        }
+
+        System.arraycopy(buffer, offset, _header, _headerFill, size);
+        _headerFill += size;
+        return size;
+    }
+
+    private void needHeader(Step step, int size) {
+        if (_header.length < size) {
+            byte[] header = new byte[size];
+            System.arraycopy(_header, 0, header, 0, _headerFill);
+            _header = header;
+        }
+
+        _step = step;
+        _headerNeed = size;
+    }
+
+    private static int readShort(byte[] b, int offset) {
+        return (b[offset] & 0xff) | ((b[offset + 1] & 0xff) << 8);
+    }
+
+    private static long readInt(byte[] b, int offset) {
+        return ((long)readShort(b, offset)) | (((long)readShort(b, offset + 2)) << 16);
+    }
+
+    private static long readLong(byte[] b, int offset) {
+        return readInt(b, offset) | (readInt(b, offset + 4) << 32);
+    }
+
+    private File entryFile(String name) throws IOException {
+        File file = new File(_dstDir, name);
+
+        if (!(file.getCanonicalPath() + File.separator).startsWith(_canonicalDstDir) ||
+                file.getCanonicalPath().equals(_canonicalDstDir)) {
+            throw new IOException("Entry outside of target directory: " + name);
+        }
+
+        return file;
+    }
+
+    private void openEntry(String name, long expectedLength, boolean isDirectory) throws IOException {
+        UnityURLClientDebug.d(TAG, "openEntry:" + name + " length:" + expectedLength);
+
+        synchronized (this) {
+            _sync_entryName = name;
+            _sync_entryLength = 0;
+            _sync_entryExpectedLength = expectedLength;
+        }
+
+        if (name.length() == 0) {
+            return;
+        }
+
+        File file = entryFile(name);
+
+        if (isDirectory) {
+            file.mkdirs();
+            return;
+        }
+
+        File parent = file.getParentFile();
+
+        if (parent != null && !parent.isDirectory()) {
+            parent.mkdirs();
+        }
+
+        _entryOutputStream = new FileOutputStream(file, false);
+    }
+
+    private void writeEntry(byte[] buffer, int offset, int length) throws IOException {
+        if (_entryOutputStream != null) {
+            _entryOutputStream.write(buffer, offset, length);
+        }
+        else if (_entryMetadataStream != null) {
+            _entryMetadataStream.write(buffer, offset, length);
+        }
+
+        synchronized (this) {
+            _sync_entryLength += length;
+        }
+    }
+
+    private void closeEntry() throws IOException {
+        OutputStream outputStream = _entryOutputStream;
+        _entryOutputStream = null;
+
+        if (outputStream != null) {
+            outputStream.close();
+        }
+    }
+
+    // The journal is written once the bytes of the current step have been
+    // accounted for, so that it points right after this entry.
+    private void onEntryDone() throws IOException {
+        closeEntry();
+
+        synchronized (this) {
+            ++_sync_entryCount;
+        }
+
+        _isJournalPending = true;
+        _step = Step.Header;
+        _headerFill = 0;
+        _headerNeed = (_format == FORMAT_ZIP) ? 4 : TAR_BLOCK_SIZE;
+    }
+
+    private void writeJournal(int entryCount) {
+        FileOutputStream outputStream = null;
+
+        try {
+            outputStream = new FileOutputStream(_journalFile, false);
+            outputStream.write((_journalOffset + " " + entryCount + "\n").getBytes("US-ASCII"));
+        }
+        catch (IOException e) {
+            UnityURLClientDebug.e(TAG, "writeJournal:" + e.toString());
+        }
+        finally {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            }
+            catch (IOException e) {
+                UnityURLClientDebug.e(TAG, "writeJournal:" + e.toString());
+            }
+        }
+    }
+
+    // zip
+
+    private void onZipHeader() throws IOException {
+        if (_step == Step.Header) {
+            if (_headerNeed == 4) {
+                long signature = readInt(_header, 0);
+
+                if (signature != ZIP_LOCAL_HEADER_SIGNATURE) {
+                    // central directory or end of archive, nothing left to extract
+                    UnityURLClientDebug.d(TAG, "onZipHeader: end of entries.");
+                    _step = Step.Done;
+                    return;
+                }
+
+                needHeader(Step.Header, ZIP_LOCAL_HEADER_SIZE);
+                return;
+            }
+
+            _zipFlags = readShort(_header, 6);
+            _zipMethod = readShort(_header, 8);
+            _zipCrc = readInt(_header, 14);
+            _entryRemaining = readInt(_header, 18);
+            _zipUncompressedSize = readInt(_header, 22);
+            _zipNameLength = readShort(_header, 26);
+            int extraLength = readShort(_header, 28);
+            _headerFill = 0;
+            needHeader(Step.HeaderNames, _zipNameLength + extraLength);
+
+            if (_headerNeed == 0) {
+                onZipHeader();
+            }
+
+            return;
+        }
+
+        if (_step == Step.HeaderNames) {
+            String name = new String(_header, 0, _zipNameLength, "UTF-8");
+            long compressedSize = _entryRemaining;
+            long uncompressedSize = _zipUncompressedSize;
+            _zipIsZip64 = false;
+
+            // zip64 extended information
+            for (int i = _zipNameLength; i + 4 <= _headerNeed; ) {
+                int id = readShort(_header, i);
+                int size = readShort(_header, i + 2);
+                int field = i + 4;
+
+                if (id == 0x0001) {
+                    _zipIsZip64 = true;
+
+                    if (uncompressedSize == 0xffffffffL && field + 8 <= i + 4 + size) {
+                        uncompressedSize = readLong(_header, field);
+                        field += 8;
+                    }
+
+                    if (compressedSize == 0xffffffffL && field + 8 <= i + 4 + size) {
+                        compressedSize = readLong(_header, field);
+                    }
+                }
+
+                i += 4 + size;
+            }
+
+            boolean hasDescriptor = (_zipFlags & ZIP_FLAG_DATA_DESCRIPTOR) != 0;
+
+            if (_zipMethod != ZIP_METHOD_STORED && _zipMethod != ZIP_METHOD_DEFLATED) {
+                throw new IOException("Unsupported compression method " + _zipMethod + ": " + name);
+            }
+
+            if (_zipMethod == ZIP_METHOD_STORED && hasDescriptor) {
+                throw new IOException("Stored entry without size: " + name);
+            }
+
+            _entryRemaining = compressedSize;
+            openEntry(name, hasDescriptor ? -1 : uncompressedSize, name.endsWith("/"));
+            _crc = new CRC32();
+
+            if (_zipMethod == ZIP_METHOD_DEFLATED) {
+                if (_inflater == null) {
+                    _inflater = new Inflater(true);
+                }
+                else {
+                    _inflater.reset();
+                }
+            }
+
+            _headerFill = 0;
+            _step = Step.Data;
+
+            if (_zipMethod == ZIP_METHOD_STORED && _entryRemaining == 0) {
+                onZipDataDone();
+            }
+
+            return;
+        }
+
+        // data descriptor
+        if (_headerNeed == 4) {
+            if (readInt(_header, 0) == ZIP_DATA_DESCRIPTOR_SIGNATURE) {
+                _headerFill = 0;
+                needHeader(Step.Descriptor, _zipIsZip64 ? 20 : 12);
+                return;
+            }
+
+            // descriptor without signature, what we read is the crc
+            needHeader(Step.Descriptor, _zipIsZip64 ? 20 : 12);
+            return;
+        }
+
+        _zipCrc = readInt(_header, 0);
+        verifyZipEntry();
+        onEntryDone();
+    }
+
+    private int writeZipData(byte[] buffer, int offset, int length) throws IOException {
+        if (_zipMethod == ZIP_METHOD_STORED) {
+            int size = (int)((length < _entryRemaining) ? length : _entryRemaining);
+            writeEntry(buffer, offset, size);
+            _crc.update(buffer, offset, size);
+            _entryRemaining -= size;
+
+            if (_entryRemaining <= 0) {
+                onZipDataDone();
+            }
+
+            return size;
+        }
+
+        _inflater.setInput(buffer, offset, length);
+
+        try {
+            while (!_inflater.finished() && !_inflater.needsInput()) {
+                int size = _inflater.inflate(_outputBuffer);
+
+                if (size > 0) {
+                    writeEntry(_outputBuffer, 0, size);
+                    _crc.update(_outputBuffer, 0, size);
+                }
+                else if (_inflater.needsDictionary()) {
+                    throw new IOException("Deflate dictionary is not supported");
+                }
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Invalid deflate data: " + e.getMessage());
+        }
+
+        int consumed = length - _inflater.getRemaining();
+
+        if (_inflater.finished()) {
+            onZipDataDone();
+        }
+
+        return consumed;
+    }
+
+    private void onZipDataDone() throws IOException {
+        if ((_zipFlags & ZIP_FLAG_DATA_DESCRIPTOR) != 0) {
+            _headerFill = 0;
+            needHeader(Step.Descriptor, 4);
+            return;
+        }
+
+        verifyZipEntry();
+        onEntryDone();
+    }
+
+    private void verifyZipEntry() throws IOException {
+        if (_crc.getValue() != _zipCrc) {
+            throw new IOException("CRC mismatch: " + getEntryName());
+        }
+    }
+
+    // tar
+
+    private static long parseTarNumber(byte[] b, int offset, int length) {
+        // base-256 encoding used for large sizes
+        if ((b[offset] & 0x80) != 0) {
+            long value = b[offset] & 0x7f;
+
+            for (int i = 1; i < length; ++i) {
+                value = (value << 8) | (b[offset + i] & 0xff);
+            }
+
+            return value;
+        }
+
+        long value = 0;
+
+        for (int i = 0; i < length; ++i) {
+            byte c = b[offset + i];
+
+            if (c == 0 || c == ' ') {
+                if (value != 0) {
+                    break;
+                }
+
+                continue;
+            }
+
+            value = (value << 3) + (c - '0');
+        }
+
+        return value;
+    }
+
+    private static String parseTarString(byte[] b, int offset, int length) throws IOException {
+        int end = offset;
+
+        while (end < offset + length && b[end] != 0) {
+            ++end;
+        }
+
+        return new String(b, offset, end - offset, "UTF-8");
+    }
+
+    private void onTarHeader() throws IOException {
+        _headerFill = 0;
+        boolean isEmpty = true;
+
+        for (int i = 0; i < TAR_BLOCK_SIZE; ++i) {
+            if (_header[i] != 0) {
+                isEmpty = false;
+                break;
+            }
+        }
+
+        if (isEmpty) {
+            UnityURLClientDebug.d(TAG, "onTarHeader: end of archive.");
+            _step = Step.Done;
+            return;
+        }
+
+        String name = parseTarString(_header, 0, 100);
+        long size = parseTarNumber(_header, 124, 12);
+        byte type = _header[156];
+
+        if (parseTarString(_header, 257, 6).startsWith("ustar")) {
+            String prefix = parseTarString(_header, 345, 155);
+
+            if (prefix.length() > 0) {
+                name = prefix + "/" + name;
+            }
+        }
+
+        if (_entryLongName != null) {
+            name = _entryLongName;
+            _entryLongName = null;
+        }
+
+        _entryRemaining = size;
+        _entryPadding = (TAR_BLOCK_SIZE - (size % TAR_BLOCK_SIZE)) % TAR_BLOCK_SIZE;
+        _step = Step.Data;
+
+        if (type == 'L' || type == 'x') {
+            // long name for the next entry
+            _entryMetadataStream = new ByteArrayOutputStream();
+            _tarMetadataType = type;
+        }
+        else if (type == '0' || type == 0 || type == '7') {
+            openEntry(name, size, false);
+        }
+        else if (type == '5') {
+            openEntry(name, 0, true);
+        }
+        else {
+            // links and special files are skipped
+            openEntry("", size, false);
+        }
+
+        if (_entryRemaining == 0) {
+            onTarDataDone();
+        }
+    }
+
+    private int writeTarData(byte[] buffer, int offset, int length) throws IOException {
+        int size = (int)((length < _entryRemaining) ? length : _entryRemaining);
+        writeEntry(buffer, offset, size);
+        _entryRemaining -= size;
+
+        if (_entryRemaining <= 0) {
+            onTarDataDone();
+        }
+
+        return size;
+    }
+
+    private void onTarDataDone() throws IOException {
+        if (_entryPadding > 0) {
+            _step = Step.Padding;
+            return;
+        }
+
+        onTarPaddingDone();
+    }
+
+    // Metadata blocks belong to the next entry and are never journaled, so
+    // that resuming starts with them again.
+    private void onTarPaddingDone() throws IOException {
+        if (_entryMetadataStream != null) {
+            String name = parseTarMetadata(_entryMetadataStream.toByteArray());
+            _entryMetadataStream = null;
+
+            if (name != null && name.length() > 0) {
+                _entryLongName = name;
+            }
+
+            _step = Step.Header;
+            _headerFill = 0;
+            _headerNeed = TAR_BLOCK_SIZE;
+            return;
+        }
+
+        onEntryDone();
+    }
+
+    private String parseTarMetadata(byte[] data) throws IOException {
+        String text = new String(data, "UTF-8");
+
+        if (_tarMetadataType == 'L') {
+            int end = text.indexOf('\0');
+            return (end >= 0) ? text.substring(0, end) : text;
+        }
+
+        // pax extended header records: "<length> key=value\n"
+        String[] records = text.split("\n");
+
+        for (int i = 0; i < records.length; ++i) {
+            int index = records[i].indexOf(" path=");
+
+            if (index >= 0) {
+                return records[i].substring(index + 6);
+            }
+        }
+
+        return null;
+    }
+}
@@ -23,6 +23,10 @@
 
 package com.github.imkira.unityurlclient;
 
+import java.nio.ByteBuffer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
 
 public class UnityURLClientBinding {
     private static final String TAG = "UnityURLClientBinding";
@@ -54,6 +58,125 @@ public class UnityURLClientBinding {
         return connection.connectionID;
     }
 
+    public int createHTTPConnection(String method, String url, int cachePolicy, float connectTimeout,
+                                    float readTimeout, float totalTimeout) {
+        UnityURLClientConnection connection = new UnityURLClientConnection(method, url, cachePolicy, connectTimeout,
+                readTimeout, totalTimeout);
+        _manager.queueConnection(connection);
+        return connection.connectionID;
+    }
+
+    public int createHTTPConnection(String method, String url, int cachePolicy, float timeout, int priority) {
+        UnityURLClientConnection connection = new UnityURLClientConnection(method, url, cachePolicy, timeout);
+        connection.setPriority(priority);
+        _manager.queueConnection(connection);
+        return connection.connectionID;
+    }
+
+    // Creates, configures and sends a connection in a single call. See
+    // UnityURLClientRequestDescriptor for the descriptor format. Returns 0
+    // if the descriptor could not be parsed.
+    public int createAndSendHTTPConnection(String descriptor) {
+        try {
+            return createAndSendHTTPConnection(new JSONObject(descriptor));
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "createAndSendHTTPConnection: " + e.toString());
+            return 0;
+        }
+    }
+
+    // Same as createAndSendHTTPConnection for a JSON array of descriptors.
+    // The returned IDs follow the order of the descriptors.
+    public int[] createAndSendHTTPConnections(String descriptors) {
+        try {
+            JSONArray array = new JSONArray(descriptors);
+            int[] connectionIDs = new int[array.length()];
+
+            for (int i = 0; i < connectionIDs.length; ++i) {
+                JSONObject descriptor = array.optJSONObject(i);
+                connectionIDs[i] = (descriptor != null) ? createAndSendHTTPConnection(descriptor) : 0;
+            }
+
+            return connectionIDs;
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "createAndSendHTTPConnections: " + e.toString());
+            return new int[0];
+        }
+    }
+
+    private int createAndSendHTTPConnection(JSONObject descriptor) {
+        UnityURLClientConnection connection = UnityURLClientRequestDescriptor.createConnection(descriptor);
+
+        if (connection == null) {
+            return 0;
+        }
+
+        _manager.queueConnection(connection);
+        connection.sendRequest();
+        return connection.connectionID;
+    }
+
+    // Downloads urls[i] to dstPaths[i] in the background while no other
+    // connection is active, and returns the ID of the group.
+    public int prefetch(String[] urls, String[] dstPaths, int[] priorities, long byteBudget, boolean allowMetered) {
+        return _manager.prefetch(urls, dstPaths, priorities, byteBudget, allowMetered);
+    }
+
+    public void cancelPrefetch(int groupID) {
+        _manager.cancelPrefetch(groupID);
+    }
+
+    public long getPrefetchBytesRead(int groupID) {
+        UnityURLClientPrefetchGroup group = _manager.prefetchGroupHavingID(groupID);
+
+        if (group != null) {
+            return group.getBytesRead();
+        }
+
+        UnityURLClientDebug.e(TAG, "getPrefetchBytesRead: Prefetch group not found: " + groupID);
+        return 0;
+    }
+
+    public int getPrefetchRemainingCount(int groupID) {
+        UnityURLClientPrefetchGroup group = _manager.prefetchGroupHavingID(groupID);
+
+        if (group != null) {
+            return group.getRemainingCount();
+        }
+
+        UnityURLClientDebug.e(TAG, "getPrefetchRemainingCount: Prefetch group not found: " + groupID);
+        return 0;
+    }
+
+    public void setPrefetchTimeouts(float connectTimeout, float readTimeout, float totalTimeout) {
+        _manager.setPrefetchTimeouts(connectTimeout, readTimeout, totalTimeout);
+    }
+
+    public void setMaxConcurrentPrefetchConnections(int maxConnections) {
+        _manager.getScheduler().setMaxRunningPrefetchConnections(maxConnections);
+    }
+
+    public void setNetworkMetered(boolean isNetworkMetered) {
+        _manager.getScheduler().setNetworkMetered(isNetworkMetered);
+    }
+
+    public void setPriority(int connectionID, int priority) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setPriority(priority);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setPriority: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setMaxConcurrentConnections(int maxConnections) {
+        _manager.getScheduler().setMaxRunningConnections(maxConnections);
+    }
+
     public int getState(int connectionID) {
         UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
 
@@ -175,6 +298,105 @@ public class UnityURLClientBinding {
         }
     }
 
+    public void setResponseContentRanges(int connectionID, long[] ranges) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setResponseContentRanges(ranges);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentRanges: Connection not found: " + connectionID);
+        }
+    }
+
+    public int getResponseRangeFallbackCount(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getResponseRangeFallbackCount();
+        }
+
+        UnityURLClientDebug.e(TAG, "getResponseRangeFallbackCount: Connection not found: " + connectionID);
+        return 0;
+    }
+
+    public void setResponseContentDestinationConditional(int connectionID, boolean isConditional) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setResponseContentDestinationConditional(isConditional);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentDestinationConditional: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setResponseContentExtraction(int connectionID, String dstDir, int format, boolean allowResume) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setResponseContentExtraction(dstDir, format, allowResume);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentExtraction: Connection not found: " + connectionID);
+        }
+    }
+
+    public int getExtractedEntryCount(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getExtractedEntryCount();
+        }
+
+        UnityURLClientDebug.e(TAG, "getExtractedEntryCount: Connection not found: " + connectionID);
+        return 0;
+    }
+
+    public String getExtractingEntryName(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getExtractingEntryName();
+        }
+
+        UnityURLClientDebug.e(TAG, "getExtractingEntryName: Connection not found: " + connectionID);
+        return null;
+    }
+
+    public long getExtractingEntryLength(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getExtractingEntryLength();
+        }
+
+        UnityURLClientDebug.e(TAG, "getExtractingEntryLength: Connection not found: " + connectionID);
+        return 0;
+    }
+
+    public long getExtractingEntryExpectedLength(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getExtractingEntryExpectedLength();
+        }
+
+        UnityURLClientDebug.e(TAG, "getExtractingEntryExpectedLength: Connection not found: " + connectionID);
+        return -1;
+    }
+
+    public void setResponseContentDestinationDigest(int connectionID, String algorithm, String digest, long chunkSize, String[] chunkDigests) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setResponseContentDestinationDigest(algorithm, digest, chunkSize, chunkDigests);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentDestinationDigest: Connection not found: " + connectionID);
+        }
+    }
+
     public void sendRequest(int connectionID) {
         UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
 
@@ -230,6 +452,28 @@ public class UnityURLClientBinding {
         return -1;
     }
 
+    public String getResponseURL(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getResponseURL();
+        }
+
+        UnityURLClientDebug.e(TAG, "getResponseURL: Connection not found: " + connectionID);
+        return null;
+    }
+
+    public int getResponseRefetchedChunkCount(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getResponseRefetchedChunkCount();
+        }
+
+        UnityURLClientDebug.e(TAG, "getResponseRefetchedChunkCount: Connection not found: " + connectionID);
+        return 0;
+    }
+
     public long getResponseContentLengthRead(int connectionID) {
         UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
 
@@ -290,6 +534,7 @@ public class UnityURLClientBinding {
 
         if (connection != null) {
             connection.cancel();
+            connection.releaseResources();
         }
         else {
             UnityURLClientDebug.e(TAG, "destroyConnection: Connection not found: " + connectionID);
@@ -307,6 +552,116 @@ public class UnityURLClientBinding {
         }
     }
 
+    public void setRequestContentBuffer(int connectionID, ByteBuffer src) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setRequestContentBuffer(src);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRequestContentBuffer: Connection not found: " + connectionID);
+        }
+    }
+
+    public void addRequestMultipartField(int connectionID, String name, String value) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.addRequestMultipartField(name, value);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "addRequestMultipartField: Connection not found: " + connectionID);
+        }
+    }
+
+    public void addRequestMultipartBytes(int connectionID, String name, String fileName, String contentType, byte[] content, long length) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.addRequestMultipartBytes(name, fileName, contentType, content, length);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "addRequestMultipartBytes: Connection not found: " + connectionID);
+        }
+    }
+
+    public void addRequestMultipartBuffer(int connectionID, String name, String fileName, String contentType, ByteBuffer buffer) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.addRequestMultipartBuffer(name, fileName, contentType, buffer);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "addRequestMultipartBuffer: Connection not found: " + connectionID);
+        }
+    }
+
+    public void addRequestMultipartFile(int connectionID, String name, String fileName, String contentType, String path) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.addRequestMultipartFile(name, fileName, contentType, path);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "addRequestMultipartFile: Connection not found: " + connectionID);
+        }
+    }
+
+    public boolean isRequestContentReleased(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.isRequestContentReleased();
+        }
+
+        UnityURLClientDebug.e(TAG, "isRequestContentReleased: Connection not found: " + connectionID);
+        return true;
+    }
+
+    public void setRequestContentResumableSource(int connectionID, String srcPath, long chunkSize) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setRequestContentResumableSource(srcPath, chunkSize);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRequestContentResumableSource: Connection not found: " + connectionID);
+        }
+    }
+
+    public String getRequestUploadURL(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getRequestUploadURL();
+        }
+
+        UnityURLClientDebug.e(TAG, "getRequestUploadURL: Connection not found: " + connectionID);
+        return null;
+    }
+
+    public long getRequestContentLengthSent(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getRequestContentLengthSent();
+        }
+
+        UnityURLClientDebug.e(TAG, "getRequestContentLengthSent: Connection not found: " + connectionID);
+        return 0;
+    }
+
+    public long getRequestContentLengthExpected(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getRequestContentLengthExpected();
+        }
+
+        UnityURLClientDebug.e(TAG, "getRequestContentLengthExpected: Connection not found: " + connectionID);
+        return 0;
+    }
+
     public long movePendingResponseContent(int connectionID, byte[] dst, long dstLength) {
         UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
 
@@ -317,4 +672,234 @@ public class UnityURLClientBinding {
         UnityURLClientDebug.e(TAG, "movePendingResponseContent: Connection not found: " + connectionID);
         return 0;
     }
+
+    public void setRetryPolicy(int connectionID, int maxAttempts, float baseDelay, float maxDelay, float jitter) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setRetryPolicy(maxAttempts, baseDelay, maxDelay, jitter);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRetryPolicy: Connection not found: " + connectionID);
+        }
+    }
+
+    public void addRetryableResponseStatusCodeRange(int connectionID, long from, long to) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.addRetryableResponseStatusCodeRange(from, to);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "addRetryableResponseStatusCodeRange: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setRetryableErrors(int connectionID, int[] errorCodes) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setRetryableErrors(errorCodes);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRetryableErrors: Connection not found: " + connectionID);
+        }
+    }
+
+    public int getResponseRetryCount(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getResponseRetryCount();
+        }
+
+        UnityURLClientDebug.e(TAG, "getResponseRetryCount: Connection not found: " + connectionID);
+        return 0;
+    }
+
+    public void setBandwidthLimit(int connectionID, long bytesPerSecond) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setBandwidthLimit(bytesPerSecond);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setBandwidthLimit: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setTimeouts(int connectionID, float connectTimeout, float readTimeout, float totalTimeout) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setTimeouts(connectTimeout, readTimeout, totalTimeout);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setTimeouts: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setBufferSizeLimits(int connectionID, int minSize, int maxSize) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setBufferSizeLimits(minSize, maxSize);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setBufferSizeLimits: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setDiskWritePolicy(int connectionID, int queueCapacity, long syncInterval, boolean syncOnClose) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setDiskWritePolicy(queueCapacity, syncInterval, syncOnClose);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setDiskWritePolicy: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setHedging(int connectionID, boolean isEnabled, float delay, int percentile) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setHedging(isEnabled, (long)(delay * 1000.0f), percentile);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setHedging: Connection not found: " + connectionID);
+        }
+    }
+
+    public int getBufferSize(int connectionID) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            return connection.getBufferSize();
+        }
+
+        UnityURLClientDebug.e(TAG, "getBufferSize: Connection not found: " + connectionID);
+        return 0;
+    }
+
+    public void setGlobalBandwidthLimit(long bytesPerSecond) {
+        _manager.getBandwidth().setRate(bytesPerSecond);
+    }
+
+    public void setResponseBufferWatermarks(int connectionID, long high, long low) {
+        UnityURLClientConnection connection = _manager.connectionHavingID(connectionID);
+
+        if (connection != null) {
+            connection.setResponseBufferWatermarks(high, low);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseBufferWatermarks: Connection not found: " + connectionID);
+        }
+    }
+
+    public void setGlobalResponseBufferWatermarks(long high, long low) {
+        _manager.setResponseBufferWatermarks(high, low);
+    }
+
+    public long getGlobalResponseBufferedBytes() {
+        return _manager.getResponseBufferedBytes();
+    }
+
+    public void setIdleConnectionTimeout(float timeout) {
+        _manager.setIdleConnectionTimeout((long)(timeout * 1000.0f));
+    }
+
+    public int getConnectionCount() {
+        return _manager.getConnectionCount();
+    }
+
+    public long getReapedConnectionCount() {
+        return _manager.getReapedConnectionCount();
+    }
+
+    public long getRetainedBytes() {
+        return _manager.getRetainedBytes();
+    }
+
+    public void setHappyEyeballsEnabled(boolean isEnabled) {
+        _manager.getHappyEyeballs().setEnabled(isEnabled);
+    }
+
+    public void clearAddressCache() {
+        _manager.getHappyEyeballs().clearCache();
+    }
+
+    public void setHedgeBudget(float ratio, float maxTokens) {
+        _manager.getHedgingPolicy().setBudget(ratio, maxTokens);
+    }
+
+    public long getHedgeCount() {
+        return _manager.getHedgingPolicy().getHedgeCount();
+    }
+
+    public long getHedgeWinCount() {
+        return _manager.getHedgingPolicy().getHedgeWinCount();
+    }
+
+    // Hedges, range workers and other tasks running beside the connections.
+    public int getBackgroundTaskCount() {
+        return _manager.getScheduler().getRunningTaskCount();
+    }
+
+    public void setCircuitBreakerPolicy(int failureThreshold, float openDuration) {
+        _manager.getCircuitBreaker().setPolicy(failureThreshold, (long)(openDuration * 1000.0f));
+    }
+
+    public void resetCircuitBreaker() {
+        _manager.getCircuitBreaker().reset();
+    }
+
+    public long getCircuitRejectedCount() {
+        return _manager.getCircuitBreaker().getRejectedCount();
+    }
+
+    public void setRedirectCacheCapacity(int capacity) {
+        _manager.getRedirectCache().setCapacity(capacity);
+    }
+
+    public void clearRedirectCache() {
+        _manager.getRedirectCache().clear();
+    }
+
+    public void setBufferPoolMaxRetainedBytes(long maxRetainedBytes) {
+        _manager.getBufferPool().setMaxRetainedBytes(maxRetainedBytes);
+    }
+
+    public long getBufferPoolRetainedBytes() {
+        return _manager.getBufferPool().getRetainedBytes();
+    }
+
+    public long getBufferPoolHitCount() {
+        return _manager.getBufferPool().getHitCount();
+    }
+
+    public long getBufferPoolMissCount() {
+        return _manager.getBufferPool().getMissCount();
+    }
+
+    // Returns connection ID / event type pairs, see UnityURLClientEventQueue.
+    public int[] drainEvents(int maxEvents) {
+        return _manager.getEventQueue().drain(maxEvents);
+    }
+
+    public int getPendingEventCount() {
+        return _manager.getEventQueue().getCount();
+    }
+
+    public boolean awaitEvents(float timeout) {
+        try {
+            return _manager.getEventQueue().await((long)(timeout * 1000.0f));
+        }
+        catch (InterruptedException e) {
+            UnityURLClientDebug.e(TAG, "awaitEvents: " + e.toString());
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
 }
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class UnityURLClientBufferPool {
+    private static final String TAG = "UnityURLClientBufferPool";
+
+    // size classes are powers of two from 4KB up to 1MB
+    private static final int MIN_SIZE_CLASS_SHIFT = 12;
+    private static final int MAX_SIZE_CLASS_SHIFT = 20;
+    private static final int SIZE_CLASS_COUNT = MAX_SIZE_CLASS_SHIFT - MIN_SIZE_CLASS_SHIFT + 1;
+
+    public static final long DEFAULT_MAX_RETAINED_BYTES = 2 * 1024 * 1024;
+
+    private List<List<byte[]>> _sync_sizeClasses;
+    private long _sync_maxRetainedBytes = DEFAULT_MAX_RETAINED_BYTES;
+    private long _sync_retainedBytes;
+    private long _sync_hitCount;
+    private long _sync_missCount;
+
+    public UnityURLClientBufferPool() {
+        _sync_sizeClasses = new ArrayList<List<byte[]>>(SIZE_CLASS_COUNT);
+
+        for (int i = 0; i < SIZE_CLASS_COUNT; ++i) {
+            _sync_sizeClasses.add(new ArrayList<byte[]>());
+        }
+    }
+
+    private static int sizeClassIndex(int size) {
+        int shift = MIN_SIZE_CLASS_SHIFT;
+
+        while ((1 << shift) < size) {
+            ++shift;
+        }
+
+        return shift - MIN_SIZE_CLASS_SHIFT;
+    }
+
+    private static int sizeClassIndexOfBuffer(byte[] buffer) {
+        int length = buffer.length;
+
+        if (length < (1 << MIN_SIZE_CLASS_SHIFT) || length > (1 << MAX_SIZE_CLASS_SHIFT)) {
+            return -1;
+        }
+
+        // only exact size class buffers are retained
+        if ((length & (length - 1)) != 0) {
+            return -1;
+        }
+
+        return sizeClassIndex(length);
+    }
+
+    // Sizes up to the largest size class are rounded up so that the
+    // returned buffer can be retained when released.
+    public byte[] borrow(int minSize) {
+        if (minSize > (1 << MAX_SIZE_CLASS_SHIFT)) {
+            synchronized (this) {
+                ++_sync_missCount;
+            }
+
+            return new byte[minSize];
+        }
+
+        int index = sizeClassIndex(minSize);
+
+        synchronized (this) {
+            List<byte[]> buffers = _sync_sizeClasses.get(index);
+            int count = buffers.size();
+
+            if (count > 0) {
+                byte[] buffer = buffers.remove(count - 1);
+                _sync_retainedBytes -= buffer.length;
+                ++_sync_hitCount;
+                return buffer;
+            }
+
+            ++_sync_missCount;
+        }
+
+        return new byte[1 << (index + MIN_SIZE_CLASS_SHIFT)];
+    }
+
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int index = sizeClassIndexOfBuffer(buffer);
+
+        if (index < 0) {
+            return;
+        }
+
+        synchronized (this) {
+            if (_sync_retainedBytes + buffer.length > _sync_maxRetainedBytes) {
+                UnityURLClientDebug.d(TAG, "release: dropping buffer of size " + buffer.length);
+                return;
+            }
+
+            _sync_sizeClasses.get(index).add(buffer);
+            _sync_retainedBytes += buffer.length;
+        }
+    }
+
+    public synchronized void setMaxRetainedBytes(long maxRetainedBytes) {
+        _sync_maxRetainedBytes = (maxRetainedBytes < 0) ? 0 : maxRetainedBytes;
+
+        // drop the largest buffers first until we fit into the new limit
+        for (int i = SIZE_CLASS_COUNT - 1; i >= 0 && _sync_retainedBytes > _sync_maxRetainedBytes; --i) {
+            List<byte[]> buffers = _sync_sizeClasses.get(i);
+
+            while (!buffers.isEmpty() && _sync_retainedBytes > _sync_maxRetainedBytes) {
+                byte[] buffer = buffers.remove(buffers.size() - 1);
+                _sync_retainedBytes -= buffer.length;
+            }
+        }
+    }
+
+    public synchronized long getMaxRetainedBytes() {
+        return _sync_maxRetainedBytes;
+    }
+
+    public synchronized long getRetainedBytes() {
+        return _sync_retainedBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return _sync_hitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return _sync_missCount;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+// Picks the size of a connection's transfer buffer. The first buffer is
+// sized after the expected content length, so small responses get small
+// buffers, and later buffers follow the observed throughput so that each
+// read covers about TARGET_READ_INTERVAL worth of data.
+public class UnityURLClientBufferSizer {
+    public static final int DEFAULT_MIN_SIZE = 4096;
+    public static final int DEFAULT_MAX_SIZE = 1024 * 1024;
+    public static final int DEFAULT_INITIAL_SIZE = 16384;
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long SAMPLE_INTERVAL = 250;
+    private static final long TARGET_READ_INTERVAL = 50;
+
+    private int _minSize = DEFAULT_MIN_SIZE;
+    private int _maxSize = DEFAULT_MAX_SIZE;
+    private long _sampleStartTime;
+    private long _sampleBytes;
+
+    public void setLimits(int minSize, int maxSize) {
+        _minSize = (minSize < 1) ? 1 : minSize;
+        _maxSize = (maxSize < _minSize) ? _minSize : maxSize;
+    }
+
+    private int clamp(long size) {
+        if (size < _minSize) {
+            return _minSize;
+        }
+
+        if (size > _maxSize) {
+            return _maxSize;
+        }
+
+        // rounded to a power of two, the buffer pool's size classes
+        int rounded = Integer.highestOneBit((int)size);
+
+        if (rounded < size) {
+            rounded <<= 1;
+        }
+
+        return (rounded > _maxSize) ? _maxSize : rounded;
+    }
+
+    // expectedLength is -1 when unknown.
+    public int getInitialSize(long expectedLength) {
+        _sampleStartTime = 0;
+        _sampleBytes = 0;
+
+        if (expectedLength >= 0 && expectedLength < DEFAULT_INITIAL_SIZE) {
+            return clamp(expectedLength);
+        }
+
+        return clamp(DEFAULT_INITIAL_SIZE);
+    }
+
+    // Called after every read with the current buffer size. Returns the
+    // size the buffer should have from now on, changing by at most a factor
+    // of two per sample.
+    public int update(int bytesRead, int currentSize) {
+        return update(bytesRead, currentSize, System.nanoTime());
+    }
+
+    // now is in System.nanoTime units.
+    int update(int bytesRead, int currentSize, long now) {
+        if (_sampleStartTime == 0) {
+            _sampleStartTime = now;
+            _sampleBytes = 0;
+            return currentSize;
+        }
+
+        _sampleBytes += bytesRead;
+        long elapsed = (now - _sampleStartTime) / NANOS_PER_MILLI;
+
+        if (elapsed < SAMPLE_INTERVAL) {
+            return currentSize;
+        }
+
+        long targetSize = _sampleBytes * TARGET_READ_INTERVAL / elapsed;
+        _sampleStartTime = now;
+        _sampleBytes = 0;
+
+        if (targetSize > (long)currentSize * 2) {
+            targetSize = (long)currentSize * 2;
+        }
+        else if (targetSize < currentSize / 2) {
+            targetSize = currentSize / 2;
+        }
+
+        return clamp(targetSize);
+    }
+}
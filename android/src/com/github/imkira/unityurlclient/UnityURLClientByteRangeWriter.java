@@ -0,0 +1,360 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+// Writes the byte ranges of a (possibly multipart/byteranges) response in
+// place into a destination file. The response is parsed as it arrives, and
+// the requested ranges that are fully written are remembered so that only
+// the rest have to be requested again.
+public class UnityURLClientByteRangeWriter {
+    private static final String TAG = "UnityURLClientByteRangeWriter";
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    private enum Step {
+        Delimiter,
+        Headers,
+        Data,
+        Done,
+    }
+
+    private String _dstPath;
+    private RandomAccessFile _file;
+    private List<long[]> _ranges = new ArrayList<long[]>();
+    private List<long[]> _sync_writtenRanges = new ArrayList<long[]>();
+
+    private Step _step;
+    private boolean _isMultipart;
+    private String _delimiter;
+    private ByteArrayOutputStream _line = new ByteArrayOutputStream();
+    private long _partFrom;
+    private long _partTo;
+    private long _partPosition;
+
+    // ranges holds inclusive from/to pairs.
+    public UnityURLClientByteRangeWriter(long[] ranges) throws IOException {
+        if (ranges == null || ranges.length == 0 || (ranges.length % 2) != 0) {
+            throw new IOException("Invalid ranges.");
+        }
+
+        for (int i = 0; i < ranges.length; i += 2) {
+            if (ranges[i] < 0 || ranges[i] > ranges[i + 1]) {
+                throw new IOException("Invalid range: " + ranges[i] + "-" + ranges[i + 1]);
+            }
+
+            _ranges.add(new long[] { ranges[i], ranges[i + 1] });
+        }
+    }
+
+    public void open(String dstPath) throws IOException {
+        _dstPath = dstPath;
+        ensureOpen();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (_file == null) {
+            _file = new RandomAccessFile(_dstPath, "rw");
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if (_file != null) {
+                _file.close();
+            }
+        }
+        catch (IOException e) {
+            UnityURLClientDebug.e(TAG, "close:" + e.toString());
+        }
+
+        _file = null;
+    }
+
+    private synchronized boolean isWritten(long[] range) {
+        for (int i = 0; i < _sync_writtenRanges.size(); ++i) {
+            long[] written = _sync_writtenRanges.get(i);
+
+            if (written[0] <= range[0] && range[1] <= written[1]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public List<long[]> getPendingRanges() {
+        List<long[]> pending = new ArrayList<long[]>();
+
+        for (int i = 0; i < _ranges.size(); ++i) {
+            if (!isWritten(_ranges.get(i))) {
+                pending.add(_ranges.get(i));
+            }
+        }
+
+        return pending;
+    }
+
+    public long getPendingLength() {
+        List<long[]> pending = getPendingRanges();
+        long length = 0;
+
+        for (int i = 0; i < pending.size(); ++i) {
+            length += pending.get(i)[1] - pending.get(i)[0] + 1;
+        }
+
+        return length;
+    }
+
+    public String getRangeHeader() {
+        List<long[]> pending = getPendingRanges();
+        StringBuilder str = new StringBuilder("bytes=");
+
+        for (int i = 0; i < pending.size(); ++i) {
+            if (i != 0) {
+                str.append(',');
+            }
+
+            str.append(pending.get(i)[0]).append('-').append(pending.get(i)[1]);
+        }
+
+        return str.toString();
+    }
+
+    // Returns the first byte position of a "bytes from-to/length"
+    // Content-Range, or -1 if it cannot be parsed. The last byte position
+    // is stored in to[0].
+    public static long parseContentRange(String contentRange, long[] to) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        String value = contentRange.trim();
+
+        if (!value.regionMatches(true, 0, "bytes ", 0, 6)) {
+            return -1;
+        }
+
+        int dash = value.indexOf('-', 6);
+        int slash = value.indexOf('/', 6);
+
+        if (dash < 0 || slash < dash) {
+            return -1;
+        }
+
+        try {
+            long from = Long.parseLong(value.substring(6, dash).trim());
+            to[0] = Long.parseLong(value.substring(dash + 1, slash).trim());
+            return (from <= to[0]) ? from : -1;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String parseBoundary(String contentType) {
+        if (contentType == null || !contentType.toLowerCase().startsWith("multipart/byteranges")) {
+            return null;
+        }
+
+        String[] parameters = contentType.split(";");
+
+        for (int i = 1; i < parameters.length; ++i) {
+            String parameter = parameters[i].trim();
+
+            if (parameter.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String boundary = parameter.substring(9).trim();
+
+                if (boundary.length() >= 2 && boundary.startsWith("\"") && boundary.endsWith("\"")) {
+                    boundary = boundary.substring(1, boundary.length() - 1);
+                }
+
+                return boundary;
+            }
+        }
+
+        return null;
+    }
+
+    // Prepares for the body of a response. A 200 response carries the whole
+    // file, a 206 response either a single range or multipart/byteranges.
+    public void begin(int responseCode, String contentType, String contentRange) throws IOException {
+        _line.reset();
+        _isMultipart = false;
+
+        if (responseCode == 200) {
+            beginPart(0, Long.MAX_VALUE - 1);
+            return;
+        }
+
+        if (responseCode != 206) {
+            throw new IOException("Unexpected response code: " + responseCode);
+        }
+
+        String boundary = parseBoundary(contentType);
+
+        if (boundary != null) {
+            _isMultipart = true;
+            _delimiter = "--" + boundary;
+            _step = Step.Delimiter;
+            return;
+        }
+
+        long[] to = new long[1];
+        long from = parseContentRange(contentRange, to);
+
+        if (from < 0) {
+            throw new IOException("Invalid Content-Range: " + contentRange);
+        }
+
+        beginPart(from, to[0]);
+    }
+
+    private void beginPart(long from, long to) {
+        _partFrom = from;
+        _partTo = to;
+        _partPosition = from;
+        _step = Step.Data;
+    }
+
+    private void endPart() {
+        markWritten(_partFrom, _partPosition - 1);
+        _step = _isMultipart ? Step.Delimiter : Step.Done;
+    }
+
+    public synchronized void markWritten(long from, long to) {
+        if (from <= to) {
+            _sync_writtenRanges.add(new long[] { from, to });
+        }
+    }
+
+    public synchronized void writeAt(long position, byte[] buffer, int offset, int length) throws IOException {
+        ensureOpen();
+        _file.seek(position);
+        _file.write(buffer, offset, length);
+    }
+
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0 && _step != Step.Done) {
+            int consumed;
+
+            if (_step == Step.Data) {
+                long remaining = _partTo - _partPosition + 1;
+                consumed = (int)((length < remaining) ? length : remaining);
+                writeAt(_partPosition, buffer, offset, consumed);
+                _partPosition += consumed;
+
+                if (_partPosition > _partTo) {
+                    endPart();
+                }
+            }
+            else {
+                consumed = readLine(buffer, offset, length);
+            }
+
+            offset += consumed;
+            length -= consumed;
+        }
+    }
+
+    private int readLine(byte[] buffer, int offset, int length) throws IOException {
+        int consumed = 0;
+
+        while (consumed < length) {
+            byte b = buffer[offset + consumed++];
+
+            if (b == '\n') {
+                String line = _line.toString("ISO-8859-1").trim();
+                _line.reset();
+                onLine(line);
+                break;
+            }
+
+            if (_line.size() >= MAX_LINE_LENGTH) {
+                throw new IOException("Multipart line too long.");
+            }
+
+            _line.write(b);
+        }
+
+        return consumed;
+    }
+
+    private void onLine(String line) throws IOException {
+        if (_step == Step.Delimiter) {
+            if (line.equals(_delimiter + "--")) {
+                _step = Step.Done;
+            }
+            else if (line.equals(_delimiter)) {
+                _partFrom = -1;
+                _step = Step.Headers;
+            }
+
+            // anything else is preamble or the line break ending a part
+            return;
+        }
+
+        if (line.length() > 0) {
+            if (line.regionMatches(true, 0, "Content-Range:", 0, 14)) {
+                long[] to = new long[1];
+                _partFrom = parseContentRange(line.substring(14), to);
+                _partTo = to[0];
+            }
+
+            return;
+        }
+
+        if (_partFrom < 0) {
+            throw new IOException("Missing Content-Range in multipart response.");
+        }
+
+        beginPart(_partFrom, _partTo);
+    }
+
+    // Throws if the response ended in the middle of a part. Parts that were
+    // only written partially are requested again anyway.
+    public void finish() throws IOException {
+        if (_step == Step.Data && _partTo == Long.MAX_VALUE - 1) {
+            // a whole file response ends with the file
+            _step = Step.Done;
+            markWritten(_partFrom, _partPosition - 1);
+            truncate(_partPosition);
+            return;
+        }
+
+        if (_step != Step.Done && !(_isMultipart && _step == Step.Delimiter)) {
+            throw new IOException("Response is truncated.");
+        }
+    }
+
+    private synchronized void truncate(long length) throws IOException {
+        ensureOpen();
+        _file.setLength(length);
+    }
+}
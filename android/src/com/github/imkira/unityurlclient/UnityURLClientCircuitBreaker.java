@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+// Per host circuit breaker. After failureThreshold requests in a row fail
+// to reach a host, the circuit opens and further requests to it fail right
+// away instead of waiting out their timeouts. Once openDuration has passed
+// the circuit is half open: a single probe request is let through, and its
+// outcome closes the circuit again or keeps it open for another period.
+// Only hosts that are failing have an entry.
+public class UnityURLClientCircuitBreaker {
+    private static final String TAG = "UnityURLClientCircuitBreaker";
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION = 30 * 1000;
+
+    public enum State {
+        ClosedState,
+        OpenState,
+        HalfOpenState,
+    }
+
+    private static class Circuit {
+        State state = State.ClosedState;
+        int failureCount;
+        long openedTime;
+        Object probeOwner;
+    }
+
+    private Map<String,Circuit> _sync_circuits = new HashMap<String,Circuit>();
+    private int _sync_failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private long _sync_openDuration = DEFAULT_OPEN_DURATION;
+    private long _sync_rejectedCount;
+
+    public static String getHostKey(URL url) {
+        int port = (url.getPort() != -1) ? url.getPort() : url.getDefaultPort();
+        return url.getHost().toLowerCase() + ":" + port;
+    }
+
+    // A failureThreshold of 0 disables the circuit breaker.
+    public synchronized void setPolicy(int failureThreshold, long openDuration) {
+        _sync_failureThreshold = (failureThreshold > 0) ? failureThreshold : 0;
+        _sync_openDuration = (openDuration > 0) ? openDuration : 0;
+
+        if (_sync_failureThreshold == 0) {
+            _sync_circuits.clear();
+        }
+    }
+
+    public synchronized void reset() {
+        _sync_circuits.clear();
+    }
+
+    public synchronized State getState(String host) {
+        Circuit circuit = _sync_circuits.get(host);
+        return (circuit != null) ? circuit.state : State.ClosedState;
+    }
+
+    public synchronized long getRejectedCount() {
+        return _sync_rejectedCount;
+    }
+
+    public synchronized boolean allowRequest(String host, Object owner) {
+        Circuit circuit = _sync_circuits.get(host);
+
+        if (_sync_failureThreshold == 0 || circuit == null || circuit.state == State.ClosedState) {
+            return true;
+        }
+
+        if (circuit.state == State.OpenState) {
+            if (System.currentTimeMillis() - circuit.openedTime < _sync_openDuration) {
+                ++_sync_rejectedCount;
+                return false;
+            }
+
+            UnityURLClientDebug.d(TAG, "allowRequest: half open: " + host);
+            circuit.state = State.HalfOpenState;
+        }
+
+        // half open, so only one probe at a time
+        if (circuit.probeOwner != null) {
+            ++_sync_rejectedCount;
+            return false;
+        }
+
+        circuit.probeOwner = owner;
+        return true;
+    }
+
+    // Any response at all shows that the host is reachable.
+    public synchronized void recordSuccess(String host, Object owner) {
+        Circuit circuit = _sync_circuits.remove(host);
+
+        if (circuit != null && circuit.state != State.ClosedState) {
+            UnityURLClientDebug.d(TAG, "recordSuccess: closed: " + host);
+        }
+    }
+
+    public synchronized void recordFailure(String host, Object owner) {
+        if (_sync_failureThreshold == 0) {
+            return;
+        }
+
+        Circuit circuit = _sync_circuits.get(host);
+
+        if (circuit == null) {
+            circuit = new Circuit();
+            _sync_circuits.put(host, circuit);
+        }
+
+        if (circuit.state == State.ClosedState) {
+            if (++circuit.failureCount < _sync_failureThreshold) {
+                return;
+            }
+        }
+        // requests sent before the circuit opened are still failing
+        else if (circuit.probeOwner != owner) {
+            return;
+        }
+
+        UnityURLClientDebug.d(TAG, "recordFailure: open: " + host);
+        circuit.state = State.OpenState;
+        circuit.openedTime = System.currentTimeMillis();
+        circuit.probeOwner = null;
+    }
+
+    // Called when a request ends without telling whether the host is up,
+    // so that the next request may probe it instead.
+    public synchronized void release(String host, Object owner) {
+        Circuit circuit = _sync_circuits.get(host);
+
+        if (circuit != null && circuit.probeOwner == owner) {
+            circuit.probeOwner = null;
+        }
+    }
+}
@@ -26,31 +26,67 @@ package com.github.imkira.unityurlclient;
 import java.io.*;
 import java.util.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
 import javax.net.ssl.*;
 import android.util.*;
-import android.os.*;
+import android.util.Base64;
 
 public class UnityURLClientConnection implements Runnable {
     private static final String TAG = "UnityURLClientConnection";
-    public class HttpAsyncTask extends AsyncTask<UnityURLClientConnection, Void, Boolean> {
-        @Override
-        protected Boolean doInBackground(UnityURLClientConnection... conn) {
-            return conn[0].doInBackground();
-        }
 
-        @Override
-        protected void onPostExecute(Boolean result) {
-            // do nothing
+    public class DirectByteArrayOutputStream extends ByteArrayOutputStream {
+        public DirectByteArrayOutputStream() {
+            super(0);
         }
-    }
 
-    public class DirectByteArrayOutputStream extends ByteArrayOutputStream {
         public byte[] directBuf() {
             return this.buf;
         }
+
         public int directCount() {
             return this.count;
         }
+
+        private void ensureCapacity(int minCapacity) {
+            if (minCapacity <= this.buf.length) {
+                return;
+            }
+
+            int newCapacity = this.buf.length << 1;
+
+            if (newCapacity < minCapacity) {
+                newCapacity = minCapacity;
+            }
+
+            byte[] newBuf = borrowBuffer(newCapacity);
+            System.arraycopy(this.buf, 0, newBuf, 0, this.count);
+            releaseBuffer(this.buf);
+            this.buf = newBuf;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            ensureCapacity(this.count + 1);
+            this.buf[this.count++] = (byte)b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            if (off < 0 || len < 0 || off > b.length - len) {
+                throw new IndexOutOfBoundsException();
+            }
+
+            ensureCapacity(this.count + len);
+            System.arraycopy(b, off, this.buf, this.count, len);
+            this.count += len;
+        }
+
+        public synchronized void releaseBuf() {
+            releaseBuffer(this.buf);
+            this.buf = new byte[0];
+            this.count = 0;
+        }
     }
 
     public enum State {
@@ -120,19 +156,86 @@ public class UnityURLClientConnection implements Runnable {
     }
 
     public int connectionID;
-
-    private HttpURLConnection _connection;
+    UnityURLClientConnectionManager manager;
+    UnityURLClientPrefetchGroup prefetchGroup;
+    // updated by the manager whenever Unity looks the connection up
+    volatile long lastAccessTime = System.currentTimeMillis();
+
+    private volatile HttpURLConnection _connection;
+    private List<HttpURLConnection> _sync_openConnections = new ArrayList<HttpURLConnection>();
+    private UnityURLClientHappyEyeballs.Race _sync_addressRace;
+    private InetAddress _attemptAddress;
+    private String _attemptAddressHost;
+    private boolean _isHedgingEnabled;
+    private long _hedgeDelay;
+    private int _hedgePercentile = UnityURLClientHedgingPolicy.DEFAULT_PERCENTILE;
+    // a hedge that won, which performAttempt closes after the primary
+    private HttpURLConnection _hedgeConnection;
+    private HttpURLConnection _sync_hedgeConnection;
+    private HttpURLConnection _sync_hedgeWinner;
+    private boolean _sync_isHedgeRunning;
+    private String _circuitHost;
+    private String _method;
+    private URL _url;
+    private int _cachePolicy;
+    private long _connectTimeout;
+    private long _readTimeout;
+    private long _totalTimeout;
+    private volatile long _totalDeadline;
+    private volatile long _connectDeadline;
+    private volatile long _readDeadline;
+    private volatile boolean _isAttemptTimedOut;
+    private UnityURLClientTimerWheel.Timeout _watchdog;
+    private Map<String,String> _requestHeaders = new LinkedHashMap<String,String>();
+    private boolean _followRedirects = true;
+    private int _maxRedirects = -1;
+    private URL _attemptURL;
+    private String _attemptMethod;
+    private boolean _isRequestBodyDropped;
+    private boolean _isUsingCachedRedirect;
+    private URL _redirectURL;
+    private int _sync_redirectCount;
+    private URL _sync_responseURL;
+    private boolean _allowInvalidSSLCertificate;
+    private volatile int _priority;
+    long scheduleSequence;
+    private boolean _sync_isPauseRequested;
+    private boolean _sync_isPaused;
+    private UnityURLClientRetryPolicy _retryPolicy;
+    private UnityURLClientError.Error _sync_attemptError = UnityURLClientError.Error.NoneError;
+    private int _sync_retryCount;
+    private volatile boolean _resumeWrittenContent;
+    private UnityURLClientDigestVerifier _verifier;
+    private int _sync_refetchedChunkCount;
+    private UnityURLClientArchiveExtractor _extractor;
+    private long _extractOffset;
     private String _srcPath;
     private byte[] _requestContent;
     private long _requestContentLength;
+    private ByteBuffer _sync_requestContentBuffer;
+    private UnityURLClientMultipartBody _sync_multipartBody;
+    private boolean _sync_isWorkerRunning;
     private String _dstPath;
     private boolean _dstFileResume;
+    private boolean _isConditional = true;
+    private UnityURLClientValidators _validators;
+    private UnityURLClientByteRangeWriter _rangeWriter;
+    private UnityURLClientResumableUpload _resumableUpload;
+    private long _attemptContentLength = -1;
+    private long _sync_requestContentLengthSent;
+    private long _sync_requestContentLengthExpected;
+    private int _sync_rangeFallbackCount;
+    private int _sync_rangeReadCount;
     private boolean _sync_isResponseDirty;
 
     private ArrayList<Range> _sync_acceptableStatusCodeRanges;
     private DirectByteArrayOutputStream _sync_memoryOutputStream;
     private DirectByteArrayOutputStream _sync_pendingMemoryOutputStream;
     private FileOutputStream _sync_fileOutputStream;
+    private UnityURLClientDiskWriter _sync_diskWriter;
+    private int _diskWriteQueueCapacity = UnityURLClientDiskWriter.DEFAULT_QUEUE_CAPACITY;
+    private long _diskWriteSyncInterval;
+    private boolean _diskWriteSyncOnClose;
     private long _sync_dstFileSize;
 
     private UnityURLClientError.Error _sync_error = UnityURLClientError.Error.NoneError;
@@ -145,11 +248,232 @@ public class UnityURLClientConnection implements Runnable {
     private long _sync_responseContentLengthRead;
     private long _sync_pendingResponseContentOffset;
     private long _sync_expectedContentLength;
+    private long _sync_bufferedBytesHighWatermark;
+    private long _sync_bufferedBytesLowWatermark;
+    private long _sync_globalBufferedBytes;
+    private long _sync_bufferedBytesChangeTime = System.currentTimeMillis();
+    private UnityURLClientTokenBucket _bandwidth = new UnityURLClientTokenBucket();
+    private UnityURLClientBufferSizer _bufferSizer = new UnityURLClientBufferSizer();
+    private volatile int _bufferSize;
 
     private static final int BUFFER_SIZE = 65536;
+    private static final int DEFAULT_MAX_REDIRECTS = 20;
+    private static final int MAX_RANGE_FALLBACK_THREADS = 4;
+    private static final int MAX_RESUMABLE_UPLOAD_FAILURES = 3;
+    private static final long BUFFER_SPACE_WAIT_INTERVAL = 100;
+    private static final long BANDWIDTH_WAIT_INTERVAL = 100;
+    private static final long RETRY_WAIT_INTERVAL = 100;
+    private static final long HEDGE_WAIT_INTERVAL = 100;
+    private static final long WATCHDOG_INTERVAL = 1000;
+
+    private byte[] borrowBuffer(int minSize) {
+        UnityURLClientConnectionManager m = manager;
+
+        if (m == null) {
+            return new byte[minSize];
+        }
+
+        return m.getBufferPool().borrow(minSize);
+    }
+
+    private void releaseBuffer(byte[] buffer) {
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null) {
+            m.getBufferPool().release(buffer);
+        }
+    }
+
+    private long _sync_getBufferedResponseBytes() {
+        long length = 0;
+
+        if (_sync_pendingMemoryOutputStream != null) {
+            length += (long)_sync_pendingMemoryOutputStream.size() - _sync_pendingResponseContentOffset;
+        }
+
+        if (_sync_memoryOutputStream != null) {
+            length += (long)_sync_memoryOutputStream.size();
+        }
+
+        return length;
+    }
+
+    // Must not be called while holding this connection's monitor, since the
+    // manager locks in the opposite order while waiting for buffer space.
+    private void updateGlobalResponseBufferedBytes() {
+        long delta;
+
+        synchronized (this) {
+            long bufferedBytes = _sync_getBufferedResponseBytes();
+            delta = bufferedBytes - _sync_globalBufferedBytes;
+            _sync_globalBufferedBytes = bufferedBytes;
+
+            if (delta != 0) {
+                _sync_bufferedBytesChangeTime = System.currentTimeMillis();
+            }
+        }
+
+        UnityURLClientConnectionManager m = manager;
+
+        if (delta != 0 && m != null) {
+            m.addResponseBufferedBytes(delta);
+        }
+    }
+
+    private boolean isResponseBufferFull() {
+        UnityURLClientConnectionManager m = manager;
+
+        synchronized (this) {
+            if (_sync_memoryOutputStream == null) {
+                return false;
+            }
+
+            if (_sync_bufferedBytesHighWatermark > 0 &&
+                    _sync_getBufferedResponseBytes() >= _sync_bufferedBytesHighWatermark) {
+                return true;
+            }
+        }
+
+        return m != null && m.isResponseBufferFull();
+    }
+
+    // Gives up the scheduler slot while waiting for something other than
+    // the network, so that queued connections can run meanwhile.
+    private boolean releaseSlot() {
+        UnityURLClientConnectionManager m = manager;
+        return m != null && m.getScheduler().releaseSlot(this);
+    }
+
+    private boolean reacquireSlot(boolean isSlotReleased) {
+        UnityURLClientConnectionManager m = manager;
+        return !isSlotReleased || m == null || m.getScheduler().reacquireSlot(this);
+    }
+
+    private boolean waitForResponseBufferSpace() {
+        if (!isResponseBufferFull()) {
+            return !isCancelledImmediately();
+        }
+
+        // Unity may take a while to drain the response
+        boolean isSlotReleased = releaseSlot();
+        boolean isMemoryMode;
+
+        synchronized (this) {
+            if (_sync_memoryOutputStream != null && _sync_bufferedBytesHighWatermark > 0 &&
+                    _sync_getBufferedResponseBytes() >= _sync_bufferedBytesHighWatermark) {
+                UnityURLClientDebug.d(TAG, "waitForResponseBufferSpace: high watermark reached.");
+
+                while (!_sync_isCancelledImmediately && _sync_bufferedBytesHighWatermark > 0 &&
+                        _sync_getBufferedResponseBytes() > _sync_bufferedBytesLowWatermark) {
+                    try {
+                        wait(BUFFER_SPACE_WAIT_INTERVAL);
+                    }
+                    catch (InterruptedException e) {
+                        return false;
+                    }
+                }
+            }
+
+            if (_sync_isCancelledImmediately) {
+                return false;
+            }
+
+            isMemoryMode = (_sync_memoryOutputStream != null);
+        }
+
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null && isMemoryMode) {
+            while (m.isResponseBufferFull()) {
+                if (isCancelledImmediately()) {
+                    return false;
+                }
+
+                try {
+                    m.waitForResponseBufferSpace(BUFFER_SPACE_WAIT_INTERVAL);
+                }
+                catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+
+        return !isCancelledImmediately() && reacquireSlot(isSlotReleased);
+    }
+
+    private int getThrottledChunkSize(int maxChunkSize) {
+        int chunkSize = _bandwidth.getChunkSize(maxChunkSize);
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null) {
+            chunkSize = m.getBandwidth().getChunkSize(chunkSize);
+        }
+
+        return chunkSize;
+    }
+
+    // Sleeps without holding any monitor, so that the getters polled by
+    // Unity are never blocked by a throttled connection.
+    private boolean waitForBandwidth() {
+        UnityURLClientConnectionManager m = manager;
+
+        for (;;) {
+            if (isCancelledImmediately()) {
+                return false;
+            }
+
+            long waitTime = _bandwidth.getWaitTime();
+
+            if (m != null) {
+                long globalWaitTime = m.getBandwidth().getWaitTime();
+
+                if (globalWaitTime > waitTime) {
+                    waitTime = globalWaitTime;
+                }
+            }
+
+            if (waitTime <= 0) {
+                return true;
+            }
+
+            try {
+                Thread.sleep((waitTime < BANDWIDTH_WAIT_INTERVAL) ? waitTime : BANDWIDTH_WAIT_INTERVAL);
+            }
+            catch (InterruptedException e) {
+                return false;
+            }
+        }
+    }
+
+    private void consumeBandwidth(int size) {
+        _bandwidth.consume(size);
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null) {
+            m.getBandwidth().consume(size);
+        }
+    }
 
     private synchronized void reportError(UnityURLClientError.Error error) {
+        _sync_setError(error);
+    }
+
+    private void _sync_setError(UnityURLClientError.Error error) {
+        boolean hadError = (_sync_error != UnityURLClientError.Error.NoneError);
         _sync_error = error;
+
+        if (!hadError && error != UnityURLClientError.Error.NoneError) {
+            _sync_postEvent(UnityURLClientEventQueue.EVENT_ERROR);
+        }
+    }
+
+    private void _sync_postEvent(int event) {
+        UnityURLClientConnectionManager m = manager;
+
+        // prefetch connections are not visible to Unity
+        if (m != null && connectionID != 0) {
+            m.getEventQueue().post(connectionID, event);
+        }
     }
 
     private synchronized boolean isCancelledImmediately() {
@@ -164,7 +488,13 @@ public class UnityURLClientConnection implements Runnable {
         try {
             _sync_dstFileSize = 0;
 
-            if (_sync_fileOutputStream != null) {
+            if (_sync_diskWriter != null) {
+                // the writer thread closes the file once it stops
+                _sync_diskWriter.abort();
+                _sync_diskWriter = null;
+                _sync_fileOutputStream = null;
+            }
+            else if (_sync_fileOutputStream != null) {
                 _sync_fileOutputStream.flush();
                 _sync_fileOutputStream.close();
                 _sync_fileOutputStream = null;
@@ -210,16 +540,15 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "processResponse(0)");
 
         if (connection == null) {
-            cancelWithError(UnityURLClientError.Error.InitConnectionError);
-            return false;
+            return failAttempt(UnityURLClientError.Error.InitConnectionError);
         }
 
         UnityURLClientDebug.d(TAG, "processResponse(1)");
 
         synchronized (this) {
-            if (_sync_memoryOutputStream == null && _sync_fileOutputStream == null) {
-                cancelWithError(UnityURLClientError.Error.InitConnectionError);
-                return false;
+            if (_sync_memoryOutputStream == null && _sync_fileOutputStream == null && _extractor == null &&
+                    _validators == null && _rangeWriter == null) {
+                return failAttempt(UnityURLClientError.Error.InitConnectionError);
             }
         }
 
@@ -232,16 +561,23 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "processResponse(3)");
 
         try {
-            if (connection != null) {
+            if (isHedgingAllowed()) {
+                connection = connectHedged(connection);
+            }
+            else {
                 connection.connect();
             }
         }
         catch (Exception e) {
             UnityURLClientDebug.e(TAG, "processResponse(): connection() failed. " + e.toString());
-            cancelWithError(UnityURLClientError.Error.InitConnectionError);
-            return false;
+            invalidateAttemptAddress();
+            return failAttempt(errorForException(e, UnityURLClientError.Error.InitConnectionError));
         }
 
+        // waiting for the response headers counts as a read
+        _connectDeadline = 0;
+        beginRead();
+
         UnityURLClientDebug.d(TAG, "processResponse(4)");
 
         if (isCancelledImmediately()) {
@@ -253,22 +589,50 @@ public class UnityURLClientConnection implements Runnable {
         int responseCode = 0;
         Map<String,List<String>> responseHeader = null;
         long expectedContentLength = -1;
+        long resumedContentLength = 0;
+        boolean isNotModified = false;
+
+        boolean isResponseCodeRead = false;
 
         try {
             responseCode = connection.getResponseCode();
+            isResponseCodeRead = true;
         }
         catch (IOException e) {
             UnityURLClientDebug.e(TAG, "processResponse(): IOException: " + e.toString());
+
+            if (isCancelledImmediately()) {
+                return false;
+            }
+
+            // the host never answered, which counts against its circuit; a
+            // socket aborted by the watchdog fails as a timeout
+            if (_isAttemptTimedOut || errorForException(e, null) != null) {
+                return failAttempt(errorForException(e, UnityURLClientError.Error.ConnectionLostError));
+            }
+
             responseCode = 401;
         }
         catch (Exception e) {
             UnityURLClientDebug.e(TAG, "processResponse(): " + e.toString());
-            cancelWithError(UnityURLClientError.Error.InitConnectionError);
-            return false;
+            return failAttempt(UnityURLClientError.Error.InitConnectionError);
         }
 
+        endRead();
+
+        if (isResponseCodeRead) {
+            reportCircuitResult(true);
+        }
         UnityURLClientDebug.d(TAG, "processResponse(): responseCode:" + responseCode);
 
+        if (_followRedirects && isRedirectStatusCode(responseCode)) {
+            String location = connection.getHeaderField("Location");
+
+            if (location != null) {
+                return followRedirect(location, responseCode);
+            }
+        }
+
         try {
             responseHeader = connection.getHeaderFields();
             String contentEncoding = connection.getContentEncoding();
@@ -279,8 +643,7 @@ public class UnityURLClientConnection implements Runnable {
         }
         catch (Exception e) {
             UnityURLClientDebug.e(TAG, "processResponse(): " + e.toString());
-            cancelWithError(UnityURLClientError.Error.InitConnectionError);
-            return false;
+            return failAttempt(UnityURLClientError.Error.InitConnectionError);
         }
 
         UnityURLClientDebug.d(TAG, "processResponse(6)");
@@ -305,15 +668,38 @@ public class UnityURLClientConnection implements Runnable {
             UnityURLClientDebug.d(TAG, "processResponse: _sync_isResponseDirty is true.");
             _sync_isResponseDirty = true;
 
-            if (_dstPath != null) {
-                if (_dstFileResume) {
+            if (_rangeWriter != null) {
+                // ranges are written in place by the range writer
+            }
+            else if (_dstPath != null) {
+                if (_validators != null) {
+                    if (responseCode == 304) {
+                        // the existing file is left untouched
+                        isNotModified = true;
+                        _sync_expectedContentLength = 0;
+                        _sync_responseContentLengthResumed = _validators.length;
+                    }
+                    else {
+                        // a full response replaces the file from scratch
+                        _validators = null;
+                        removeDestinationFile();
+
+                        if (!openDestinationFile()) {
+                            return failAttempt(UnityURLClientError.Error.CreateDestinationFileError);
+                        }
+                    }
+                }
+
+                if (isNotModified) {
+                    // nothing else to do
+                }
+                else if (isResumeAllowed()) {
                     if (responseCode == 416) {
                         // Invalid resume position specified.
                         UnityURLClientDebug.e(TAG, "processResponse: Invalid resume position specified. " + _dstPath);
                         _sync_closeOutputStreamImmediately();
                         removeDestinationFile();
-                        cancelWithError(UnityURLClientError.Error.InvalidResumeOffsetError);
-                        return false;
+                        return failAttempt(UnityURLClientError.Error.InvalidResumeOffsetError);
                     }
 
                     if (responseCode == 206) {
@@ -326,14 +712,22 @@ public class UnityURLClientConnection implements Runnable {
                             removeDestinationFile();
 
                             if (!openDestinationFile()) {
-                                cancelWithError(UnityURLClientError.Error.CreateDestinationFileError);
-                                return false;
+                                return failAttempt(UnityURLClientError.Error.CreateDestinationFileError);
                             }
                         }
                     }
 
                     _sync_responseContentLengthResumed = _sync_dstFileSize;
                 }
+
+                resumedContentLength = _sync_responseContentLengthResumed;
+            }
+            else if (_extractor != null) {
+                if (responseCode == 206) {
+                    _sync_responseContentLengthResumed = _extractOffset;
+                }
+
+                resumedContentLength = _sync_responseContentLengthResumed;
             }
             else {
                 if (_sync_memoryOutputStream != null) {
@@ -345,15 +739,76 @@ public class UnityURLClientConnection implements Runnable {
                 }
             }
 
-            changeState(State.ReceivingDataState, true);
+            if (changeState(State.ReceivingDataState, true)) {
+                _sync_postEvent(UnityURLClientEventQueue.EVENT_HEADERS_READY);
+            }
+        }
+
+        updateGlobalResponseBufferedBytes();
+
+        if (isNotModified) {
+            UnityURLClientDebug.d(TAG, "processResponse: Not modified. " + _dstPath);
+            changeState(State.FinishedState, false);
+            return true;
+        }
+
+        if (_extractor != null && responseCode == 416) {
+            // Invalid resume position specified.
+            UnityURLClientDebug.e(TAG, "processResponse: Invalid extraction resume position specified.");
+
+            try {
+                _extractor.begin(0);
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "processResponse(): " + e.toString());
+            }
+
+            return failAttempt(UnityURLClientError.Error.InvalidResumeOffsetError);
+        }
+
+        if (_verifier != null && _dstPath != null && _rangeWriter == null) {
+            byte[] seekBuffer = borrowBuffer(BUFFER_SIZE);
+
+            try {
+                _verifier.seek(_dstPath, resumedContentLength, seekBuffer);
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "processResponse(): verifier seek failed. " + e.toString());
+                return failAttempt(UnityURLClientError.Error.OpenDestinationFileError);
+            }
+            finally {
+                releaseBuffer(seekBuffer);
+            }
         }
 
         UnityURLClientDebug.d(TAG, "processResponse(7)");
 
         if (!isAcceptableStatusCode(responseCode)) {
             UnityURLClientDebug.e(TAG, "processResponse: Can't accept code." + responseCode);
-            cancelWithError(UnityURLClientError.Error.UnacceptableStatusCodeError);
-            return false;
+            return failAttempt(UnityURLClientError.Error.UnacceptableStatusCodeError);
+        }
+
+        if (_rangeWriter != null) {
+            try {
+                _rangeWriter.begin(responseCode, connection.getHeaderField("Content-Type"),
+                                   connection.getHeaderField("Content-Range"));
+            }
+            catch (IOException e) {
+                UnityURLClientDebug.e(TAG, "processResponse(): " + e.toString());
+                return failAttempt((responseCode == 416) ? UnityURLClientError.Error.InvalidResumeOffsetError :
+                                   UnityURLClientError.Error.UnacceptableStatusCodeError);
+            }
+        }
+
+        // the journal is kept until we know the body is the archive itself
+        if (_extractor != null) {
+            try {
+                _extractor.begin(resumedContentLength);
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "processResponse(): extractor begin failed. " + e.toString());
+                return failAttempt(UnityURLClientError.Error.CreateDestinationFileError);
+            }
         }
 
         UnityURLClientDebug.d(TAG, "processResponse(8)");
@@ -361,7 +816,7 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "processResponse(): responseCode:" + responseCode);
         {
             InputStream inputStream = null;
-            BufferedInputStream bufferedInputStream = null;
+            byte buffer[] = null;
 
             try {
                 UnityURLClientDebug.d(TAG, "processResponse(): getInputStream.");
@@ -384,124 +839,1881 @@ public class UnityURLClientConnection implements Runnable {
 
                 if (inputStream != null) {
                     UnityURLClientDebug.d(TAG, "processResponse(): getInputStream succeeded.");
-                    bufferedInputStream = new BufferedInputStream(inputStream, BUFFER_SIZE);
                     int size = 0;
-                    byte buffer[] = new byte[BUFFER_SIZE];
+                    long readLength = 0;
+                    buffer = borrowBuffer(_bufferSizer.getInitialSize(expectedContentLength));
+                    _bufferSize = buffer.length;
+                    UnityURLClientDiskWriter diskWriter = startDiskWriter();
+
+                    for (;;) {
+                        if (!waitForResponseBufferSpace() || !waitForBandwidth()) {
+                            return false;
+                        }
+
+                        beginRead();
+                        size = inputStream.read(buffer, 0, getThrottledChunkSize(buffer.length));
+                        endRead();
+
+                        if (size == -1) {
+                            break;
+                        }
+
+                        readLength += size;
+                        boolean isWrittenToFile = false;
 
-                    while ((size = bufferedInputStream.read(buffer)) != -1) {
                         synchronized (this) {
                             if (_sync_isCancelledImmediately) {
                                 return false;
                             }
 
+                            if (_sync_isPauseRequested) {
+                                UnityURLClientDebug.d(TAG, "processResponse: paused.");
+                                _sync_isPaused = true;
+                                return false;
+                            }
+
                             if (_sync_memoryOutputStream != null) {
                                 _sync_memoryOutputStream.write(buffer, 0, size);
                             }
                             else if (_sync_fileOutputStream != null) {
-                                _sync_fileOutputStream.write(buffer, 0, size);
+                                if (diskWriter == null) {
+                                    _sync_fileOutputStream.write(buffer, 0, size);
+                                }
+
+                                isWrittenToFile = true;
                             }
 
                             _sync_responseContentLengthRead += (long)size;
                         }
+
+                        // entries are written to disk outside the lock too
+                        if (_extractor != null && !extractResponseContent(buffer, size)) {
+                            return false;
+                        }
+
+                        if (_rangeWriter != null && !writeResponseRanges(buffer, size)) {
+                            return false;
+                        }
+
+                        // hash outside the lock so that getters are not held
+                        if (isWrittenToFile && _verifier != null) {
+                            _verifier.update(buffer, 0, size);
+                        }
+
+                        if (isWrittenToFile && diskWriter != null) {
+                            // the disk writer owns the buffer from now on
+                            diskWriter.write(buffer, size);
+                            buffer = borrowBuffer(buffer.length);
+                        }
+
+                        consumeBandwidth(size);
+                        updateGlobalResponseBufferedBytes();
+                        buffer = resizeBuffer(buffer, size);
+
+                        if (prefetchGroup != null && !prefetchGroup.consume(size)) {
+                            cancelPrefetchGroup();
+                            return false;
+                        }
+                    }
+
+                    // some streams report a connection closed halfway
+                    // through the body as its end
+                    if (expectedContentLength >= 0 && readLength < expectedContentLength &&
+                            !"HEAD".equals(_attemptMethod) && responseCode != 204) {
+                        UnityURLClientDebug.e(TAG, "processResponse(): body ended after " + readLength +
+                                              " of " + expectedContentLength + " bytes.");
+                        return failAttempt(UnityURLClientError.Error.ConnectionLostError);
+                    }
+
+                    if (_extractor != null) {
+                        try {
+                            _extractor.finish();
+                        }
+                        catch (IOException e) {
+                            UnityURLClientDebug.e(TAG, "processResponse(): extraction incomplete. " + e.toString());
+                            return failAttempt(UnityURLClientError.Error.ConnectionLostError);
+                        }
+                    }
+
+                    if (_rangeWriter != null) {
+                        try {
+                            _rangeWriter.finish();
+                        }
+                        catch (IOException e) {
+                            UnityURLClientDebug.e(TAG, "processResponse(): ranges incomplete. " + e.toString());
+                            return failAttempt(UnityURLClientError.Error.ConnectionLostError);
+                        }
                     }
                 }
 
+                closeDiskWriter();
                 _sync_closeOutputStreamImmediately();
             }
             catch (IOException e) {
                 UnityURLClientDebug.e(TAG, "processResponse(IOException):" + e.toString());
-                cancelWithError(UnityURLClientError.Error.ConnectionTimeoutError);
-                return false;
+                return failAttempt(errorForException(e, UnityURLClientError.Error.ConnectionTimeoutError));
             }
             catch (Exception e) {
                 UnityURLClientDebug.e(TAG, "processResponse(Exception):" + e.toString());
-                cancelWithError(UnityURLClientError.Error.ConnectionTimeoutError);
-                return false;
+                return failAttempt(UnityURLClientError.Error.ConnectionTimeoutError);
             }
             finally {
                 try {
-                    closeOutputStreamImmediately();
-
-                    if (bufferedInputStream != null) {
-                        bufferedInputStream.close();
-                    }
-
-                    if (inputStream != null) {
-                        inputStream.close();
-                    }
+                    // whatever was read before a pause or failure is kept
+                    closeDiskWriter();
                 }
                 catch (Exception e) {
                     UnityURLClientDebug.e(TAG, "processResponse:" + e.toString());
                 }
+
+                try {
+                    closeOutputStreamImmediately();
+                    releaseBuffer(buffer);
+
+                    if (inputStream != null) {
+                        inputStream.close();
+                    }
+                }
+                catch (Exception e) {
+                    UnityURLClientDebug.e(TAG, "processResponse:" + e.toString());
+                }
+            }
+        }
+
+        UnityURLClientDebug.d(TAG, "processResponse(9)");
+
+        if (_rangeWriter != null) {
+            if (!fetchPendingRanges()) {
+                return false;
+            }
+
+            changeState(State.FinishedState, false);
+            return true;
+        }
+
+        if (_verifier != null && _dstPath != null && !verifyDestinationFile()) {
+            return false;
+        }
+
+        if (_dstPath != null && isConditionalAllowed() && responseCode >= 200 && responseCode < 300) {
+            saveValidators(connection);
+        }
+
+        changeState(State.FinishedState, false);
+        return true;
+    }
+
+    private synchronized UnityURLClientDiskWriter startDiskWriter() {
+        if (_sync_fileOutputStream == null || _sync_memoryOutputStream != null || _diskWriteQueueCapacity <= 0) {
+            return null;
+        }
+
+        UnityURLClientConnectionManager m = manager;
+        _sync_diskWriter = new UnityURLClientDiskWriter(_sync_fileOutputStream,
+            (m != null) ? m.getBufferPool() : null,
+            _diskWriteQueueCapacity, _diskWriteSyncInterval, _diskWriteSyncOnClose);
+        _sync_diskWriter.start();
+        return _sync_diskWriter;
+    }
+
+    // Waits until everything queued is on disk and the writer thread has
+    // closed the file.
+    private void closeDiskWriter() throws IOException {
+        UnityURLClientDiskWriter diskWriter;
+
+        synchronized (this) {
+            diskWriter = _sync_diskWriter;
+        }
+
+        if (diskWriter == null) {
+            return;
+        }
+
+        try {
+            diskWriter.close();
+        }
+        finally {
+            synchronized (this) {
+                if (_sync_diskWriter == diskWriter) {
+                    _sync_diskWriter = null;
+                    _sync_fileOutputStream = null;
+                }
+            }
+        }
+    }
+
+    private boolean isConditionalAllowed() {
+        return _isConditional && "GET".equals(_method);
+    }
+
+    private boolean hasRequestHeader(String name) {
+        for (String key : _requestHeaders.keySet()) {
+            if (key.equalsIgnoreCase(name)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Validators are only used when the caller did not ask for anything
+    // more specific on its own.
+    private UnityURLClientValidators loadValidators() {
+        if (!isConditionalAllowed() || hasRequestHeader("If-None-Match") ||
+                hasRequestHeader("If-Modified-Since") || hasRequestHeader("Range")) {
+            return null;
+        }
+
+        return UnityURLClientValidators.load(_dstPath);
+    }
+
+    private void saveValidators(HttpURLConnection connection) {
+        String etag = connection.getHeaderField("ETag");
+        String lastModified = connection.getHeaderField("Last-Modified");
+
+        if (etag == null && lastModified == null) {
+            return;
+        }
+
+        new UnityURLClientValidators(etag, lastModified, new File(_dstPath).length()).save(_dstPath);
+    }
+
+    private void setConditionalHeaders() {
+        if (_validators.etag != null) {
+            _connection.setRequestProperty("If-None-Match", _validators.etag);
+        }
+
+        if (_validators.lastModified != null) {
+            _connection.setRequestProperty("If-Modified-Since", _validators.lastModified);
+        }
+    }
+
+    private static boolean isRedirectStatusCode(int statusCode) {
+        return statusCode == 301 || statusCode == 302 || statusCode == 303 ||
+               statusCode == 307 || statusCode == 308;
+    }
+
+    private boolean isRedirectCacheable() {
+        return "GET".equals(_method) || "HEAD".equals(_method);
+    }
+
+    // Validates the Location of a redirect response and leaves it in
+    // _redirectURL, so that performAttempt sends the next request there.
+    private boolean followRedirect(String location, int responseCode) {
+        URL target;
+
+        try {
+            target = new URL(_attemptURL, location);
+        }
+        catch (MalformedURLException e) {
+            UnityURLClientDebug.e(TAG, "followRedirect: Invalid location. " + location);
+            return failAttempt(UnityURLClientError.Error.InitConnectionError);
+        }
+
+        String protocol = target.getProtocol();
+
+        if (!protocol.equals("http") && !protocol.equals("https")) {
+            UnityURLClientDebug.e(TAG, "followRedirect: Unsupported protocol. " + target);
+            return failAttempt(UnityURLClientError.Error.UnsupportedProtocolError);
+        }
+
+        int redirectCount;
+
+        synchronized (this) {
+            redirectCount = ++_sync_redirectCount;
+            _sync_responseURL = target;
+        }
+
+        int maxRedirects = (_maxRedirects > 0) ? _maxRedirects : DEFAULT_MAX_REDIRECTS;
+
+        if (redirectCount > maxRedirects) {
+            UnityURLClientDebug.e(TAG, "followRedirect: Too many redirects. " + redirectCount);
+            return failAttempt(UnityURLClientError.Error.TooManyRedirectsError);
+        }
+
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null && (responseCode == 301 || responseCode == 308) && isRedirectCacheable()) {
+            m.getRedirectCache().put(_attemptURL.toString(), target.toString());
+        }
+
+        // the same rules browsers follow for rewriting the method
+        if ((responseCode == 303 && !"HEAD".equals(_attemptMethod)) ||
+                ((responseCode == 301 || responseCode == 302) && "POST".equals(_attemptMethod))) {
+            _attemptMethod = "GET";
+            _isRequestBodyDropped = true;
+        }
+
+        UnityURLClientDebug.d(TAG, "followRedirect: " + responseCode + " " + target);
+        _redirectURL = target;
+        return false;
+    }
+
+    private boolean extractResponseContent(byte[] buffer, int size) {
+        try {
+            _extractor.write(buffer, 0, size);
+        }
+        catch (IOException e) {
+            UnityURLClientDebug.e(TAG, "extractResponseContent:" + e.toString());
+            return failAttempt(UnityURLClientError.Error.CreateDestinationFileError);
+        }
+
+        return true;
+    }
+
+    private byte[] resizeBuffer(byte[] buffer, int bytesTransferred) {
+        int bufferSize = _bufferSizer.update(bytesTransferred, buffer.length);
+
+        if (bufferSize == buffer.length) {
+            return buffer;
+        }
+
+        byte[] newBuffer = borrowBuffer(bufferSize);
+        releaseBuffer(buffer);
+        _bufferSize = newBuffer.length;
+        return newBuffer;
+    }
+
+    private void cancelPrefetchGroup() {
+        prefetchGroup.cancel();
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null) {
+            m.getScheduler().reschedule();
+        }
+    }
+
+    private boolean writeResponseRanges(byte[] buffer, int size) {
+        try {
+            _rangeWriter.write(buffer, 0, size);
+        }
+        catch (IOException e) {
+            UnityURLClientDebug.e(TAG, "writeResponseRanges:" + e.toString());
+            return failAttempt(UnityURLClientError.Error.CreateDestinationFileError);
+        }
+
+        return true;
+    }
+
+    // Ranges a server left out of its response, typically because it does
+    // not coalesce multiple ranges into one response, are requested one by
+    // one over a few parallel connections.
+    private boolean fetchPendingRanges() {
+        final List<long[]> pending = _rangeWriter.getPendingRanges();
+
+        if (pending.isEmpty()) {
+            return true;
+        }
+
+        UnityURLClientDebug.d(TAG, "fetchPendingRanges: " + pending.size() + " ranges left.");
+
+        synchronized (this) {
+            _sync_rangeFallbackCount += pending.size();
+
+            if (_sync_expectedContentLength >= 0) {
+                _sync_expectedContentLength = _sync_responseContentLengthRead + _rangeWriter.getPendingLength();
+            }
+        }
+
+        final boolean[] failed = new boolean[1];
+        final Runnable worker = new Runnable() {
+            public void run() {
+                byte[] buffer = borrowBuffer(BUFFER_SIZE);
+
+                try {
+                    for (;;) {
+                        long[] range;
+
+                        synchronized (pending) {
+                            if (failed[0] || pending.isEmpty()) {
+                                return;
+                            }
+
+                            range = pending.remove(0);
+                        }
+
+                        if (!fetchRange(range[0], range[1], buffer)) {
+                            synchronized (pending) {
+                                failed[0] = true;
+                            }
+
+                            return;
+                        }
+                    }
+                }
+                finally {
+                    releaseBuffer(buffer);
+                }
+            }
+        };
+
+        // the extra workers run on the scheduler's threads, and this one
+        // waits for them once its own share is done
+        final int[] helperCount = new int[1];
+        Runnable helper = new Runnable() {
+            public void run() {
+                try {
+                    worker.run();
+                }
+                finally {
+                    synchronized (pending) {
+                        --helperCount[0];
+                        pending.notifyAll();
+                    }
+                }
+            }
+        };
+
+        UnityURLClientConnectionManager m = manager;
+        int threadCount = (pending.size() < MAX_RANGE_FALLBACK_THREADS) ? pending.size() : MAX_RANGE_FALLBACK_THREADS;
+
+        if (m == null) {
+            threadCount = 1;
+        }
+
+        synchronized (pending) {
+            helperCount[0] = threadCount - 1;
+        }
+
+        for (int i = 1; i < threadCount; ++i) {
+            m.getScheduler().execute(helper);
+        }
+
+        worker.run();
+        boolean isInterrupted = false;
+
+        synchronized (pending) {
+            while (helperCount[0] > 0) {
+                try {
+                    pending.wait();
+                }
+                catch (InterruptedException e) {
+                    failed[0] = true;
+                    isInterrupted = true;
+                    break;
+                }
+            }
+        }
+
+        if (isInterrupted) {
+            // the remaining workers give up once their sockets are closed
+            UnityURLClientDebug.e(TAG, "fetchPendingRanges: interrupted.");
+            abortURLConnections();
+            return failAttempt(UnityURLClientError.Error.ConnectionLostError);
+        }
+
+        synchronized (pending) {
+            return !failed[0] && !isCancelledImmediately();
+        }
+    }
+
+    // Range workers share the read deadline, which therefore only runs out
+    // once none of them has started a read for the read timeout. Chunk
+    // repairs use it too.
+    private void beginRangeRead() {
+        synchronized (this) {
+            ++_sync_rangeReadCount;
+        }
+
+        beginRead();
+    }
+
+    private void endRangeRead() {
+        synchronized (this) {
+            if (--_sync_rangeReadCount == 0) {
+                endRead();
+            }
+        }
+    }
+
+    private boolean fetchRange(long from, long to, byte[] buffer) {
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+
+        UnityURLClientDebug.d(TAG, "fetchRange: bytes=" + from + "-" + to);
+
+        try {
+            connection = openURLConnection();
+            connection.setRequestProperty("Range", "bytes=" + from + "-" + to);
+            beginRangeRead();
+            int responseCode;
+
+            try {
+                responseCode = connection.getResponseCode();
+            }
+            finally {
+                endRangeRead();
+            }
+
+            long[] contentTo = new long[1];
+
+            if (responseCode != 206 ||
+                    UnityURLClientByteRangeWriter.parseContentRange(connection.getHeaderField("Content-Range"), contentTo) != from) {
+                UnityURLClientDebug.e(TAG, "fetchRange: unexpected response code " + responseCode);
+                return failAttempt(UnityURLClientError.Error.UnacceptableStatusCodeError);
+            }
+
+            inputStream = connection.getInputStream();
+            long position = from;
+
+            while (position <= to) {
+                if (!waitForBandwidth()) {
+                    return false;
+                }
+
+                int size = getThrottledChunkSize(buffer.length);
+
+                if (size > to - position + 1) {
+                    size = (int)(to - position + 1);
+                }
+
+                beginRangeRead();
+
+                try {
+                    size = inputStream.read(buffer, 0, size);
+                }
+                finally {
+                    endRangeRead();
+                }
+
+                if (size == -1) {
+                    break;
+                }
+
+                _rangeWriter.writeAt(position, buffer, 0, size);
+                position += size;
+                consumeBandwidth(size);
+
+                synchronized (this) {
+                    _sync_responseContentLengthRead += (long)size;
+                }
+            }
+
+            if (position <= to) {
+                return failAttempt(UnityURLClientError.Error.ConnectionLostError);
+            }
+
+            _rangeWriter.markWritten(from, to);
+            return true;
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "fetchRange:" + e.toString());
+            return failAttempt(errorForException(e, UnityURLClientError.Error.ConnectionLostError));
+        }
+        finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+
+                if (connection != null) {
+                    closeURLConnection(connection);
+                }
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "fetchRange:" + e.toString());
+            }
+        }
+    }
+
+    // Sends the parts of the file the server does not have yet, asking it
+    // for the upload offset again after a failure.
+    private boolean uploadResumableContent() {
+        UnityURLClientResumableUpload upload = _resumableUpload;
+        File file = new File(upload.getSrcPath());
+
+        if (!file.isFile()) {
+            UnityURLClientDebug.e(TAG, "uploadResumableContent: File not found: " + upload.getSrcPath());
+            return failAttempt(UnityURLClientError.Error.OpenSourceFileError);
+        }
+
+        long length = file.length();
+        long offset = -1;
+        int failures = 0;
+        byte[] buffer = borrowBuffer(_bufferSizer.getInitialSize(upload.getChunkSize()));
+        startRequestContentProgress(0, length);
+
+        try {
+            while (!isCancelledImmediately()) {
+                try {
+                    if (upload.getUploadURL() == null) {
+                        if (!upload.isCreatable() || !createResumableUpload(upload, length)) {
+                            return failAttempt(UnityURLClientError.Error.UnacceptableStatusCodeError);
+                        }
+
+                        offset = 0;
+                    }
+                    else if (offset < 0) {
+                        offset = queryResumableUploadOffset(upload);
+
+                        if (offset == -2) {
+                            return false;
+                        }
+
+                        if (offset < 0) {
+                            // the upload expired, so it has to start over
+                            if (!upload.isCreatable() || ++failures > MAX_RESUMABLE_UPLOAD_FAILURES) {
+                                return failAttempt(UnityURLClientError.Error.UnacceptableStatusCodeError);
+                            }
+
+                            upload.setUploadURL(null);
+                            continue;
+                        }
+
+                        startRequestContentProgress(offset, length);
+                    }
+
+                    if (offset >= length) {
+                        break;
+                    }
+
+                    long uploadedOffset = sendResumableChunk(upload, offset, length, buffer);
+
+                    if (uploadedOffset < 0) {
+                        return false;
+                    }
+
+                    if (uploadedOffset > offset) {
+                        failures = 0;
+                    }
+
+                    offset = uploadedOffset;
+                    startRequestContentProgress(offset, length);
+                }
+                catch (IOException e) {
+                    UnityURLClientDebug.e(TAG, "uploadResumableContent:" + e.toString());
+
+                    if (isCancelledImmediately()) {
+                        return false;
+                    }
+
+                    if (++failures > MAX_RESUMABLE_UPLOAD_FAILURES) {
+                        return failAttempt(errorForException(e, UnityURLClientError.Error.ConnectionLostError));
+                    }
+
+                    offset = -1;
+                }
+                finally {
+                    _connectDeadline = 0;
+                    endRead();
+                }
+            }
+        }
+        finally {
+            releaseBuffer(buffer);
+        }
+
+        if (isCancelledImmediately()) {
+            return false;
+        }
+
+        try {
+            _attemptURL = new URL(upload.getUploadURL());
+        }
+        catch (MalformedURLException e) {
+            return failAttempt(UnityURLClientError.Error.InitConnectionError);
+        }
+
+        _attemptMethod = "HEAD";
+        _attemptContentLength = -1;
+        return true;
+    }
+
+    private HttpURLConnection openResumableUploadConnection(String uploadURL, String method, long contentLength) throws IOException {
+        _attemptURL = new URL(uploadURL);
+        _attemptMethod = method;
+        _attemptContentLength = contentLength;
+        _connectDeadline = (_connectTimeout > 0) ? System.currentTimeMillis() + _connectTimeout : 0;
+        HttpURLConnection connection = openURLConnection();
+        connection.setRequestProperty("Tus-Resumable", UnityURLClientResumableUpload.TUS_VERSION);
+        return connection;
+    }
+
+    private boolean createResumableUpload(UnityURLClientResumableUpload upload, long length) throws IOException {
+        HttpURLConnection connection = openResumableUploadConnection(_url.toString(), "POST", 0);
+
+        try {
+            connection.setRequestProperty("Upload-Length", Long.toString(length));
+            connection.getOutputStream().close();
+            beginRead();
+            int responseCode = connection.getResponseCode();
+            String location = connection.getHeaderField("Location");
+
+            if (responseCode != 201 || location == null) {
+                UnityURLClientDebug.e(TAG, "createResumableUpload: unexpected response code " + responseCode);
+                setResponseStatusCode(responseCode);
+                return false;
+            }
+
+            upload.setUploadURL(new URL(_url, location).toString());
+            UnityURLClientDebug.d(TAG, "createResumableUpload: " + upload.getUploadURL());
+            return true;
+        }
+        finally {
+            closeURLConnection(connection);
+        }
+    }
+
+    // Returns the offset, -1 if the upload no longer exists, or -2 if the
+    // attempt failed.
+    private long queryResumableUploadOffset(UnityURLClientResumableUpload upload) throws IOException {
+        HttpURLConnection connection = openResumableUploadConnection(upload.getUploadURL(), "HEAD", -1);
+
+        try {
+            connection.setUseCaches(false);
+            beginRead();
+            int responseCode = connection.getResponseCode();
+
+            if (responseCode == 403 || responseCode == 404 || responseCode == 410) {
+                UnityURLClientDebug.e(TAG, "queryResumableUploadOffset: upload gone " + responseCode);
+                return -1;
+            }
+
+            long offset = UnityURLClientResumableUpload.parseOffset(connection.getHeaderField("Upload-Offset"));
+
+            if (responseCode / 100 != 2 || offset < 0) {
+                UnityURLClientDebug.e(TAG, "queryResumableUploadOffset: unexpected response code " + responseCode);
+                setResponseStatusCode(responseCode);
+                failAttempt(UnityURLClientError.Error.UnacceptableStatusCodeError);
+                return -2;
+            }
+
+            return offset;
+        }
+        finally {
+            closeURLConnection(connection);
+        }
+    }
+
+    // PATCH is sent as an overridden POST, which is all HttpURLConnection
+    // supports. Returns the new offset, or -1 if the attempt failed.
+    private long sendResumableChunk(UnityURLClientResumableUpload upload, long offset, long length, byte[] buffer) throws IOException {
+        long chunkLength = Math.min(upload.getChunkSize(), length - offset);
+        HttpURLConnection connection = openResumableUploadConnection(upload.getUploadURL(), "POST", chunkLength);
+        RandomAccessFile file = null;
+
+        try {
+            connection.setRequestProperty("X-HTTP-Method-Override", "PATCH");
+            connection.setRequestProperty("Upload-Offset", Long.toString(offset));
+            connection.setRequestProperty("Content-Type", "application/offset+octet-stream");
+
+            try {
+                file = new RandomAccessFile(upload.getSrcPath(), "r");
+                file.seek(offset);
+            }
+            catch (IOException e) {
+                UnityURLClientDebug.e(TAG, "sendResumableChunk:" + e.toString());
+                failAttempt(UnityURLClientError.Error.OpenSourceFileError);
+                return -1;
+            }
+
+            OutputStream outputStream = connection.getOutputStream();
+            _connectDeadline = 0;
+            long remaining = chunkLength;
+
+            while (remaining > 0) {
+                if (!waitForBandwidth()) {
+                    return -1;
+                }
+
+                int size = getThrottledChunkSize(buffer.length);
+
+                if (size > remaining) {
+                    size = (int)remaining;
+                }
+
+                if ((size = file.read(buffer, 0, size)) == -1) {
+                    failAttempt(UnityURLClientError.Error.OpenSourceFileError);
+                    return -1;
+                }
+
+                beginRead();
+                outputStream.write(buffer, 0, size);
+                endRead();
+                consumeBandwidth(size);
+                addRequestContentLengthSent(size);
+                remaining -= size;
+            }
+
+            outputStream.close();
+            beginRead();
+            int responseCode = connection.getResponseCode();
+
+            if (responseCode == 409) {
+                // the server is somewhere else, so ask it where
+                throw new IOException("Upload offset conflict.");
+            }
+
+            if (responseCode / 100 != 2) {
+                UnityURLClientDebug.e(TAG, "sendResumableChunk: unexpected response code " + responseCode);
+                setResponseStatusCode(responseCode);
+                failAttempt(UnityURLClientError.Error.UnacceptableStatusCodeError);
+                return -1;
+            }
+
+            long newOffset = UnityURLClientResumableUpload.parseOffset(connection.getHeaderField("Upload-Offset"));
+            return (newOffset >= 0) ? newOffset : offset + chunkLength;
+        }
+        finally {
+            if (file != null) {
+                file.close();
+            }
+
+            closeURLConnection(connection);
+        }
+    }
+
+    // the retry policy looks at the status code of a failed request
+    private synchronized void setResponseStatusCode(int responseCode) {
+        _sync_responseCode = responseCode;
+    }
+
+    private synchronized void startRequestContentProgress(long sent, long expected) {
+        _sync_requestContentLengthSent = sent;
+        _sync_requestContentLengthExpected = expected;
+    }
+
+    private synchronized void addRequestContentLengthSent(long size) {
+        _sync_requestContentLengthSent += size;
+    }
+
+    public synchronized long getRequestContentLengthSent() {
+        return _sync_requestContentLengthSent;
+    }
+
+    public synchronized long getRequestContentLengthExpected() {
+        return _sync_requestContentLengthExpected;
+    }
+
+    private boolean verifyDestinationFile() {
+        _verifier.finish();
+        List<Integer> corruptChunks = _verifier.getCorruptChunks();
+
+        if (_verifier.isDigestValid() && corruptChunks.isEmpty() && !_verifier.hasExtraChunks()) {
+            return true;
+        }
+
+        UnityURLClientDebug.e(TAG, "verifyDestinationFile: mismatch. corrupt chunks:" + corruptChunks);
+
+        if (corruptChunks.isEmpty() || _verifier.hasExtraChunks()) {
+            // nothing we can repair in place
+            removeDestinationFile();
+            _verifier.reset();
+            return failAttempt(UnityURLClientError.Error.IntegrityCheckError);
+        }
+
+        byte[] buffer = borrowBuffer(BUFFER_SIZE);
+
+        try {
+            for (int i = 0; i < corruptChunks.size(); ++i) {
+                int index = corruptChunks.get(i);
+
+                if (!refetchChunk(index, buffer)) {
+                    if (isCancelledImmediately()) {
+                        return false;
+                    }
+
+                    UnityURLClientDebug.e(TAG, "verifyDestinationFile: could not repair chunk " + index);
+                    return failAttempt(UnityURLClientError.Error.IntegrityCheckError);
+                }
+
+                synchronized (this) {
+                    ++_sync_refetchedChunkCount;
+                }
+            }
+
+            // the chunk digests only cover what was requested, so the whole
+            // file is hashed again before it is accepted
+            _verifier.reset();
+            _verifier.seek(_dstPath, new File(_dstPath).length(), buffer);
+            _verifier.finish();
+        }
+        catch (IOException e) {
+            UnityURLClientDebug.e(TAG, "verifyDestinationFile:" + e.toString());
+            return failAttempt(UnityURLClientError.Error.OpenDestinationFileError);
+        }
+        finally {
+            releaseBuffer(buffer);
+        }
+
+        if (!_verifier.isDigestValid() || !_verifier.getCorruptChunks().isEmpty() || _verifier.hasExtraChunks()) {
+            UnityURLClientDebug.e(TAG, "verifyDestinationFile: mismatch after repair.");
+            removeDestinationFile();
+            _verifier.reset();
+            return failAttempt(UnityURLClientError.Error.IntegrityCheckError);
+        }
+
+        return true;
+    }
+
+    // Downloads a single chunk with a Range request and writes it in place,
+    // accepting it only if it matches its expected digest.
+    private boolean refetchChunk(int index, byte[] buffer) {
+        long chunkSize = _verifier.getChunkSize();
+        long from = (long)index * chunkSize;
+        long to = from + chunkSize - 1;
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        RandomAccessFile file = null;
+
+        UnityURLClientDebug.d(TAG, "refetchChunk: " + index + " bytes=" + from + "-" + to);
+
+        try {
+            connection = openURLConnection();
+            connection.setRequestProperty("Range", "bytes=" + from + "-" + to);
+            beginRangeRead();
+            int responseCode;
+
+            try {
+                responseCode = connection.getResponseCode();
+            }
+            finally {
+                endRangeRead();
+            }
+
+            long[] contentTo = new long[1];
+
+            // a server that ignores or shifts the range would otherwise
+            // overwrite the chunk with bytes from elsewhere in the file
+            if (responseCode != 206 ||
+                    UnityURLClientByteRangeWriter.parseContentRange(connection.getHeaderField("Content-Range"), contentTo) != from ||
+                    contentTo[0] > to) {
+                UnityURLClientDebug.e(TAG, "refetchChunk: unexpected response " + responseCode + " " +
+                                      connection.getHeaderField("Content-Range"));
+                return false;
+            }
+
+            MessageDigest digest = MessageDigest.getInstance(_verifier.getAlgorithm());
+            inputStream = connection.getInputStream();
+            file = new RandomAccessFile(_dstPath, "rw");
+            file.seek(from);
+
+            long remaining = chunkSize;
+
+            while (remaining > 0) {
+                if (!waitForBandwidth()) {
+                    return false;
+                }
+
+                int size = getThrottledChunkSize(buffer.length);
+
+                if (size > remaining) {
+                    size = (int)remaining;
+                }
+
+                beginRangeRead();
+
+                try {
+                    size = inputStream.read(buffer, 0, size);
+                }
+                finally {
+                    endRangeRead();
+                }
+
+                if (size == -1) {
+                    break;
+                }
+
+                digest.update(buffer, 0, size);
+                file.write(buffer, 0, size);
+                consumeBandwidth(size);
+                remaining -= size;
+            }
+
+            byte[] chunkDigest = digest.digest();
+
+            if (!_verifier.isChunkDigestValid(index, chunkDigest)) {
+                return false;
+            }
+
+            _verifier.setChunkDigest(index, chunkDigest);
+            return true;
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "refetchChunk:" + e.toString());
+            return false;
+        }
+        finally {
+            try {
+                if (file != null) {
+                    file.close();
+                }
+
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+
+                if (connection != null) {
+                    closeURLConnection(connection);
+                }
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "refetchChunk:" + e.toString());
+            }
+        }
+    }
+
+    public Boolean doInBackground() {
+        UnityURLClientDebug.d(TAG, "doInBackground(0)");
+
+        for (int attempt = 1; ; ++attempt) {
+            if (isCancelledImmediately()) {
+                return false;
+            }
+
+            if (performAttempt()) {
+                return true;
+            }
+
+            UnityURLClientError.Error error;
+
+            synchronized (this) {
+                error = _sync_attemptError;
+                _sync_attemptError = UnityURLClientError.Error.NoneError;
+
+                if (_sync_isCancelledImmediately || _sync_isPaused) {
+                    return false;
+                }
+            }
+
+            if (error == UnityURLClientError.Error.NoneError) {
+                return false;
+            }
+
+            if (!shouldRetry(attempt, error)) {
+                cancelWithError(error);
+                return false;
+            }
+
+            long delay = _retryPolicy.getDelay(attempt);
+            UnityURLClientDebug.d(TAG, "doInBackground: retrying after " + error + " in " + delay + "ms");
+
+            synchronized (this) {
+                ++_sync_retryCount;
+            }
+
+            if (!waitForRetry(delay)) {
+                return false;
+            }
+        }
+    }
+
+    private boolean performAttempt() {
+        UnityURLClientDebug.d(TAG, "performAttempt(1)");
+        startAttempt();
+        boolean r = false;
+
+        // a resumable upload is finished off by a plain request for its
+        // upload URL, whose response becomes the connection's response
+        boolean isUploaded = (_resumableUpload == null) || uploadResumableContent();
+
+        // each redirect is followed with a new connection
+        while (isUploaded && !isCancelledImmediately()) {
+            if (!prepareConnection()) {
+                break;
+            }
+
+            UnityURLClientDebug.d(TAG, "performAttempt(2)");
+            HttpURLConnection connection = _connection;
+            _redirectURL = null;
+            UnityURLClientDebug.d(TAG, "performAttempt(3)");
+            r = setRequestHTTPBody() && processResponse(connection);
+
+            if (connection != null) {
+                closeURLConnection(connection);
+            }
+
+            if (_hedgeConnection != null) {
+                closeURLConnection(_hedgeConnection);
+                _hedgeConnection = null;
+            }
+
+            // a new connection is created for every attempt
+            _connection = null;
+            _connectDeadline = 0;
+            endRead();
+            releaseCircuit();
+
+            if (r || _redirectURL == null) {
+                break;
+            }
+
+            _attemptURL = _redirectURL;
+        }
+
+        releaseCircuit();
+        UnityURLClientDebug.d(TAG, "performAttempt(4)");
+
+        if (!r && _isUsingCachedRedirect && hasAttemptError()) {
+            // the remembered location may be stale, so retries start over
+            UnityURLClientConnectionManager m = manager;
+
+            if (m != null) {
+                m.getRedirectCache().remove(_url.toString());
+            }
+        }
+
+        closeOutputStreamImmediately();
+
+        if (_extractor != null) {
+            _extractor.close();
+        }
+
+        if (_rangeWriter != null) {
+            _rangeWriter.close();
+        }
+
+        UnityURLClientDebug.d(TAG, "performAttempt(5)");
+
+        // anything written to the destination file from now on belongs to
+        // this transfer, so further attempts may resume from its end
+        _resumeWrittenContent = true;
+        return r;
+    }
+
+    // Every attempt starts over from the original URL, skipping the
+    // permanent redirects remembered from earlier requests.
+    private void startAttempt() {
+        _isAttemptTimedOut = false;
+        _attemptURL = _url;
+        _attemptMethod = _method;
+        _attemptContentLength = -1;
+        _isRequestBodyDropped = false;
+        _isUsingCachedRedirect = false;
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null && _followRedirects && isRedirectCacheable()) {
+            String target = m.getRedirectCache().resolve(_url.toString());
+
+            if (target != null) {
+                try {
+                    _attemptURL = new URL(target);
+                    _isUsingCachedRedirect = true;
+                    UnityURLClientDebug.d(TAG, "startAttempt: cached redirect to " + target);
+                }
+                catch (MalformedURLException e) {
+                    m.getRedirectCache().remove(_url.toString());
+                }
+            }
+        }
+
+        synchronized (this) {
+            _sync_redirectCount = 0;
+            _sync_responseURL = _attemptURL;
+        }
+    }
+
+    private synchronized boolean hasAttemptError() {
+        return _sync_attemptError != UnityURLClientError.Error.NoneError;
+    }
+
+    private boolean failAttempt(UnityURLClientError.Error error) {
+        synchronized (this) {
+            if (_sync_isCancelledImmediately) {
+                return false;
+            }
+
+            // whatever the aborted socket threw, the cause was the watchdog
+            _sync_attemptError = _isAttemptTimedOut ? UnityURLClientError.Error.ConnectionTimeoutError : error;
+            error = _sync_attemptError;
+        }
+
+        if (error == UnityURLClientError.Error.CannotConnectToHostError ||
+                error == UnityURLClientError.Error.ConnectionTimeoutError ||
+                error == UnityURLClientError.Error.ConnectionLostError) {
+            reportCircuitResult(false);
+        }
+
+        return false;
+    }
+
+    private boolean acquireCircuit() {
+        UnityURLClientConnectionManager m = manager;
+
+        if (m == null) {
+            return true;
+        }
+
+        String host = UnityURLClientCircuitBreaker.getHostKey(_attemptURL);
+
+        if (!m.getCircuitBreaker().allowRequest(host, this)) {
+            UnityURLClientDebug.e(TAG, "acquireCircuit: circuit open: " + host);
+            return failAttempt(UnityURLClientError.Error.CircuitOpenError);
+        }
+
+        _circuitHost = host;
+        return true;
+    }
+
+    private void reportCircuitResult(boolean isSuccess) {
+        UnityURLClientConnectionManager m = manager;
+
+        if (m == null || _circuitHost == null) {
+            return;
+        }
+
+        if (isSuccess) {
+            m.getCircuitBreaker().recordSuccess(_circuitHost, this);
+        }
+        else {
+            m.getCircuitBreaker().recordFailure(_circuitHost, this);
+        }
+
+        _circuitHost = null;
+    }
+
+    private void releaseCircuit() {
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null && _circuitHost != null) {
+            m.getCircuitBreaker().release(_circuitHost, this);
+        }
+
+        _circuitHost = null;
+    }
+
+    private static UnityURLClientError.Error errorForException(Exception e, UnityURLClientError.Error fallback) {
+        if (e instanceof UnknownHostException) {
+            return UnityURLClientError.Error.HostLookupError;
+        }
+
+        if (e instanceof SocketTimeoutException) {
+            return UnityURLClientError.Error.ConnectionTimeoutError;
+        }
+
+        if (e instanceof ConnectException) {
+            return UnityURLClientError.Error.CannotConnectToHostError;
+        }
+
+        return fallback;
+    }
+
+    private boolean shouldRetry(int attempt, UnityURLClientError.Error error) {
+        if (_retryPolicy == null || attempt >= _retryPolicy.getMaxAttempts()) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (error == UnityURLClientError.Error.UnacceptableStatusCodeError) {
+                if (!_retryPolicy.isRetryableStatusCode(_sync_responseCode)) {
+                    return false;
+                }
+            }
+            else if (!_retryPolicy.isRetryableError(error)) {
+                return false;
+            }
+
+            // bytes handed to Unity in memory mode cannot be taken back
+            if (_dstPath == null && _sync_responseContentLengthRead > 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    // The backoff does not hold a scheduler slot.
+    private boolean waitForRetry(long delay) {
+        long deadline = System.currentTimeMillis() + delay;
+        boolean isSlotReleased = releaseSlot();
+
+        for (;;) {
+            if (isCancelledImmediately()) {
+                return false;
+            }
+
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return reacquireSlot(isSlotReleased);
+            }
+
+            synchronized (this) {
+                try {
+                    wait((remaining < RETRY_WAIT_INTERVAL) ? remaining : RETRY_WAIT_INTERVAL);
+                }
+                catch (InterruptedException e) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    public UnityURLClientConnection(String method, String url, int cachePolicy, float timeout) {
+        this(method, url, cachePolicy, timeout, timeout, 0.0f);
+    }
+
+    // connectTimeout limits connecting, readTimeout how long a single read
+    // may block, and totalTimeout the whole request including retries. All
+    // are in seconds, where 0 means no limit.
+    public UnityURLClientConnection(String method, String url, int cachePolicy, float connectTimeout,
+                                    float readTimeout, float totalTimeout) {
+        UnityURLClientDebug.d(TAG, "UnityURLClientConnection:" + method + " URL:" + url + " cachePolicy:" + cachePolicy +
+                              " timeouts:" + connectTimeout + "," + readTimeout + "," + totalTimeout);
+
+        _sync_state = State.InitializedState;
+        _method = method;
+        _cachePolicy = cachePolicy;
+        setTimeoutsInternal(connectTimeout, readTimeout, totalTimeout);
+
+        try {
+            _url = new URL(url);
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "UnityURLClientConnection:" + e.toString());
+            _sync_error = UnityURLClientError.Error.AllocationError;
+            _url = null;
+        }
+    }
+
+    private HttpURLConnection createURLConnection() throws IOException {
+        URL url = _attemptURL;
+        String host = null;
+
+        // the raced address only applies to the host it was raced for
+        if (_attemptAddress != null && _attemptAddressHost.equalsIgnoreCase(url.getHost())) {
+            host = (url.getPort() != -1) ? url.getHost() + ":" + url.getPort() : url.getHost();
+            url = new URL(url.getProtocol(), _attemptAddress.getHostAddress(), url.getPort(), url.getFile());
+        }
+
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setRequestMethod(_attemptMethod);
+
+        if (host != null) {
+            connection.setRequestProperty("Host", host);
+        }
+
+        // the socket timeouts back up the watchdog, which also covers
+        // host lookups and stalled uploads
+        if (_connectTimeout > 0) {
+            connection.setConnectTimeout((int)_connectTimeout);
+        }
+
+        if (_readTimeout > 0) {
+            connection.setReadTimeout((int)_readTimeout);
+        }
+
+        if (_cachePolicy != 0) {
+            connection.setUseCaches(false);
+        }
+
+        if (_attemptMethod != null && _attemptMethod.equals("POST")) {
+            connection.setDoOutput(true);
+            ByteBuffer requestContentBuffer = getRequestContentBuffer();
+            UnityURLClientMultipartBody multipartBody = getMultipartBody();
+            long fixedLength = -1;
+
+            if (_isRequestBodyDropped) {
+                // nothing is sent
+            }
+            else if (_attemptContentLength >= 0) {
+                fixedLength = _attemptContentLength;
+            }
+            else if (requestContentBuffer != null) {
+                fixedLength = requestContentBuffer.remaining();
+            }
+            else if (multipartBody != null) {
+                fixedLength = multipartBody.getContentLength();
+            }
+
+            if (fixedLength >= 0 && fixedLength <= Integer.MAX_VALUE) {
+                connection.setFixedLengthStreamingMode((int)fixedLength);
+            }
+            else {
+                connection.setChunkedStreamingMode(0);
+            }
+        }
+
+        // redirects are followed by processResponse
+        connection.setInstanceFollowRedirects(false);
+        connection.setRequestProperty("Connection", "close");
+
+        // credentials are not handed over to other hosts
+        boolean isSameHost = _attemptURL.getHost().equalsIgnoreCase(_url.getHost());
+
+        for (Map.Entry<String,String> entry : _requestHeaders.entrySet()) {
+            if (!isSameHost && entry.getKey().equalsIgnoreCase("Authorization")) {
+                continue;
+            }
+
+            connection.setRequestProperty(entry.getKey(), entry.getValue());
+        }
+
+        UnityURLClientMultipartBody multipartBody = getMultipartBody();
+
+        if (multipartBody != null && connection.getRequestProperty("Content-Type") == null) {
+            connection.setRequestProperty("Content-Type", multipartBody.getContentType());
+        }
+
+        if (_allowInvalidSSLCertificate && (connection instanceof HttpsURLConnection)) {
+            try {
+                javax.net.ssl.KeyManager[] km = null;
+                javax.net.ssl.TrustManager[] tm = {
+                    new javax.net.ssl.X509TrustManager() {
+                        public void checkClientTrusted(java.security.cert.X509Certificate[] arg0, String arg1) throws java.security.cert.CertificateException {}
+                        public void checkServerTrusted(java.security.cert.X509Certificate[] arg0, String arg1) throws java.security.cert.CertificateException {}
+                        public java.security.cert.X509Certificate[] getAcceptedIssuers() {
+                            return null;
+                        }
+                    }
+                };
+                javax.net.ssl.SSLContext sslcontext= javax.net.ssl.SSLContext.getInstance("SSL");
+                sslcontext.init(km, tm, new java.security.SecureRandom());
+                ((HttpsURLConnection)connection).setSSLSocketFactory(sslcontext.getSocketFactory());
+                ((HttpsURLConnection)connection).setHostnameVerifier(
+                new javax.net.ssl.HostnameVerifier() {
+                    public boolean verify(String host, javax.net.ssl.SSLSession ses) {
+                        return true;
+                    }
+                }
+                );
+            }
+            catch (Exception e) {
+            }
+        }
+
+        return connection;
+    }
+
+    // HTTPS is left alone, since connecting to an IP literal would break SNI
+    // and the certificate host name check.
+    private boolean raceAddresses() {
+        _attemptAddress = null;
+        _attemptAddressHost = null;
+        UnityURLClientConnectionManager m = manager;
+
+        if (m == null || !m.getHappyEyeballs().isEnabled() || !"http".equalsIgnoreCase(_attemptURL.getProtocol())) {
+            return true;
+        }
+
+        UnityURLClientHappyEyeballs.Race race = new UnityURLClientHappyEyeballs.Race();
+
+        synchronized (this) {
+            if (_sync_isCancelledImmediately) {
+                return false;
+            }
+
+            _sync_addressRace = race;
+        }
+
+        try {
+            String host = _attemptURL.getHost();
+            int port = (_attemptURL.getPort() != -1) ? _attemptURL.getPort() : _attemptURL.getDefaultPort();
+            _attemptAddress = m.getHappyEyeballs().selectAddress(host, port, _connectTimeout, race);
+            _attemptAddressHost = host;
+            return true;
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "raceAddresses:" + e.toString());
+            return failAttempt(errorForException(e, UnityURLClientError.Error.CannotConnectToHostError));
+        }
+        finally {
+            synchronized (this) {
+                _sync_addressRace = null;
+            }
+        }
+    }
+
+    private void invalidateAttemptAddress() {
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null && _attemptAddress != null) {
+            m.getHappyEyeballs().invalidate(_attemptAddressHost, _attemptAddress);
+        }
+    }
+
+    private boolean isHedgingAllowed() {
+        // only requests that are safe to send twice
+        if (!_isHedgingEnabled || manager == null || _resumableUpload != null ||
+                !("GET".equals(_attemptMethod) || "HEAD".equals(_attemptMethod))) {
+            return false;
+        }
+
+        synchronized (this) {
+            return _srcPath == null && _requestContent == null && _sync_requestContentBuffer == null &&
+                _sync_multipartBody == null;
+        }
+    }
+
+    // Connects and waits for the response headers. If they take longer than
+    // the hedge delay, a duplicate request is sent on another connection and
+    // whichever answers first is returned; the other one is closed.
+    private HttpURLConnection connectHedged(final HttpURLConnection primary) throws IOException {
+        UnityURLClientConnectionManager m = manager;
+        UnityURLClientHedgingPolicy policy = m.getHedgingPolicy();
+        long delay = (_hedgeDelay > 0) ? _hedgeDelay : policy.getAdaptiveDelay(_hedgePercentile);
+        long startTime = System.currentTimeMillis();
+        UnityURLClientTimerWheel.Timeout timer = null;
+        policy.recordRequest();
+
+        synchronized (this) {
+            _sync_hedgeWinner = null;
+            _sync_hedgeConnection = null;
+            _sync_isHedgeRunning = false;
+        }
+
+        if (delay > 0) {
+            final Map<String,List<String>> requestProperties = primary.getRequestProperties();
+
+            timer = m.getTimerWheel().schedule(new Runnable() {
+                public void run() {
+                    startHedge(primary, requestProperties);
+                }
+            }, delay);
+        }
+
+        IOException primaryException = null;
+        boolean isConnected = false;
+
+        try {
+            primary.connect();
+            isConnected = true;
+            _connectDeadline = 0;
+            beginRead();
+            primary.getResponseCode();
+        }
+        catch (IOException e) {
+            UnityURLClientDebug.e(TAG, "connectHedged: " + e.toString());
+            primaryException = e;
+        }
+
+        if (timer != null) {
+            m.getTimerWheel().cancel(timer);
+        }
+
+        HttpURLConnection winner;
+        HttpURLConnection loser = null;
+
+        synchronized (this) {
+            if (_sync_hedgeWinner == null && primaryException == null) {
+                _sync_hedgeWinner = primary;
+            }
+
+            // the primary failed, but the hedge may still get through
+            while (_sync_hedgeWinner == null && _sync_isHedgeRunning && !_sync_isCancelledImmediately) {
+                try {
+                    wait(HEDGE_WAIT_INTERVAL);
+                }
+                catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            winner = _sync_hedgeWinner;
+
+            if (winner != _sync_hedgeConnection) {
+                loser = _sync_hedgeConnection;
+            }
+
+            // a hedge still connecting gives up once it sees this
+            if (winner == null) {
+                _sync_hedgeWinner = primary;
+            }
+        }
+
+        if (loser != null) {
+            closeURLConnection(loser);
+        }
+
+        if (winner == null) {
+            if (!isConnected || _isAttemptTimedOut || errorForException(primaryException, null) != null) {
+                throw primaryException;
+            }
+
+            // getResponseCode will fail again in processResponse
+            return primary;
+        }
+
+        if (winner != primary) {
+            UnityURLClientDebug.d(TAG, "connectHedged: hedge won");
+            closeURLConnection(primary);
+            policy.recordHedgeWin();
+            _hedgeConnection = winner;
+        }
+
+        policy.recordLatency(System.currentTimeMillis() - startTime);
+        return winner;
+    }
+
+    // Runs on the timer wheel, so the hedge itself is sent from the
+    // scheduler's threads.
+    private void startHedge(final HttpURLConnection primary, final Map<String,List<String>> requestProperties) {
+        synchronized (this) {
+            if (_sync_hedgeWinner != null || _sync_isHedgeRunning || _sync_isCancelledImmediately) {
+                return;
+            }
+
+            // hedges are dropped while the budget is exhausted, so that they
+            // do not double the load on a server that is already slow
+            if (!manager.getHedgingPolicy().tryAcquireHedge()) {
+                UnityURLClientDebug.d(TAG, "startHedge: budget exhausted");
+                return;
+            }
+
+            _sync_isHedgeRunning = true;
+        }
+
+        manager.getScheduler().execute(new Runnable() {
+            public void run() {
+                runHedge(primary, requestProperties);
+            }
+        });
+    }
+
+    private void runHedge(HttpURLConnection primary, Map<String,List<String>> requestProperties) {
+        UnityURLClientDebug.d(TAG, "runHedge: " + _attemptURL);
+        HttpURLConnection hedge = null;
+        boolean isWinner = false;
+
+        try {
+            hedge = openURLConnection();
+
+            synchronized (this) {
+                if (_sync_hedgeWinner != null) {
+                    throw new IOException("Hedge lost.");
+                }
+
+                _sync_hedgeConnection = hedge;
+            }
+
+            for (Map.Entry<String,List<String>> entry : requestProperties.entrySet()) {
+                List<String> values = entry.getValue();
+
+                if (entry.getKey() == null || values == null) {
+                    continue;
+                }
+
+                for (int i = 0; i < values.size(); ++i) {
+                    if (i == 0) {
+                        hedge.setRequestProperty(entry.getKey(), values.get(i));
+                    }
+                    else {
+                        hedge.addRequestProperty(entry.getKey(), values.get(i));
+                    }
+                }
+            }
+
+            hedge.getResponseCode();
+
+            synchronized (this) {
+                if (_sync_hedgeWinner == null) {
+                    _sync_hedgeWinner = hedge;
+                    isWinner = true;
+                }
+            }
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "runHedge: " + e.toString());
+        }
+        finally {
+            synchronized (this) {
+                _sync_isHedgeRunning = false;
+                notifyAll();
             }
         }
 
-        UnityURLClientDebug.d(TAG, "processResponse(9)");
-        changeState(State.FinishedState, false);
-        return true;
+        // the worker is blocked reading from the primary until it is closed
+        if (isWinner) {
+            closeURLConnection(primary);
+        }
+        else if (hedge != null) {
+            closeURLConnection(hedge);
+        }
     }
 
-    public Boolean doInBackground() {
-        UnityURLClientDebug.d(TAG, "doInBackground(0)");
+    // Every HttpURLConnection in use is tracked, so that cancelling can
+    // close its socket instead of waiting for a blocked read to return.
+    private HttpURLConnection openURLConnection() throws IOException {
+        HttpURLConnection connection = createURLConnection();
 
         synchronized (this) {
             if (_sync_isCancelledImmediately) {
-                return false;
+                throw new IOException("Connection cancelled.");
             }
+
+            _sync_openConnections.add(connection);
         }
 
-        UnityURLClientDebug.d(TAG, "doInBackground(1)");
-        UnityURLClientDebug.d(TAG, "doInBackground(2)");
-        HttpURLConnection connection = _connection;
-        UnityURLClientDebug.d(TAG, "doInBackground(3)");
-        boolean r = processResponse(connection);
+        return connection;
+    }
+
+    private void closeURLConnection(HttpURLConnection connection) {
+        synchronized (this) {
+            _sync_openConnections.remove(connection);
+        }
 
         try {
-            if (connection != null) {
-                connection.disconnect();
-            }
+            connection.disconnect();
         }
         catch (Exception e) {
-            UnityURLClientDebug.e(TAG, "doInBackground:" + e.toString());
+            UnityURLClientDebug.e(TAG, "closeURLConnection:" + e.toString());
         }
-
-        UnityURLClientDebug.d(TAG, "doInBackground(4)");
-        closeOutputStreamImmediately();
-        UnityURLClientDebug.d(TAG, "doInBackground(5)");
-        return r;
     }
 
-    public UnityURLClientConnection(String method, String url, int cachePolicy, float timeout) {
-        UnityURLClientDebug.d(TAG, "UnityURLClientConnection:" + method + " URL:" + url + " cachePolicy:" + cachePolicy + " timeout:" + timeout);
-
-        _sync_state = State.InitializedState;
+    // Must not be called while holding this connection's monitor, since
+    // disconnecting may block while the socket is shut down.
+    private void abortURLConnections() {
+        List<HttpURLConnection> connections;
 
-        try {
-            URL connectionURL = new URL(url);
-            _connection = (HttpURLConnection)connectionURL.openConnection();
-            _connection.setRequestMethod(method);
+        synchronized (this) {
+            if (_sync_addressRace != null) {
+                _sync_addressRace.abort();
+            }
 
-            if (timeout > 0.0f) {
-                _connection.setConnectTimeout((int)(timeout * 1000.0f));
-                _connection.setReadTimeout((int)(timeout * 1000.0f));
+            if (_sync_openConnections.isEmpty()) {
+                return;
             }
 
-            if (cachePolicy != 0) {
-                _connection.setUseCaches(false);
+            connections = new ArrayList<HttpURLConnection>(_sync_openConnections);
+        }
+
+        UnityURLClientDebug.d(TAG, "abortURLConnections: " + connections.size());
+
+        for (int i = 0; i < connections.size(); ++i) {
+            try {
+                connections.get(i).disconnect();
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "abortURLConnections:" + e.toString());
             }
+        }
+    }
+
+    private void beginRead() {
+        _readDeadline = (_readTimeout > 0) ? System.currentTimeMillis() + _readTimeout : 0;
+    }
+
+    private void endRead() {
+        _readDeadline = 0;
+    }
+
+    private void startWatchdog(UnityURLClientConnectionManager m) {
+        if (_connectTimeout <= 0 && _readTimeout <= 0 && _totalTimeout <= 0) {
+            return;
+        }
+
+        _totalDeadline = (_totalTimeout > 0) ? System.currentTimeMillis() + _totalTimeout : 0;
+        scheduleWatchdog(m, WATCHDOG_INTERVAL);
+    }
+
+    private void scheduleWatchdog(final UnityURLClientConnectionManager m, long delay) {
+        synchronized (this) {
+            _watchdog = m.getTimerWheel().schedule(new Runnable() {
+                public void run() {
+                    checkDeadlines(m);
+                }
+            }, delay);
+        }
+    }
 
-            if (method != null && method.equals("POST")) {
-                _connection.setDoOutput(true);
-                _connection.setChunkedStreamingMode(0);
+    private static long earlierDeadline(long deadline, long other) {
+        return (other > 0 && other < deadline) ? other : deadline;
+    }
+
+    // Runs on the timer wheel. A missed connect or read deadline fails the
+    // current attempt, which may then be retried, while the total deadline
+    // ends the request. Sockets are closed from the scheduler's threads,
+    // since a slow disconnect must not hold up the timer wheel.
+    private void checkDeadlines(final UnityURLClientConnectionManager m) {
+        synchronized (this) {
+            _watchdog = null;
+
+            if (_sync_isCancelledImmediately || _sync_state.ordinal() >= State.FinishedState.ordinal()) {
+                return;
             }
+        }
+
+        long now = System.currentTimeMillis();
+        long totalDeadline = _totalDeadline;
+
+        if (totalDeadline > 0 && now >= totalDeadline) {
+            UnityURLClientDebug.e(TAG, "checkDeadlines: total deadline exceeded.");
+            m.getScheduler().execute(new Runnable() {
+                public void run() {
+                    cancelWithError(UnityURLClientError.Error.ConnectionTimeoutError);
+                    m.getScheduler().reschedule();
+                }
+            });
+            return;
+        }
+
+        long connectDeadline = _connectDeadline;
+        long readDeadline = _readDeadline;
+
+        if ((connectDeadline > 0 && now >= connectDeadline) || (readDeadline > 0 && now >= readDeadline)) {
+            UnityURLClientDebug.e(TAG, "checkDeadlines: attempt timed out.");
+            _isAttemptTimedOut = true;
+            _connectDeadline = 0;
+            _readDeadline = 0;
+            m.getScheduler().execute(new Runnable() {
+                public void run() {
+                    abortURLConnections();
+                }
+            });
+            connectDeadline = 0;
+            readDeadline = 0;
+        }
+
+        long next = now + WATCHDOG_INTERVAL;
+        next = earlierDeadline(next, totalDeadline);
+        next = earlierDeadline(next, connectDeadline);
+        next = earlierDeadline(next, readDeadline);
+        scheduleWatchdog(m, next - now);
+    }
+
+    // Creates the HttpURLConnection for the next attempt, reopening the
+    // destination file and resuming from its end when the previous attempt
+    // was paused.
+    private boolean prepareConnection() {
+        // requests to a host that keeps failing fail right away
+        if (!acquireCircuit()) {
+            return false;
+        }
+
+        _connectDeadline = (_connectTimeout > 0) ? System.currentTimeMillis() + _connectTimeout : 0;
+
+        if (!raceAddresses()) {
+            return false;
+        }
 
-            _connection.setRequestProperty("Connection", "close");
+        try {
+            _connection = openURLConnection();
         }
         catch (Exception e) {
-            UnityURLClientDebug.e(TAG, "UnityURLClientConnection:" + e.toString());
-            _sync_error = UnityURLClientError.Error.AllocationError;
-            _connection = null;
+            UnityURLClientDebug.e(TAG, "prepareConnection:" + e.toString());
+            return failAttempt(UnityURLClientError.Error.InitConnectionError);
+        }
+
+        if (_resumableUpload != null) {
+            _connection.setRequestProperty("Tus-Resumable", UnityURLClientResumableUpload.TUS_VERSION);
+        }
+
+        if (_rangeWriter != null) {
+            _connection.setRequestProperty("Range", _rangeWriter.getRangeHeader());
         }
+        else if (_dstPath != null) {
+            if (_validators != null) {
+                setConditionalHeaders();
+            }
+            else {
+                if (!openDestinationFile()) {
+                    return failAttempt(UnityURLClientError.Error.OpenDestinationFileError);
+                }
+
+                if (isResumeAllowed()) {
+                    setResponseContentDestinationResumeHeader();
+                }
+            }
+        }
+        else if (_extractor != null) {
+            _extractOffset = isResumeAllowed() ? _extractor.getResumeOffset() : 0;
+
+            if (_extractOffset > 0) {
+                _connection.setRequestProperty("Range", "bytes=" + _extractOffset + "-");
+            }
+        }
+
+        return true;
     }
 
     public synchronized int getState() {
@@ -535,9 +2747,8 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "setAllowFollowRedirects");
 
         if (changeState(State.InitializedState, true)) {
-            if (_connection != null) {
-                _connection.setInstanceFollowRedirects(arrow);
-            }
+            _followRedirects = arrow;
+            _maxRedirects = maxCount;
         }
         else {
             UnityURLClientDebug.e(TAG, "setAllowFollowRedirects: changeState:" + _sync_state);
@@ -548,34 +2759,7 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "setAllowInvalidSSLCertificate");
 
         if (changeState(State.InitializedState, true)) {
-            if (_connection != null) {
-                if (arrow) {
-                    try {
-                        javax.net.ssl.KeyManager[] km = null;
-                        javax.net.ssl.TrustManager[] tm = {
-                            new javax.net.ssl.X509TrustManager() {
-                                public void checkClientTrusted(java.security.cert.X509Certificate[] arg0, String arg1) throws java.security.cert.CertificateException {}
-                                public void checkServerTrusted(java.security.cert.X509Certificate[] arg0, String arg1) throws java.security.cert.CertificateException {}
-                                public java.security.cert.X509Certificate[] getAcceptedIssuers() {
-                                    return null;
-                                }
-                            }
-                        };
-                        javax.net.ssl.SSLContext sslcontext= javax.net.ssl.SSLContext.getInstance("SSL");
-                        sslcontext.init(km, tm, new java.security.SecureRandom());
-                        ((HttpsURLConnection)_connection).setSSLSocketFactory(sslcontext.getSocketFactory());
-                        ((HttpsURLConnection)_connection).setHostnameVerifier(
-                        new javax.net.ssl.HostnameVerifier() {
-                            public boolean verify(String host, javax.net.ssl.SSLSession ses) {
-                                return true;
-                            }
-                        }
-                        );
-                    }
-                    catch (Exception e) {
-                    }
-                }
-            }
+            _allowInvalidSSLCertificate = arrow;
         }
         else {
             UnityURLClientDebug.e(TAG, "setAllowInvalidSSLCertificate: changeState:" + _sync_state);
@@ -589,6 +2773,8 @@ public class UnityURLClientConnection implements Runnable {
             _srcPath = srcPath;
             _requestContent = null;
             _requestContentLength = 0;
+            _resumableUpload = null;
+            releaseRequestContent();
         }
         else {
             UnityURLClientDebug.e(TAG, "setRequestContentSource: changeState:" + _sync_state);
@@ -599,8 +2785,8 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "setRequestHeader");
 
         if (changeState(State.InitializedState, true)) {
-            if (_connection != null) {
-                _connection.setRequestProperty(name, value);
+            if (name != null) {
+                _requestHeaders.put(name, value);
             }
         }
         else {
@@ -612,11 +2798,9 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "setRequestAuthCredential");
 
         if (changeState(State.InitializedState, true)) {
-            if (_connection != null) {
-                String userpass = user + ":" + password;
-                String basicAuth = "Basic " + new String(Base64.encode(userpass.getBytes(), Base64.DEFAULT));
-                _connection.setRequestProperty("Authorization", basicAuth);
-            }
+            String userpass = user + ":" + password;
+            String basicAuth = "Basic " + new String(Base64.encode(userpass.getBytes(), Base64.DEFAULT));
+            _requestHeaders.put("Authorization", basicAuth);
         }
         else {
             UnityURLClientDebug.e(TAG, "setRequestAuthCredential: changeState:" + _sync_state);
@@ -646,65 +2830,319 @@ public class UnityURLClientConnection implements Runnable {
         if (changeState(State.InitializedState, true)) {
             _dstPath = dstPath;
             _dstFileResume = allowResume;
+            _extractor = null;
         }
         else {
             UnityURLClientDebug.e(TAG, "setResponseContentDestination: changeState:" + _sync_state);
         }
     }
 
+    // Fetches only the given inclusive from/to byte pairs of the resource and
+    // writes each of them at its offset in the destination file.
+    public void setResponseContentRanges(long[] ranges) {
+        UnityURLClientDebug.d(TAG, "setResponseContentRanges");
+
+        if (changeState(State.InitializedState, true)) {
+            try {
+                _rangeWriter = (ranges != null) ? new UnityURLClientByteRangeWriter(ranges) : null;
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "setResponseContentRanges:" + e.toString());
+                reportError(UnityURLClientError.Error.InvalidResumeOffsetError);
+            }
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentRanges: changeState:" + _sync_state);
+        }
+    }
+
+    public synchronized int getResponseRangeFallbackCount() {
+        return _sync_rangeFallbackCount;
+    }
+
+    public void setResponseContentDestinationConditional(boolean isConditional) {
+        UnityURLClientDebug.d(TAG, "setResponseContentDestinationConditional");
+
+        if (changeState(State.InitializedState, true)) {
+            _isConditional = isConditional;
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentDestinationConditional: changeState:" + _sync_state);
+        }
+    }
+
+    private boolean openRequestContentSource() {
+        if (_srcPath == null) {
+            return true;
+        }
+
+        if (!changeState(State.OpeningSourceFileState, false)) {
+            return false;
+        }
+
+        try {
+            if (!new File(_srcPath).canRead()) {
+                UnityURLClientDebug.e(TAG, "openRequestContentSource: Cannot read " + _srcPath);
+                reportError(UnityURLClientError.Error.OpenSourceFileError);
+                return false;
+            }
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "openRequestContentSource:" + e.toString());
+            reportError(UnityURLClientError.Error.OpenSourceFileError);
+            return false;
+        }
+
+        return true;
+    }
+
+    public void setResponseContentExtraction(String dstDir, int format, boolean allowResume) {
+        UnityURLClientDebug.d(TAG, "setResponseContentExtraction");
+
+        if (changeState(State.InitializedState, true)) {
+            try {
+                _extractor = new UnityURLClientArchiveExtractor(format, dstDir);
+                _dstPath = null;
+                _dstFileResume = allowResume;
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "setResponseContentExtraction:" + e.toString());
+                reportError(UnityURLClientError.Error.CreateDestinationFileError);
+            }
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentExtraction: changeState:" + _sync_state);
+        }
+    }
+
+    public int getExtractedEntryCount() {
+        return (_extractor != null) ? _extractor.getEntryCount() : 0;
+    }
+
+    public String getExtractingEntryName() {
+        return (_extractor != null) ? _extractor.getEntryName() : null;
+    }
+
+    public long getExtractingEntryLength() {
+        return (_extractor != null) ? _extractor.getEntryLength() : 0;
+    }
+
+    public long getExtractingEntryExpectedLength() {
+        return (_extractor != null) ? _extractor.getEntryExpectedLength() : -1;
+    }
+
+    public void setResponseContentDestinationDigest(String algorithm, String digest, long chunkSize, String[] chunkDigests) {
+        UnityURLClientDebug.d(TAG, "setResponseContentDestinationDigest");
+
+        if (changeState(State.InitializedState, true)) {
+            try {
+                _verifier = new UnityURLClientDigestVerifier(algorithm, digest, chunkSize, chunkDigests);
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "setResponseContentDestinationDigest:" + e.toString());
+                reportError(UnityURLClientError.Error.IntegrityCheckError);
+            }
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setResponseContentDestinationDigest: changeState:" + _sync_state);
+        }
+    }
+
+    public synchronized int getResponseRefetchedChunkCount() {
+        return _sync_refetchedChunkCount;
+    }
+
+    // Runs on the background thread, since writing the body may block on
+    // the network and on bandwidth throttling.
     private boolean setRequestHTTPBody() {
         if (_connection == null) {
-            return false;
+            return failAttempt(UnityURLClientError.Error.InitConnectionError);
+        }
+
+        if (_isRequestBodyDropped) {
+            return true;
+        }
+
+        // the source is opened first, since getOutputStream is where the
+        // connection is actually made
+        InputStream inputStream = null;
+
+        try {
+            if (_srcPath != null) {
+                inputStream = new FileInputStream(_srcPath);
+            }
+            else if (getMultipartBody() != null) {
+                inputStream = getMultipartBody().open();
+            }
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "setRequestHTTPBody:" + e.toString());
+            return failAttempt(UnityURLClientError.Error.OpenSourceFileError);
         }
 
         try {
             if (_srcPath != null) {
-                if (!changeState(State.OpeningSourceFileState, false)) {
+                OutputStream outputStream = _connection.getOutputStream();
+                _connectDeadline = 0;
+                startRequestContentProgress(0, new File(_srcPath).length());
+
+                if (!writeRequestStream(inputStream, new File(_srcPath).length(), outputStream)) {
                     return false;
                 }
+            }
+            else if (getMultipartBody() != null) {
+                UnityURLClientMultipartBody multipartBody = getMultipartBody();
+                OutputStream outputStream = _connection.getOutputStream();
+                _connectDeadline = 0;
+                startRequestContentProgress(0, multipartBody.getContentLength());
 
+                if (!writeRequestStream(inputStream, multipartBody.getContentLength(), outputStream)) {
+                    return false;
+                }
+            }
+            else if (getRequestContentBuffer() != null) {
+                // every attempt starts over from the caller's position
+                ByteBuffer src = getRequestContentBuffer().duplicate();
                 OutputStream outputStream = _connection.getOutputStream();
-                FileInputStream inputFileStream = new FileInputStream(_srcPath);
-                int size = 0;
-                byte[] buffer = new byte[BUFFER_SIZE];
+                _connectDeadline = 0;
+                startRequestContentProgress(0, src.remaining());
+                byte[] buffer = borrowBuffer(_bufferSizer.getInitialSize(src.remaining()));
+
+                try {
+                    while (src.hasRemaining()) {
+                        if (!waitForBandwidth()) {
+                            return false;
+                        }
+
+                        int size = getThrottledChunkSize(buffer.length);
+
+                        if (size > src.remaining()) {
+                            size = src.remaining();
+                        }
 
-                while ((size = inputFileStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, size);
+                        src.get(buffer, 0, size);
+                        beginRead();
+                        outputStream.write(buffer, 0, size);
+                        endRead();
+                        consumeBandwidth(size);
+                        addRequestContentLengthSent(size);
+                        buffer = resizeBuffer(buffer, size);
+                    }
+                }
+                finally {
+                    releaseBuffer(buffer);
                 }
 
-                inputFileStream.close();
                 outputStream.flush();
                 outputStream.close();
-                _srcPath = null;
             }
             else if (_requestContent != null && _requestContentLength > 0) {
                 OutputStream outputStream = _connection.getOutputStream();
-                outputStream.write(_requestContent, 0, (int)_requestContentLength);
+                _connectDeadline = 0;
+                int offset = 0;
+                int length = (int)_requestContentLength;
+                int chunkSize = _bufferSizer.getInitialSize(length);
+                startRequestContentProgress(0, length);
+
+                while (offset < length) {
+                    if (!waitForBandwidth()) {
+                        return false;
+                    }
+
+                    int size = getThrottledChunkSize(chunkSize);
+
+                    if (size > length - offset) {
+                        size = length - offset;
+                    }
+
+                    beginRead();
+                    outputStream.write(_requestContent, offset, size);
+                    endRead();
+                    consumeBandwidth(size);
+                    addRequestContentLengthSent(size);
+                    offset += size;
+                    chunkSize = _bufferSizer.update(size, chunkSize);
+                }
+
                 outputStream.flush();
                 outputStream.close();
-                _requestContent = null;
-                _requestContentLength = 0;
             }
         }
         catch (Exception e) {
             UnityURLClientDebug.e(TAG, "setRequestHTTPBody:" + e.toString());
-            reportError(UnityURLClientError.Error.OpenSourceFileError);
-            return false;
+            return failAttempt(errorForException(e, UnityURLClientError.Error.ConnectionLostError));
+        }
+        finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                }
+                catch (IOException e) {
+                    UnityURLClientDebug.e(TAG, "setRequestHTTPBody:" + e.toString());
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private boolean writeRequestStream(InputStream inputStream, long length, OutputStream outputStream) throws IOException {
+        int size = 0;
+        byte[] buffer = borrowBuffer(_bufferSizer.getInitialSize(length));
+
+        try {
+            for (;;) {
+                if (!waitForBandwidth()) {
+                    return false;
+                }
+
+                try {
+                    size = inputStream.read(buffer, 0, getThrottledChunkSize(buffer.length));
+                }
+                catch (IOException e) {
+                    UnityURLClientDebug.e(TAG, "writeRequestStream:" + e.toString());
+                    return failAttempt(UnityURLClientError.Error.OpenSourceFileError);
+                }
+
+                if (size == -1) {
+                    break;
+                }
+
+                beginRead();
+                outputStream.write(buffer, 0, size);
+                endRead();
+                consumeBandwidth(size);
+                addRequestContentLengthSent(size);
+                buffer = resizeBuffer(buffer, size);
+            }
+        }
+        finally {
+            releaseBuffer(buffer);
+            inputStream.close();
         }
 
+        outputStream.flush();
+        outputStream.close();
         return true;
     }
 
+    private boolean isResumeAllowed() {
+        return _dstFileResume || _resumeWrittenContent;
+    }
+
     private boolean openDestinationFile() {
         if (_sync_fileOutputStream != null) {
             return true;
         }
 
         try {
+            // the validators no longer describe the file once it is written to
+            UnityURLClientValidators.remove(_dstPath);
+
             File file = new File(_dstPath);
             long dstFileSize = file.length();
 
-            if (dstFileSize > 0 && !_dstFileResume) {
+            if (dstFileSize > 0 && !isResumeAllowed()) {
                 dstFileSize = 0;
                 file.delete();
             }
@@ -738,13 +3176,13 @@ public class UnityURLClientConnection implements Runnable {
     public void sendRequest() {
         UnityURLClientDebug.d(TAG, "sendRequest");
 
-        if (_connection == null) {
-            UnityURLClientDebug.e(TAG, "sendRequest: Connection is null.");
+        if (_url == null) {
+            UnityURLClientDebug.e(TAG, "sendRequest: URL is null.");
             return;
         }
 
-        if (!setRequestHTTPBody()) {
-            UnityURLClientDebug.e(TAG, "sendRequest: Failed setRequestHTTPBody().");
+        if (!openRequestContentSource()) {
+            UnityURLClientDebug.e(TAG, "sendRequest: Failed openRequestContentSource().");
             return;
         }
 
@@ -754,8 +3192,44 @@ public class UnityURLClientConnection implements Runnable {
                 return;
             }
 
-            if (!openDestinationFile()) {
-                UnityURLClientDebug.e(TAG, "sendRequest: Failed openDestinationFile().");
+            if (_rangeWriter != null) {
+                try {
+                    _rangeWriter.open(_dstPath);
+                }
+                catch (Exception e) {
+                    UnityURLClientDebug.e(TAG, "sendRequest: Failed to open ranges destination. " + e.toString());
+                    reportError(UnityURLClientError.Error.OpenDestinationFileError);
+                    return;
+                }
+            }
+            else {
+                // a completed download is only replaced once the server says
+                // it has changed, so opening the file is deferred until then
+                _validators = loadValidators();
+
+                if (_validators == null && !openDestinationFile()) {
+                    UnityURLClientDebug.e(TAG, "sendRequest: Failed openDestinationFile().");
+                    return;
+                }
+            }
+        }
+        else if (_rangeWriter != null) {
+            UnityURLClientDebug.e(TAG, "sendRequest: Ranges require a destination file.");
+            reportError(UnityURLClientError.Error.OpenDestinationFileError);
+            return;
+        }
+        else if (_extractor != null) {
+            if (!changeState(State.OpeningDestinationFileState, false)) {
+                UnityURLClientDebug.e(TAG, "sendRequest: Failed change OpeningDestinationFileState.");
+                return;
+            }
+
+            try {
+                _extractor.open();
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "sendRequest: Failed to open extraction directory. " + e.toString());
+                reportError(UnityURLClientError.Error.CreateDestinationFileError);
                 return;
             }
         }
@@ -765,32 +3239,138 @@ public class UnityURLClientConnection implements Runnable {
             return;
         }
 
-        if (_dstPath != null) {
-            if (_dstFileResume) {
-                setResponseContentDestinationResumeHeader();
-            }
-        }
-
         if (!changeState(State.SentRequestState, false)) {
             UnityURLClientDebug.e(TAG, "sendRequest: Failed change SentRequestState.");
             return;
         }
 
-        if (_dstPath == null) {
+        if (_dstPath == null && _extractor == null) {
             synchronized (this) {
                 _sync_memoryOutputStream = new DirectByteArrayOutputStream();
                 _sync_pendingMemoryOutputStream = new DirectByteArrayOutputStream();
             }
         }
 
-        UnityURLClientDebug.d(TAG, "sendRequest: post.");
-        Handler handler = new Handler(Looper.getMainLooper());
-        handler.post(this);
+        UnityURLClientDebug.d(TAG, "sendRequest: schedule.");
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null) {
+            startWatchdog(m);
+            m.getScheduler().schedule(this);
+        }
+        else {
+            new Thread(this).start();
+        }
     }
 
     public void run() {
         UnityURLClientDebug.d(TAG, "run");
-        new HttpAsyncTask().execute(this);
+
+        synchronized (this) {
+            _sync_isWorkerRunning = true;
+        }
+
+        doInBackground();
+        boolean paused;
+
+        synchronized (this) {
+            paused = _sync_isPaused && !_sync_isCancelledImmediately;
+            _sync_isPaused = false;
+            _sync_isPauseRequested = false;
+            _sync_isWorkerRunning = false;
+
+            // a paused connection still needs the request content to resume
+            if (!paused) {
+                _sync_releaseRequestContent();
+            }
+        }
+
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null) {
+            m.getScheduler().onConnectionStopped(this, paused);
+        }
+    }
+
+    public void setRetryPolicy(int maxAttempts, float baseDelay, float maxDelay, float jitter) {
+        UnityURLClientDebug.d(TAG, "setRetryPolicy");
+
+        if (changeState(State.InitializedState, true)) {
+            if (_retryPolicy == null) {
+                _retryPolicy = new UnityURLClientRetryPolicy();
+            }
+
+            _retryPolicy.setMaxAttempts(maxAttempts);
+            _retryPolicy.setDelays((long)(baseDelay * 1000.0f), (long)(maxDelay * 1000.0f), jitter);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRetryPolicy: changeState:" + _sync_state);
+        }
+    }
+
+    public void addRetryableResponseStatusCodeRange(long from, long to) {
+        UnityURLClientDebug.d(TAG, "addRetryableResponseStatusCodeRange");
+
+        if (changeState(State.InitializedState, true)) {
+            if (_retryPolicy == null) {
+                _retryPolicy = new UnityURLClientRetryPolicy();
+            }
+
+            _retryPolicy.addRetryableStatusCodeRange((int)from, (int)to);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "addRetryableResponseStatusCodeRange: changeState:" + _sync_state);
+        }
+    }
+
+    public void setRetryableErrors(int[] errorCodes) {
+        UnityURLClientDebug.d(TAG, "setRetryableErrors");
+
+        if (changeState(State.InitializedState, true)) {
+            if (_retryPolicy == null) {
+                _retryPolicy = new UnityURLClientRetryPolicy();
+            }
+
+            _retryPolicy.setRetryableErrors(errorCodes);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRetryableErrors: changeState:" + _sync_state);
+        }
+    }
+
+    public synchronized int getResponseRetryCount() {
+        return _sync_retryCount;
+    }
+
+    public int getPriority() {
+        return _priority;
+    }
+
+    public void setPriority(int priority) {
+        UnityURLClientDebug.d(TAG, "setPriority:" + priority);
+        _priority = priority;
+        UnityURLClientConnectionManager m = manager;
+
+        if (m != null) {
+            m.getScheduler().reschedule();
+        }
+    }
+
+    // Only file downloads that can be resumed through a Range request may
+    // be paused to make room for higher priority connections.
+    public synchronized boolean isPausable() {
+        return _dstPath != null && _dstFileResume && !_sync_isPauseRequested &&
+               !_sync_isCancelledImmediately && _sync_state.ordinal() < State.FinishedState.ordinal();
+    }
+
+    public synchronized boolean isCancelled() {
+        return _sync_isCancelledImmediately;
+    }
+
+    public synchronized void requestPause() {
+        UnityURLClientDebug.d(TAG, "requestPause");
+        _sync_isPauseRequested = true;
+        notifyAll();
     }
 
     public long getResponseStatusCode() {
@@ -837,9 +3417,14 @@ public class UnityURLClientConnection implements Runnable {
         return null;
     }
 
-    public int getResponseRedirectCount() {
+    public synchronized int getResponseRedirectCount() {
         UnityURLClientDebug.d(TAG, "getResponseRedirectCount");
-        return -1;
+        return _sync_redirectCount;
+    }
+
+    public synchronized String getResponseURL() {
+        UnityURLClientDebug.d(TAG, "getResponseURL");
+        return (_sync_responseURL != null) ? _sync_responseURL.toString() : null;
     }
 
     public synchronized long getResponseContentLengthRead() {
@@ -859,20 +3444,95 @@ public class UnityURLClientConnection implements Runnable {
 
     public synchronized long getPendingResponseContentLength() {
         UnityURLClientDebug.d(TAG, "getPendingResponseContentLength");
-        long length = 0;
+        long length = _sync_getBufferedResponseBytes();
+        UnityURLClientDebug.d(TAG, "getPendingResponseContentLength:" + length);
+        return length;
+    }
 
-        if (_sync_pendingMemoryOutputStream != null) {
-            length += (long)_sync_pendingMemoryOutputStream.size() - _sync_pendingResponseContentOffset;
-            UnityURLClientDebug.d(TAG, "getPendingResponseContentLength:" + _sync_pendingMemoryOutputStream.size() + " offset:" + _sync_pendingResponseContentOffset);
+    private void setTimeoutsInternal(float connectTimeout, float readTimeout, float totalTimeout) {
+        _connectTimeout = (connectTimeout > 0.0f) ? (long)(connectTimeout * 1000.0f) : 0;
+        _readTimeout = (readTimeout > 0.0f) ? (long)(readTimeout * 1000.0f) : 0;
+        _totalTimeout = (totalTimeout > 0.0f) ? (long)(totalTimeout * 1000.0f) : 0;
+    }
+
+    public void setTimeouts(float connectTimeout, float readTimeout, float totalTimeout) {
+        UnityURLClientDebug.d(TAG, "setTimeouts:" + connectTimeout + "," + readTimeout + "," + totalTimeout);
+
+        if (changeState(State.InitializedState, true)) {
+            setTimeoutsInternal(connectTimeout, readTimeout, totalTimeout);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setTimeouts: changeState:" + _sync_state);
         }
+    }
 
-        if (_sync_memoryOutputStream != null) {
-            length += (long)_sync_memoryOutputStream.size();
-            UnityURLClientDebug.d(TAG, "getPendingResponseContentLength:" + _sync_memoryOutputStream.size());
+    public void setBufferSizeLimits(int minSize, int maxSize) {
+        UnityURLClientDebug.d(TAG, "setBufferSizeLimits: min:" + minSize + " max:" + maxSize);
+
+        if (changeState(State.InitializedState, true)) {
+            _bufferSizer.setLimits(minSize, maxSize);
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setBufferSizeLimits: changeState:" + _sync_state);
         }
+    }
 
-        UnityURLClientDebug.d(TAG, "getPendingResponseContentLength:" + length);
-        return length;
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    // File downloads are written by a separate thread through a queue of
+    // queueCapacity buffers, or by the network thread if it is 0. The file
+    // is fsynced every syncInterval bytes if positive, and once more when
+    // it is closed if syncOnClose is set.
+    public void setDiskWritePolicy(int queueCapacity, long syncInterval, boolean syncOnClose) {
+        UnityURLClientDebug.d(TAG, "setDiskWritePolicy: queueCapacity:" + queueCapacity + " syncInterval:" + syncInterval);
+
+        if (changeState(State.InitializedState, true)) {
+            _diskWriteQueueCapacity = (queueCapacity > 0) ? queueCapacity : 0;
+            _diskWriteSyncInterval = syncInterval;
+            _diskWriteSyncOnClose = syncOnClose;
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setDiskWritePolicy: changeState:" + _sync_state);
+        }
+    }
+
+    // Idempotent requests without a body only. With a delay of 0 the
+    // request is hedged once it is slower than the given percentile of
+    // recent requests.
+    public void setHedging(boolean isEnabled, long delay, int percentile) {
+        UnityURLClientDebug.d(TAG, "setHedging: isEnabled:" + isEnabled + " delay:" + delay + " percentile:" + percentile);
+
+        if (changeState(State.InitializedState, true)) {
+            _isHedgingEnabled = isEnabled;
+            _hedgeDelay = (delay > 0) ? delay : 0;
+            _hedgePercentile = percentile;
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setHedging: changeState:" + _sync_state);
+        }
+    }
+
+    public void setBandwidthLimit(long bytesPerSecond) {
+        UnityURLClientDebug.d(TAG, "setBandwidthLimit:" + bytesPerSecond);
+        _bandwidth.setRate(bytesPerSecond);
+    }
+
+    public synchronized void setResponseBufferWatermarks(long high, long low) {
+        UnityURLClientDebug.d(TAG, "setResponseBufferWatermarks: high:" + high + " low:" + low);
+
+        if (high < 0) {
+            high = 0;
+        }
+
+        if (low < 0 || low > high) {
+            low = high;
+        }
+
+        _sync_bufferedBytesHighWatermark = high;
+        _sync_bufferedBytesLowWatermark = low;
+        notifyAll();
     }
 
     public synchronized boolean checkAndResetResponseDirtyFlag() {
@@ -892,10 +3552,45 @@ public class UnityURLClientConnection implements Runnable {
         UnityURLClientDebug.d(TAG, "cancel");
 
         synchronized (this) {
-            changeState(State.CancelledState, false);
+            if (changeState(State.CancelledState, false)) {
+                _sync_postEvent(UnityURLClientEventQueue.EVENT_CANCELLED);
+            }
+
             _sync_isCancelledImmediately = true;
             _sync_closeOutputStreamImmediately();
+            _sync_releaseRequestContent();
+            notifyAll();
+        }
+
+        abortURLConnections();
+    }
+
+    public void releaseResources() {
+        UnityURLClientDebug.d(TAG, "releaseResources");
+        UnityURLClientConnectionManager m = manager;
+
+        synchronized (this) {
+            if (_watchdog != null && m != null) {
+                m.getTimerWheel().cancel(_watchdog);
+            }
+
+            _watchdog = null;
+
+            if (_sync_memoryOutputStream != null) {
+                _sync_memoryOutputStream.releaseBuf();
+                _sync_memoryOutputStream = null;
+            }
+
+            if (_sync_pendingMemoryOutputStream != null) {
+                _sync_pendingMemoryOutputStream.releaseBuf();
+                _sync_pendingMemoryOutputStream = null;
+            }
+
+            _sync_pendingResponseContentOffset = 0;
+            _sync_releaseRequestContent();
         }
+
+        updateGlobalResponseBufferedBytes();
     }
 
     public void cancelWithError(UnityURLClientError.Error error) {
@@ -904,9 +3599,13 @@ public class UnityURLClientConnection implements Runnable {
         synchronized (this) {
             changeState(State.CancelledState, false);
             _sync_isCancelledImmediately = true;
-            _sync_error = error;
+            _sync_setError(error);
             _sync_closeOutputStreamImmediately();
+            _sync_releaseRequestContent();
+            notifyAll();
         }
+
+        abortURLConnections();
     }
 
     public void setRequestContent(byte[] src, long srcLength) {
@@ -916,12 +3615,148 @@ public class UnityURLClientConnection implements Runnable {
             _srcPath = null;
             _requestContent = src;
             _requestContentLength = srcLength;
+            _resumableUpload = null;
+            releaseRequestContent();
         }
         else {
             UnityURLClientDebug.e(TAG, "setRequestContent: changeState:" + _sync_state);
         }
     }
 
+    // The bytes between the position and the limit of src are sent as they
+    // are, without copying them up front. Since src may wrap native memory,
+    // the caller must keep it alive until isRequestContentReleased returns
+    // true or EVENT_REQUEST_CONTENT_RELEASED is posted.
+    public void setRequestContentBuffer(ByteBuffer src) {
+        UnityURLClientDebug.d(TAG, "setRequestContentBuffer");
+
+        if (changeState(State.InitializedState, true)) {
+            _srcPath = null;
+            _requestContent = null;
+            _requestContentLength = 0;
+            _resumableUpload = null;
+
+            synchronized (this) {
+                _sync_releaseRequestContent();
+                _sync_requestContentBuffer = src;
+            }
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRequestContentBuffer: changeState:" + _sync_state);
+        }
+    }
+
+    public void addRequestMultipartField(String name, String value) {
+        UnityURLClientMultipartBody multipartBody = prepareMultipartBody("addRequestMultipartField");
+
+        if (multipartBody != null) {
+            multipartBody.addField(name, value);
+        }
+    }
+
+    public void addRequestMultipartBytes(String name, String fileName, String contentType, byte[] content, long length) {
+        UnityURLClientMultipartBody multipartBody = prepareMultipartBody("addRequestMultipartBytes");
+
+        if (multipartBody != null) {
+            multipartBody.addBytes(name, fileName, contentType, content, length);
+        }
+    }
+
+    // Like setRequestContentBuffer, buffer must stay alive until the request
+    // content is released.
+    public void addRequestMultipartBuffer(String name, String fileName, String contentType, ByteBuffer buffer) {
+        UnityURLClientMultipartBody multipartBody = prepareMultipartBody("addRequestMultipartBuffer");
+
+        if (multipartBody != null) {
+            multipartBody.addBuffer(name, fileName, contentType, buffer);
+        }
+    }
+
+    public void addRequestMultipartFile(String name, String fileName, String contentType, String path) {
+        UnityURLClientMultipartBody multipartBody = prepareMultipartBody("addRequestMultipartFile");
+
+        if (multipartBody != null) {
+            multipartBody.addFile(name, fileName, contentType, path);
+        }
+    }
+
+    // Parts are added to the multipart body, which replaces any other
+    // request content.
+    private UnityURLClientMultipartBody prepareMultipartBody(String caller) {
+        UnityURLClientDebug.d(TAG, caller);
+
+        if (!changeState(State.InitializedState, true)) {
+            UnityURLClientDebug.e(TAG, caller + ": changeState:" + _sync_state);
+            return null;
+        }
+
+        _srcPath = null;
+        _requestContent = null;
+        _requestContentLength = 0;
+        _resumableUpload = null;
+
+        synchronized (this) {
+            if (_sync_multipartBody == null) {
+                _sync_releaseRequestContent();
+                _sync_multipartBody = new UnityURLClientMultipartBody();
+            }
+
+            return _sync_multipartBody;
+        }
+    }
+
+    // With a POST the URL is where new uploads are created, otherwise it is
+    // the upload URL of an upload started earlier. chunkSize bounds the
+    // size of every PATCH request, or uses the default if not positive.
+    public void setRequestContentResumableSource(String srcPath, long chunkSize) {
+        UnityURLClientDebug.d(TAG, "setRequestContentResumableSource");
+
+        if (changeState(State.InitializedState, true)) {
+            boolean isCreatable = "POST".equals(_method);
+            _srcPath = null;
+            _requestContent = null;
+            _requestContentLength = 0;
+            _resumableUpload = new UnityURLClientResumableUpload(srcPath, chunkSize,
+                (isCreatable || _url == null) ? null : _url.toString(), isCreatable);
+            releaseRequestContent();
+        }
+        else {
+            UnityURLClientDebug.e(TAG, "setRequestContentResumableSource: changeState:" + _sync_state);
+        }
+    }
+
+    public String getRequestUploadURL() {
+        UnityURLClientResumableUpload upload = _resumableUpload;
+        return (upload != null) ? upload.getUploadURL() : null;
+    }
+
+    public synchronized boolean isRequestContentReleased() {
+        return _sync_requestContentBuffer == null && _sync_multipartBody == null;
+    }
+
+    private synchronized ByteBuffer getRequestContentBuffer() {
+        return _sync_requestContentBuffer;
+    }
+
+    private synchronized UnityURLClientMultipartBody getMultipartBody() {
+        return _sync_multipartBody;
+    }
+
+    private synchronized void releaseRequestContent() {
+        _sync_releaseRequestContent();
+    }
+
+    // The buffers are let go only while no worker thread can be writing them.
+    private void _sync_releaseRequestContent() {
+        if ((_sync_requestContentBuffer == null && _sync_multipartBody == null) || _sync_isWorkerRunning) {
+            return;
+        }
+
+        _sync_requestContentBuffer = null;
+        _sync_multipartBody = null;
+        _sync_postEvent(UnityURLClientEventQueue.EVENT_REQUEST_CONTENT_RELEASED);
+    }
+
     private static long copyResponseContent(DirectByteArrayOutputStream srcData, long srcOffset, byte[] dst, long dstCapacity) {
         if (dst == null || dstCapacity <= 0 || srcData == null) {
             return 0;
@@ -945,7 +3780,29 @@ public class UnityURLClientConnection implements Runnable {
         return length;
     }
 
-    public synchronized long movePendingResponseContent(byte[] dst, long dstCapacity) {
+    public long movePendingResponseContent(byte[] dst, long dstCapacity) {
+        long copied;
+
+        synchronized (this) {
+            copied = _sync_movePendingResponseContent(dst, dstCapacity);
+
+            if (copied > 0 && _sync_getBufferedResponseBytes() <= _sync_bufferedBytesLowWatermark) {
+                notifyAll();
+            }
+
+            if (copied > 0) {
+                _sync_releaseDrainedBuffers();
+            }
+        }
+
+        if (copied > 0) {
+            updateGlobalResponseBufferedBytes();
+        }
+
+        return copied;
+    }
+
+    private long _sync_movePendingResponseContent(byte[] dst, long dstCapacity) {
         UnityURLClientDebug.d(TAG, "movePendingResponseContent: dstCapacity:" + dstCapacity);
 
         if (_sync_isResponseDirty) {
@@ -1036,6 +3893,58 @@ public class UnityURLClientConnection implements Runnable {
         return 0;
     }
 
+    // Once the response is complete and Unity has moved all of it, the
+    // memory buffers go back to the pool instead of waiting for
+    // destroyConnection.
+    private void _sync_releaseDrainedBuffers() {
+        if (_sync_state.ordinal() < State.FinishedState.ordinal() || _sync_getBufferedResponseBytes() > 0) {
+            return;
+        }
+
+        if (_sync_memoryOutputStream != null) {
+            _sync_memoryOutputStream.releaseBuf();
+        }
+
+        if (_sync_pendingMemoryOutputStream != null) {
+            _sync_pendingMemoryOutputStream.releaseBuf();
+        }
+
+        _sync_pendingResponseContentOffset = 0;
+    }
+
+    public synchronized long getRetainedBytes() {
+        long retainedBytes = 0;
+
+        if (_sync_memoryOutputStream != null) {
+            retainedBytes += _sync_memoryOutputStream.directBuf().length;
+        }
+
+        if (_sync_pendingMemoryOutputStream != null) {
+            retainedBytes += _sync_pendingMemoryOutputStream.directBuf().length;
+        }
+
+        return retainedBytes;
+    }
+
+    // A connection Unity stopped looking at is abandoned if it was never
+    // sent, or if its response data has not changed for idleTime. The latter
+    // covers both an ended transfer nobody drained and a memory transfer
+    // stalled at a high watermark, which would otherwise hold on to the
+    // global budget forever. Transfers still receiving data, and file
+    // transfers, which buffer nothing, are never reaped.
+    synchronized boolean isReapable(long now, long idleTime) {
+        if (_sync_state == State.InitializedState) {
+            return true;
+        }
+
+        if (_sync_state.ordinal() < State.FinishedState.ordinal() &&
+                _sync_getBufferedResponseBytes() <= 0) {
+            return false;
+        }
+
+        return now - _sync_bufferedBytesChangeTime >= idleTime;
+    }
+
     private synchronized boolean changeState(State newState, boolean allowSame) {
         if (_sync_state.ordinal() <= State.UnknownState.ordinal()) {
             UnityURLClientDebug.e(TAG, "changeState: UnknownState:" + _sync_state);
@@ -1058,6 +3967,12 @@ public class UnityURLClientConnection implements Runnable {
         }
 
         _sync_state = newState;
+
+        if (newState == State.FinishedState) {
+            _sync_releaseDrainedBuffers();
+            _sync_postEvent(UnityURLClientEventQueue.EVENT_FINISHED);
+        }
+
         return true;
     }
 }
@@ -23,19 +23,68 @@
 
 package com.github.imkira.unityurlclient;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class UnityURLClientConnectionManager {
+    private static final String TAG = "UnityURLClientConnectionManager";
     private static UnityURLClientConnectionManager instance = null;
     private static final int CONNECTION_QUEUE_CAPACITY = 32;
+    private static final long MIN_REAP_INTERVAL = 1000;
+
+    public static final long DEFAULT_RESPONSE_BUFFER_BUDGET = 32 * 1024 * 1024;
+    public static final long DEFAULT_IDLE_CONNECTION_TIMEOUT = 300 * 1000;
+    public static final float DEFAULT_PREFETCH_CONNECT_TIMEOUT = 30.0f;
+    public static final float DEFAULT_PREFETCH_READ_TIMEOUT = 30.0f;
 
     private int _curConnectionId;
     private Map<Integer, UnityURLClientConnection> connectionQueue;
+    private int _curPrefetchGroupId;
+    private Map<Integer, UnityURLClientPrefetchGroup> prefetchGroups;
+    private UnityURLClientBufferPool bufferPool;
+    private UnityURLClientTokenBucket bandwidth;
+    private UnityURLClientScheduler scheduler;
+    private UnityURLClientRedirectCache redirectCache;
+    private UnityURLClientTimerWheel timerWheel;
+    private UnityURLClientEventQueue eventQueue;
+    private UnityURLClientHappyEyeballs happyEyeballs;
+    private UnityURLClientHedgingPolicy hedgingPolicy;
+    private UnityURLClientCircuitBreaker circuitBreaker;
+
+    private float _sync_prefetchConnectTimeout = DEFAULT_PREFETCH_CONNECT_TIMEOUT;
+    private float _sync_prefetchReadTimeout = DEFAULT_PREFETCH_READ_TIMEOUT;
+    private float _sync_prefetchTotalTimeout = 0.0f;
+
+    private long _sync_idleConnectionTimeout = DEFAULT_IDLE_CONNECTION_TIMEOUT;
+    private UnityURLClientTimerWheel.Timeout _sync_reaper;
+    private long _sync_reapedConnectionCount;
+
+    private final Object responseBufferLock = new Object();
+    private long _sync_responseBufferedBytes;
+    private long _sync_responseBufferedBytesHighWatermark;
+    private long _sync_responseBufferedBytesLowWatermark;
+    private boolean _sync_isResponseBufferFull;
+    private boolean _sync_isDefaultResponseBufferBudget;
 
     public UnityURLClientConnectionManager() {
         connectionQueue = new HashMap<Integer, UnityURLClientConnection>(
             CONNECTION_QUEUE_CAPACITY);
+        prefetchGroups = new HashMap<Integer, UnityURLClientPrefetchGroup>();
+        bufferPool = new UnityURLClientBufferPool();
+        bandwidth = new UnityURLClientTokenBucket();
+        scheduler = new UnityURLClientScheduler();
+        redirectCache = new UnityURLClientRedirectCache();
+        timerWheel = new UnityURLClientTimerWheel();
+        eventQueue = new UnityURLClientEventQueue();
+        happyEyeballs = new UnityURLClientHappyEyeballs();
+        hedgingPolicy = new UnityURLClientHedgingPolicy();
+        circuitBreaker = new UnityURLClientCircuitBreaker();
+
+        // memory mode responses pause once this much is waiting for Unity,
+        // as long as the reaper reclaims what abandoned connections hold
+        setResponseBufferWatermarks(DEFAULT_RESPONSE_BUFFER_BUDGET, DEFAULT_RESPONSE_BUFFER_BUDGET / 4 * 3, true);
     }
 
     public static synchronized UnityURLClientConnectionManager getInstance() {
@@ -45,8 +94,113 @@ public class UnityURLClientConnectionManager {
         return instance;
     }
 
+    public UnityURLClientBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public UnityURLClientScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public UnityURLClientTokenBucket getBandwidth() {
+        return bandwidth;
+    }
+
+    public UnityURLClientRedirectCache getRedirectCache() {
+        return redirectCache;
+    }
+
+    public UnityURLClientTimerWheel getTimerWheel() {
+        return timerWheel;
+    }
+
+    public UnityURLClientEventQueue getEventQueue() {
+        return eventQueue;
+    }
+
+    public UnityURLClientHappyEyeballs getHappyEyeballs() {
+        return happyEyeballs;
+    }
+
+    public UnityURLClientHedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    public UnityURLClientCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    public void setResponseBufferWatermarks(long high, long low) {
+        setResponseBufferWatermarks(high, low, false);
+    }
+
+    private void setResponseBufferWatermarks(long high, long low, boolean isDefault) {
+        if (high < 0) {
+            high = 0;
+        }
+
+        if (low < 0 || low > high) {
+            low = high;
+        }
+
+        synchronized (responseBufferLock) {
+            _sync_responseBufferedBytesHighWatermark = high;
+            _sync_responseBufferedBytesLowWatermark = low;
+            _sync_isDefaultResponseBufferBudget = isDefault;
+            responseBufferLock.notifyAll();
+        }
+    }
+
+    public long getResponseBufferedBytes() {
+        synchronized (responseBufferLock) {
+            return _sync_responseBufferedBytes;
+        }
+    }
+
+    public void addResponseBufferedBytes(long delta) {
+        synchronized (responseBufferLock) {
+            _sync_responseBufferedBytes += delta;
+
+            if (delta < 0 && _sync_responseBufferedBytes <= _sync_responseBufferedBytesLowWatermark) {
+                responseBufferLock.notifyAll();
+            }
+        }
+    }
+
+    // Once the high watermark is reached, the buffer stays full until the
+    // buffered bytes drop down to the low watermark.
+    public boolean isResponseBufferFull() {
+        synchronized (responseBufferLock) {
+            if (_sync_responseBufferedBytesHighWatermark <= 0) {
+                _sync_isResponseBufferFull = false;
+            }
+            else if (_sync_responseBufferedBytes >= _sync_responseBufferedBytesHighWatermark) {
+                _sync_isResponseBufferFull = true;
+            }
+            else if (_sync_responseBufferedBytes <= _sync_responseBufferedBytesLowWatermark) {
+                _sync_isResponseBufferFull = false;
+            }
+
+            return _sync_isResponseBufferFull;
+        }
+    }
+
+    public void waitForResponseBufferSpace(long timeoutMillis) throws InterruptedException {
+        synchronized (responseBufferLock) {
+            if (_sync_isResponseBufferFull) {
+                responseBufferLock.wait(timeoutMillis);
+            }
+        }
+    }
+
     public synchronized UnityURLClientConnection connectionHavingID(int connectionID) {
-        return connectionQueue.get(connectionID);
+        UnityURLClientConnection connection = connectionQueue.get(connectionID);
+
+        if (connection != null) {
+            connection.lastAccessTime = System.currentTimeMillis();
+        }
+
+        return connection;
     }
 
     public synchronized void queueConnection(UnityURLClientConnection connection) {
@@ -65,7 +219,242 @@ public class UnityURLClientConnectionManager {
         }
 
         connection.connectionID = id;
+        connection.manager = this;
+        connection.lastAccessTime = System.currentTimeMillis();
         connectionQueue.put(id,connection);
+        _sync_scheduleReaper();
+    }
+
+    public synchronized int getConnectionCount() {
+        return connectionQueue.size();
+    }
+
+    public synchronized long getReapedConnectionCount() {
+        return _sync_reapedConnectionCount;
+    }
+
+    // Memory held by the response buffers of every connection, plus the
+    // buffers kept in the pool for reuse.
+    public long getRetainedBytes() {
+        List<UnityURLClientConnection> connections;
+
+        synchronized (this) {
+            connections = new ArrayList<UnityURLClientConnection>(connectionQueue.values());
+        }
+
+        long retainedBytes = bufferPool.getRetainedBytes();
+
+        for (int i = 0; i < connections.size(); ++i) {
+            retainedBytes += connections.get(i).getRetainedBytes();
+        }
+
+        return retainedBytes;
+    }
+
+    // Connections Unity has not looked up for timeoutMillis are destroyed if
+    // they are abandoned, or never if timeoutMillis is 0. The same applies to
+    // prefetch groups whose downloads have all ended. Without the reaper
+    // nothing reclaims the default response buffer budget, so it is lifted
+    // too unless watermarks were set explicitly.
+    public synchronized void setIdleConnectionTimeout(long timeoutMillis) {
+        _sync_idleConnectionTimeout = (timeoutMillis > 0) ? timeoutMillis : 0;
+
+        synchronized (responseBufferLock) {
+            if (_sync_isDefaultResponseBufferBudget) {
+                long high = (_sync_idleConnectionTimeout > 0) ? DEFAULT_RESPONSE_BUFFER_BUDGET : 0;
+                _sync_responseBufferedBytesHighWatermark = high;
+                _sync_responseBufferedBytesLowWatermark = high / 4 * 3;
+                responseBufferLock.notifyAll();
+            }
+        }
+
+        if (_sync_reaper != null) {
+            timerWheel.cancel(_sync_reaper);
+            _sync_reaper = null;
+        }
+
+        _sync_scheduleReaper();
+    }
+
+    private void _sync_scheduleReaper() {
+        if (_sync_reaper != null || _sync_idleConnectionTimeout <= 0 ||
+                (connectionQueue.isEmpty() && prefetchGroups.isEmpty())) {
+            return;
+        }
+
+        _sync_reaper = timerWheel.schedule(new Runnable() {
+            public void run() {
+                reapIdleConnections();
+            }
+        }, Math.max(MIN_REAP_INTERVAL, _sync_idleConnectionTimeout / 4));
+    }
+
+    private void reapIdleConnections() {
+        List<UnityURLClientConnection> connections;
+        List<UnityURLClientPrefetchGroup> groups;
+        final List<UnityURLClientConnection> reapedConnections = new ArrayList<UnityURLClientConnection>();
+        final List<UnityURLClientPrefetchGroup> reapedGroups = new ArrayList<UnityURLClientPrefetchGroup>();
+        long idleTime;
+
+        synchronized (this) {
+            _sync_reaper = null;
+            connections = new ArrayList<UnityURLClientConnection>(connectionQueue.values());
+            groups = new ArrayList<UnityURLClientPrefetchGroup>(prefetchGroups.values());
+            idleTime = _sync_idleConnectionTimeout;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < connections.size() && idleTime > 0; ++i) {
+            UnityURLClientConnection connection = connections.get(i);
+
+            if (now - connection.lastAccessTime < idleTime || !connection.isReapable(now, idleTime)) {
+                continue;
+            }
+
+            synchronized (this) {
+                // looked up again in the meantime
+                if (connectionQueue.get(connection.connectionID) != connection ||
+                        now - connection.lastAccessTime < idleTime) {
+                    continue;
+                }
+
+                connectionQueue.remove(connection.connectionID);
+                ++_sync_reapedConnectionCount;
+            }
+
+            UnityURLClientDebug.d(TAG, "reapIdleConnections: " + connection.connectionID);
+            reapedConnections.add(connection);
+        }
+
+        // finished groups stay around for a while so that Unity can still
+        // read their totals
+        for (int i = 0; i < groups.size() && idleTime > 0; ++i) {
+            UnityURLClientPrefetchGroup group = groups.get(i);
+
+            if (now - group.lastAccessTime < idleTime || group.getRemainingCount() > 0) {
+                continue;
+            }
+
+            synchronized (this) {
+                if (prefetchGroups.get(group.groupID) != group || now - group.lastAccessTime < idleTime) {
+                    continue;
+                }
+
+                prefetchGroups.remove(group.groupID);
+            }
+
+            UnityURLClientDebug.d(TAG, "reapIdleConnections: prefetch group " + group.groupID);
+            reapedGroups.add(group);
+        }
+
+        // disconnecting may be slow, so it must not hold up the timer wheel
+        if (!reapedConnections.isEmpty() || !reapedGroups.isEmpty()) {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    for (int i = 0; i < reapedConnections.size(); ++i) {
+                        reapedConnections.get(i).cancel();
+                        reapedConnections.get(i).releaseResources();
+                    }
+
+                    for (int i = 0; i < reapedGroups.size(); ++i) {
+                        reapedGroups.get(i).releaseResources();
+                    }
+                }
+            });
+        }
+
+        synchronized (this) {
+            _sync_scheduleReaper();
+        }
+    }
+
+    // Timeouts in seconds for connections started by prefetch afterwards,
+    // where 0 means no limit. Without them an unresponsive host would hold
+    // its prefetch slot forever.
+    public synchronized void setPrefetchTimeouts(float connectTimeout, float readTimeout, float totalTimeout) {
+        _sync_prefetchConnectTimeout = connectTimeout;
+        _sync_prefetchReadTimeout = readTimeout;
+        _sync_prefetchTotalTimeout = totalTimeout;
+    }
+
+    // Prefetch connections are owned by their group and are not visible
+    // through connectionHavingID.
+    public int prefetch(String[] urls, String[] dstPaths, int[] priorities, long byteBudget, boolean allowMetered) {
+        UnityURLClientPrefetchGroup group;
+        float connectTimeout;
+        float readTimeout;
+        float totalTimeout;
+
+        synchronized (this) {
+            connectTimeout = _sync_prefetchConnectTimeout;
+            readTimeout = _sync_prefetchReadTimeout;
+            totalTimeout = _sync_prefetchTotalTimeout;
+            int id = ++_curPrefetchGroupId;
+
+            if (id == 0) {
+                id = ++_curPrefetchGroupId;
+            }
+
+            group = new UnityURLClientPrefetchGroup(id, byteBudget, allowMetered);
+            prefetchGroups.put(id, group);
+            _sync_scheduleReaper();
+        }
+
+        List<UnityURLClientConnection> connections = new ArrayList<UnityURLClientConnection>();
+
+        for (int i = 0; i < urls.length && i < dstPaths.length; ++i) {
+            UnityURLClientConnection connection = new UnityURLClientConnection("GET", urls[i], 0, connectTimeout,
+                                                                             readTimeout, totalTimeout);
+            connection.setResponseContentDestination(dstPaths[i], true);
+
+            if (priorities != null && i < priorities.length) {
+                connection.setPriority(priorities[i]);
+            }
+
+            connection.manager = this;
+            connection.prefetchGroup = group;
+            group.addConnection(connection);
+
+            // sent in priority order, since the first one starts right away
+            int index = connections.size();
+
+            while (index > 0 && connections.get(index - 1).getPriority() < connection.getPriority()) {
+                --index;
+            }
+
+            connections.add(index, connection);
+        }
+
+        for (int i = 0; i < connections.size(); ++i) {
+            connections.get(i).sendRequest();
+        }
+
+        return group.groupID;
+    }
+
+    public synchronized UnityURLClientPrefetchGroup prefetchGroupHavingID(int groupID) {
+        UnityURLClientPrefetchGroup group = prefetchGroups.get(groupID);
+
+        if (group != null) {
+            group.lastAccessTime = System.currentTimeMillis();
+        }
+
+        return group;
+    }
+
+    public void cancelPrefetch(int groupID) {
+        UnityURLClientPrefetchGroup group;
+
+        synchronized (this) {
+            group = prefetchGroups.remove(groupID);
+        }
+
+        if (group != null) {
+            group.cancel();
+            scheduler.reschedule();
+            group.releaseResources();
+        }
     }
 
     public synchronized UnityURLClientConnection dequeueConnection(int connectionID) {
@@ -0,0 +1,227 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class UnityURLClientDigestVerifier {
+    private String _algorithm;
+    private byte[] _expectedDigest;
+    private long _chunkSize;
+    private List<byte[]> _expectedChunkDigests;
+
+    private MessageDigest _digest;
+    private MessageDigest _chunkDigest;
+    private long _position;
+    private long _chunkPosition;
+    private byte[] _actualDigest;
+    private List<byte[]> _actualChunkDigests;
+
+    public UnityURLClientDigestVerifier(String algorithm, String expectedDigest,
+                                        long chunkSize, String[] expectedChunkDigests) throws NoSuchAlgorithmException {
+        _algorithm = algorithm;
+        _digest = MessageDigest.getInstance(algorithm);
+        _expectedDigest = fromHex(expectedDigest);
+
+        if (chunkSize > 0 && expectedChunkDigests != null && expectedChunkDigests.length > 0) {
+            _chunkSize = chunkSize;
+            _chunkDigest = MessageDigest.getInstance(algorithm);
+            _expectedChunkDigests = new ArrayList<byte[]>(expectedChunkDigests.length);
+
+            for (int i = 0; i < expectedChunkDigests.length; ++i) {
+                _expectedChunkDigests.add(fromHex(expectedChunkDigests[i]));
+            }
+        }
+
+        reset();
+    }
+
+    public static byte[] fromHex(String hex) {
+        if (hex == null || hex.length() == 0 || (hex.length() & 1) != 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[hex.length() / 2];
+
+        for (int i = 0; i < bytes.length; ++i) {
+            int hi = Character.digit(hex.charAt(i * 2), 16);
+            int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+
+            if (hi < 0 || lo < 0) {
+                return null;
+            }
+
+            bytes[i] = (byte)((hi << 4) | lo);
+        }
+
+        return bytes;
+    }
+
+    public void reset() {
+        _digest.reset();
+
+        if (_chunkDigest != null) {
+            _chunkDigest.reset();
+            _actualChunkDigests = new ArrayList<byte[]>();
+        }
+
+        _position = 0;
+        _chunkPosition = 0;
+        _actualDigest = null;
+    }
+
+    public long getPosition() {
+        return _position;
+    }
+
+    public long getChunkSize() {
+        return _chunkSize;
+    }
+
+    public boolean hasChunkDigests() {
+        return _expectedChunkDigests != null;
+    }
+
+    public String getAlgorithm() {
+        return _algorithm;
+    }
+
+    public void update(byte[] buffer, int offset, int length) {
+        _digest.update(buffer, offset, length);
+        _position += length;
+
+        if (_chunkDigest == null) {
+            return;
+        }
+
+        while (length > 0) {
+            int size = length;
+
+            if (size > _chunkSize - _chunkPosition) {
+                size = (int)(_chunkSize - _chunkPosition);
+            }
+
+            _chunkDigest.update(buffer, offset, size);
+            _chunkPosition += size;
+            offset += size;
+            length -= size;
+
+            if (_chunkPosition >= _chunkSize) {
+                _actualChunkDigests.add(_chunkDigest.digest());
+                _chunkPosition = 0;
+            }
+        }
+    }
+
+    // Brings the digests up to date with a partially downloaded file, so
+    // that a resumed transfer only hashes the prefix it did not see.
+    public void seek(String path, long length, byte[] buffer) throws IOException {
+        if (length == _position) {
+            return;
+        }
+
+        reset();
+
+        if (length <= 0) {
+            return;
+        }
+
+        FileInputStream inputStream = new FileInputStream(path);
+
+        try {
+            long remaining = length;
+
+            while (remaining > 0) {
+                int size = inputStream.read(buffer, 0, (remaining < buffer.length) ? (int)remaining : buffer.length);
+
+                if (size == -1) {
+                    throw new IOException("Unexpected end of file: " + path);
+                }
+
+                update(buffer, 0, size);
+                remaining -= size;
+            }
+        }
+        finally {
+            inputStream.close();
+        }
+    }
+
+    public void finish() {
+        if (_actualDigest != null) {
+            return;
+        }
+
+        _actualDigest = _digest.digest();
+
+        if (_chunkDigest != null && _chunkPosition > 0) {
+            _actualChunkDigests.add(_chunkDigest.digest());
+            _chunkPosition = 0;
+        }
+    }
+
+    public boolean isDigestValid() {
+        return _expectedDigest == null || Arrays.equals(_expectedDigest, _actualDigest);
+    }
+
+    // Returns the indices of chunks whose digest did not match, including
+    // expected chunks that were never received.
+    public List<Integer> getCorruptChunks() {
+        List<Integer> corruptChunks = new ArrayList<Integer>();
+
+        if (_expectedChunkDigests == null) {
+            return corruptChunks;
+        }
+
+        for (int i = 0; i < _expectedChunkDigests.size(); ++i) {
+            if (i >= _actualChunkDigests.size() ||
+                    !Arrays.equals(_expectedChunkDigests.get(i), _actualChunkDigests.get(i))) {
+                corruptChunks.add(i);
+            }
+        }
+
+        return corruptChunks;
+    }
+
+    public boolean isChunkDigestValid(int index, byte[] digest) {
+        return index >= 0 && index < _expectedChunkDigests.size() &&
+               Arrays.equals(_expectedChunkDigests.get(index), digest);
+    }
+
+    public void setChunkDigest(int index, byte[] digest) {
+        if (index >= 0 && index < _actualChunkDigests.size()) {
+            _actualChunkDigests.set(index, digest);
+        }
+    }
+
+    public boolean hasExtraChunks() {
+        return _expectedChunkDigests != null && _actualChunkDigests.size() > _expectedChunkDigests.size();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.LinkedList;
+
+// Writes downloaded buffers to the destination file on its own thread, so
+// that a stalled disk does not stop the socket from being drained. The
+// reader hands over filled buffers through a bounded queue and blocks only
+// when the queue is full. The file is closed by the writer thread.
+public class UnityURLClientDiskWriter implements Runnable {
+    private static final String TAG = "UnityURLClientDiskWriter";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 4;
+
+    private static class Chunk {
+        final byte[] buffer;
+        final int size;
+
+        Chunk(byte[] buffer, int size) {
+            this.buffer = buffer;
+            this.size = size;
+        }
+    }
+
+    private final FileOutputStream outputStream;
+    private final UnityURLClientBufferPool bufferPool;
+    private final int queueCapacity;
+    private final long syncInterval;
+    private final boolean syncOnClose;
+    private final Thread thread;
+
+    private LinkedList<Chunk> _sync_chunks = new LinkedList<Chunk>();
+    private boolean _sync_isClosing;
+    private boolean _sync_isAborted;
+    private IOException _sync_exception;
+
+    // syncInterval is the number of bytes written between fsyncs, or 0 to
+    // leave it to the system.
+    public UnityURLClientDiskWriter(FileOutputStream outputStream, UnityURLClientBufferPool bufferPool,
+                                    int queueCapacity, long syncInterval, boolean syncOnClose) {
+        this.outputStream = outputStream;
+        this.bufferPool = bufferPool;
+        this.queueCapacity = (queueCapacity > 0) ? queueCapacity : DEFAULT_QUEUE_CAPACITY;
+        this.syncInterval = syncInterval;
+        this.syncOnClose = syncOnClose;
+        thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    // Takes ownership of buffer, unless an exception is thrown.
+    public void write(byte[] buffer, int size) throws IOException {
+        synchronized (this) {
+            while (_sync_chunks.size() >= queueCapacity && _sync_exception == null && !_sync_isAborted) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    throw new InterruptedIOException("Disk writer interrupted.");
+                }
+            }
+
+            if (_sync_exception != null) {
+                throw new IOException("Disk write failed: " + _sync_exception.getMessage());
+            }
+
+            if (_sync_isAborted) {
+                throw new IOException("Disk writer aborted.");
+            }
+
+            _sync_chunks.addLast(new Chunk(buffer, size));
+            notifyAll();
+        }
+    }
+
+    // Drops whatever is still queued without waiting for the writer thread.
+    public synchronized void abort() {
+        _sync_isAborted = true;
+        _sync_releaseChunks();
+        notifyAll();
+    }
+
+    // Waits until everything queued is written and the file is closed.
+    public void close() throws IOException {
+        synchronized (this) {
+            _sync_isClosing = true;
+            notifyAll();
+        }
+
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException("Disk writer interrupted.");
+        }
+
+        synchronized (this) {
+            if (_sync_exception != null) {
+                throw new IOException("Disk write failed: " + _sync_exception.getMessage());
+            }
+        }
+    }
+
+    public void run() {
+        long unsyncedBytes = 0;
+
+        try {
+            for (;;) {
+                Chunk chunk;
+
+                synchronized (this) {
+                    while (_sync_chunks.isEmpty() && !_sync_isClosing && !_sync_isAborted) {
+                        wait();
+                    }
+
+                    if (_sync_isAborted || _sync_chunks.isEmpty()) {
+                        break;
+                    }
+
+                    chunk = _sync_chunks.removeFirst();
+                    notifyAll();
+                }
+
+                try {
+                    outputStream.write(chunk.buffer, 0, chunk.size);
+                }
+                finally {
+                    release(chunk.buffer);
+                }
+
+                unsyncedBytes += chunk.size;
+
+                if (syncInterval > 0 && unsyncedBytes >= syncInterval) {
+                    outputStream.getFD().sync();
+                    unsyncedBytes = 0;
+                }
+            }
+
+            if (syncOnClose && unsyncedBytes > 0 && !isAborted()) {
+                outputStream.getFD().sync();
+            }
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "run:" + e.toString());
+
+            synchronized (this) {
+                _sync_exception = (e instanceof IOException) ? (IOException)e : new IOException(e.toString());
+                _sync_releaseChunks();
+                notifyAll();
+            }
+        }
+        finally {
+            try {
+                outputStream.close();
+            }
+            catch (IOException e) {
+                UnityURLClientDebug.e(TAG, "run:" + e.toString());
+            }
+        }
+    }
+
+    private synchronized boolean isAborted() {
+        return _sync_isAborted;
+    }
+
+    private void _sync_releaseChunks() {
+        while (!_sync_chunks.isEmpty()) {
+            release(_sync_chunks.removeFirst().buffer);
+        }
+    }
+
+    private void release(byte[] buffer) {
+        if (bufferPool != null) {
+            bufferPool.release(buffer);
+        }
+    }
+}
@@ -42,6 +42,8 @@ public class UnityURLClientError {
         CannotConnectToInternetError,
         ConnectionLostError,
         ConnectionTimeoutError,
+        IntegrityCheckError,
+        CircuitOpenError,
         LastError,
     }
 
@@ -61,6 +63,8 @@ public class UnityURLClientError {
     public static final String kUnityURLClientCannotConnectToInternetError = "Cannot connect to internet";
     public static final String kUnityURLClientConnectionLostError = "Connection to host was lost";
     public static final String kUnityURLClientConnectionTimeoutError = "Connection timed out";
+    public static final String kUnityURLClientIntegrityCheckError = "Downloaded content failed integrity check";
+    public static final String kUnityURLClientCircuitOpenError = "Host is unavailable after repeated failures";
 
     public static final String[] ErrorDescriptions = new String[] {
         kUnityURLClientNoneError,
@@ -78,7 +82,9 @@ public class UnityURLClientError {
         kUnityURLClientCannotConnectToHostError,
         kUnityURLClientCannotConnectToInternetError,
         kUnityURLClientConnectionLostError,
-        kUnityURLClientConnectionTimeoutError
+        kUnityURLClientConnectionTimeoutError,
+        kUnityURLClientIntegrityCheckError,
+        kUnityURLClientCircuitOpenError
     };
 
     public static String getErrorDescriptions(int code) {
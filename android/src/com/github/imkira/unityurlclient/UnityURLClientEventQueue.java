@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+// Records connection state transitions so that Unity can find the
+// connections that changed with a single call per frame, instead of
+// polling each of them. Events are stored as connection ID / event type
+// pairs in a bounded ring buffer.
+public class UnityURLClientEventQueue {
+    private static final String TAG = "UnityURLClientEventQueue";
+
+    // reported with connection ID 0 when events were dropped, after which
+    // every connection has to be polled once
+    public static final int EVENT_OVERFLOW = 0;
+    public static final int EVENT_HEADERS_READY = 1;
+    public static final int EVENT_FINISHED = 2;
+    public static final int EVENT_CANCELLED = 3;
+    public static final int EVENT_ERROR = 4;
+    public static final int EVENT_REQUEST_CONTENT_RELEASED = 5;
+
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private int[] _sync_events = new int[DEFAULT_CAPACITY * 2];
+    private int _sync_head;
+    private int _sync_count;
+    private boolean _sync_isOverflowed;
+
+    public synchronized void post(int connectionID, int event) {
+        int capacity = _sync_events.length / 2;
+
+        if (_sync_count == capacity) {
+            // the oldest event is dropped
+            _sync_head = (_sync_head + 1) % capacity;
+            --_sync_count;
+
+            if (!_sync_isOverflowed) {
+                UnityURLClientDebug.e(TAG, "post: overflow.");
+                _sync_isOverflowed = true;
+            }
+        }
+
+        int index = ((_sync_head + _sync_count) % capacity) * 2;
+        _sync_events[index] = connectionID;
+        _sync_events[index + 1] = event;
+        ++_sync_count;
+        notifyAll();
+    }
+
+    public synchronized int getCount() {
+        return _sync_count + (_sync_isOverflowed ? 1 : 0);
+    }
+
+    // Removes up to maxEvents events and returns them as connection ID /
+    // event type pairs, oldest first.
+    public synchronized int[] drain(int maxEvents) {
+        int count = getCount();
+
+        if (maxEvents > 0 && count > maxEvents) {
+            count = maxEvents;
+        }
+
+        int[] events = new int[count * 2];
+        int offset = 0;
+
+        if (_sync_isOverflowed && count > 0) {
+            events[offset++] = 0;
+            events[offset++] = EVENT_OVERFLOW;
+            _sync_isOverflowed = false;
+            --count;
+        }
+
+        int capacity = _sync_events.length / 2;
+
+        for (; count > 0; --count) {
+            int index = _sync_head * 2;
+            events[offset++] = _sync_events[index];
+            events[offset++] = _sync_events[index + 1];
+            _sync_head = (_sync_head + 1) % capacity;
+            --_sync_count;
+        }
+
+        return events;
+    }
+
+    // Blocks until an event is available or timeoutMillis elapse, and
+    // returns whether events are available.
+    public synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+
+        while (getCount() == 0) {
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (remaining <= 0) {
+                return false;
+            }
+
+            wait(remaining);
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// Happy Eyeballs (RFC 8305): connects to the IPv6 and IPv4 addresses of a
+// host in parallel, starting one attempt every CONNECTION_ATTEMPT_DELAY,
+// and remembers which address answered first so that a broken address
+// family does not cost a full connect timeout on every request.
+public class UnityURLClientHappyEyeballs {
+    private static final String TAG = "UnityURLClientHappyEyeballs";
+
+    public static final long CONNECTION_ATTEMPT_DELAY = 250;
+    public static final long DEFAULT_CACHE_TTL = 10 * 60 * 1000;
+
+    public interface Resolver {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    public static final Resolver SYSTEM_RESOLVER = new Resolver() {
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            return InetAddress.getAllByName(host);
+        }
+    };
+
+    private static class CachedAddress {
+        final InetAddress address;
+        final long expirationTime;
+
+        CachedAddress(InetAddress address, long expirationTime) {
+            this.address = address;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+    // A single race, which can be aborted from another thread.
+    public static class Race {
+        private volatile boolean isAborted;
+        private volatile Selector selector;
+
+        public void abort() {
+            isAborted = true;
+            Selector s = selector;
+
+            if (s != null) {
+                s.wakeup();
+            }
+        }
+
+        InetAddress run(InetAddress[] addresses, int port, long timeoutMillis) throws IOException {
+            List<InetAddress> ordered = interleave(addresses);
+            List<SocketChannel> channels = new ArrayList<SocketChannel>();
+            selector = Selector.open();
+
+            try {
+                long now = System.currentTimeMillis();
+                long deadline = (timeoutMillis > 0) ? now + timeoutMillis : 0;
+                long nextAttemptTime = now;
+                int next = 0;
+                int pending = 0;
+                IOException lastException = null;
+
+                for (;;) {
+                    if (isAborted) {
+                        throw new IOException("Connect aborted.");
+                    }
+
+                    now = System.currentTimeMillis();
+
+                    // a failed attempt lets the next one start right away
+                    if (next < ordered.size() && (now >= nextAttemptTime || pending == 0)) {
+                        InetAddress address = ordered.get(next++);
+                        SocketChannel channel = SocketChannel.open();
+                        channels.add(channel);
+                        nextAttemptTime = now + CONNECTION_ATTEMPT_DELAY;
+
+                        try {
+                            channel.configureBlocking(false);
+
+                            if (channel.connect(new InetSocketAddress(address, port))) {
+                                return address;
+                            }
+
+                            channel.register(selector, SelectionKey.OP_CONNECT, address);
+                            ++pending;
+                        }
+                        catch (IOException e) {
+                            UnityURLClientDebug.d(TAG, "run: " + address + " " + e.toString());
+                            lastException = e;
+                            channel.close();
+                        }
+
+                        continue;
+                    }
+
+                    if (pending == 0) {
+                        throw (lastException != null) ? lastException : new ConnectException("No address to connect to.");
+                    }
+
+                    if (deadline > 0 && now >= deadline) {
+                        throw new SocketTimeoutException("Connect timed out.");
+                    }
+
+                    // 0 waits until one of the attempts completes
+                    long delay = 0;
+
+                    if (next < ordered.size()) {
+                        delay = Math.max(1, nextAttemptTime - now);
+                    }
+
+                    if (deadline > 0 && (delay == 0 || deadline - now < delay)) {
+                        delay = Math.max(1, deadline - now);
+                    }
+
+                    selector.select(delay);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        SocketChannel channel = (SocketChannel)key.channel();
+
+                        try {
+                            if (channel.finishConnect()) {
+                                return (InetAddress)key.attachment();
+                            }
+                        }
+                        catch (IOException e) {
+                            UnityURLClientDebug.d(TAG, "run: " + key.attachment() + " " + e.toString());
+                            lastException = e;
+                            key.cancel();
+                            channel.close();
+                            --pending;
+                        }
+                    }
+                }
+            }
+            finally {
+                // only the address is kept, the socket is not reused
+                for (int i = 0; i < channels.size(); ++i) {
+                    try {
+                        channels.get(i).close();
+                    }
+                    catch (IOException e) {
+                        // do nothing
+                    }
+                }
+
+                selector.close();
+            }
+        }
+    }
+
+    private Resolver _sync_resolver = SYSTEM_RESOLVER;
+    private boolean _sync_isEnabled;
+    private long _sync_cacheTTL = DEFAULT_CACHE_TTL;
+    private Map<String, CachedAddress> _sync_cache = new HashMap<String, CachedAddress>();
+
+    public synchronized boolean isEnabled() {
+        return _sync_isEnabled;
+    }
+
+    public synchronized void setEnabled(boolean isEnabled) {
+        _sync_isEnabled = isEnabled;
+    }
+
+    public synchronized void setResolver(Resolver resolver) {
+        _sync_resolver = (resolver != null) ? resolver : SYSTEM_RESOLVER;
+        _sync_cache.clear();
+    }
+
+    public synchronized void setCacheTTL(long ttlMillis) {
+        _sync_cacheTTL = ttlMillis;
+        _sync_cache.clear();
+    }
+
+    public synchronized void clearCache() {
+        _sync_cache.clear();
+    }
+
+    // Called when the remembered address stopped working.
+    public synchronized void invalidate(String host, InetAddress address) {
+        CachedAddress cached = _sync_cache.get(host.toLowerCase());
+
+        if (cached != null && cached.address.equals(address)) {
+            _sync_cache.remove(host.toLowerCase());
+        }
+    }
+
+    // Returns the address to connect to, or null if the host does not have
+    // addresses of both families, in which case there is nothing to race.
+    public InetAddress selectAddress(String host, int port, long timeoutMillis, Race race) throws IOException {
+        String key = host.toLowerCase();
+        Resolver resolver;
+
+        synchronized (this) {
+            CachedAddress cached = _sync_cache.get(key);
+
+            if (cached != null) {
+                if (cached.expirationTime > System.currentTimeMillis()) {
+                    return cached.address;
+                }
+
+                _sync_cache.remove(key);
+            }
+
+            resolver = _sync_resolver;
+        }
+
+        InetAddress[] addresses = resolver.resolve(host);
+        boolean hasIPv6 = false;
+        boolean hasIPv4 = false;
+
+        for (int i = 0; i < addresses.length; ++i) {
+            if (addresses[i] instanceof Inet6Address) {
+                hasIPv6 = true;
+            }
+            else {
+                hasIPv4 = true;
+            }
+        }
+
+        if (!hasIPv6 || !hasIPv4) {
+            return null;
+        }
+
+        InetAddress address = race.run(addresses, port, timeoutMillis);
+        UnityURLClientDebug.d(TAG, "selectAddress: " + host + " " + address);
+
+        synchronized (this) {
+            if (_sync_cacheTTL > 0) {
+                _sync_cache.put(key, new CachedAddress(address, System.currentTimeMillis() + _sync_cacheTTL));
+            }
+        }
+
+        return address;
+    }
+
+    // Alternates between the families, starting with the one the resolver
+    // listed first.
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        List<InetAddress> ipv6 = new ArrayList<InetAddress>();
+        List<InetAddress> ipv4 = new ArrayList<InetAddress>();
+
+        for (int i = 0; i < addresses.length; ++i) {
+            if (addresses[i] instanceof Inet6Address) {
+                ipv6.add(addresses[i]);
+            }
+            else {
+                ipv4.add(addresses[i]);
+            }
+        }
+
+        boolean isIPv6First = addresses.length > 0 && (addresses[0] instanceof Inet6Address);
+        List<InetAddress> first = isIPv6First ? ipv6 : ipv4;
+        List<InetAddress> second = isIPv6First ? ipv4 : ipv6;
+        List<InetAddress> ordered = new ArrayList<InetAddress>();
+
+        for (int i = 0; i < first.size() || i < second.size(); ++i) {
+            if (i < first.size()) {
+                ordered.add(first.get(i));
+            }
+
+            if (i < second.size()) {
+                ordered.add(second.get(i));
+            }
+        }
+
+        return ordered;
+    }
+}
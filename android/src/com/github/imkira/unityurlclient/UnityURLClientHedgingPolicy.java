@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.Arrays;
+
+// Shared state for hedged requests: the header latencies seen recently,
+// from which an adaptive hedge delay is derived, and a token budget that
+// keeps hedges from doubling the load when a server is struggling. Every
+// hedged request earns budgetRatio tokens and every hedge costs one.
+public class UnityURLClientHedgingPolicy {
+    public static final int LATENCY_SAMPLE_COUNT = 128;
+    public static final int MIN_LATENCY_SAMPLE_COUNT = 20;
+    public static final long MIN_ADAPTIVE_DELAY = 50;
+    public static final int DEFAULT_PERCENTILE = 95;
+    public static final float DEFAULT_BUDGET_RATIO = 0.1f;
+    public static final float DEFAULT_MAX_TOKENS = 10.0f;
+
+    private long[] _sync_latencies = new long[LATENCY_SAMPLE_COUNT];
+    private int _sync_latencyCount;
+    private int _sync_latencyIndex;
+    private float _sync_budgetRatio = DEFAULT_BUDGET_RATIO;
+    private float _sync_maxTokens = DEFAULT_MAX_TOKENS;
+    private float _sync_tokens = DEFAULT_MAX_TOKENS;
+    private long _sync_hedgeCount;
+    private long _sync_hedgeWinCount;
+
+    public synchronized void setBudget(float budgetRatio, float maxTokens) {
+        _sync_budgetRatio = (budgetRatio > 0.0f) ? budgetRatio : 0.0f;
+        _sync_maxTokens = (maxTokens > 0.0f) ? maxTokens : 0.0f;
+
+        if (_sync_tokens > _sync_maxTokens) {
+            _sync_tokens = _sync_maxTokens;
+        }
+    }
+
+    public synchronized void recordRequest() {
+        _sync_tokens = Math.min(_sync_maxTokens, _sync_tokens + _sync_budgetRatio);
+    }
+
+    public synchronized boolean tryAcquireHedge() {
+        if (_sync_tokens < 1.0f) {
+            return false;
+        }
+
+        _sync_tokens -= 1.0f;
+        ++_sync_hedgeCount;
+        return true;
+    }
+
+    public synchronized void recordHedgeWin() {
+        ++_sync_hedgeWinCount;
+    }
+
+    public synchronized void recordLatency(long latencyMillis) {
+        _sync_latencies[_sync_latencyIndex] = latencyMillis;
+        _sync_latencyIndex = (_sync_latencyIndex + 1) % _sync_latencies.length;
+
+        if (_sync_latencyCount < _sync_latencies.length) {
+            ++_sync_latencyCount;
+        }
+    }
+
+    // Returns the given percentile of the recent header latencies, or 0 if
+    // there are too few of them to tell what is slow.
+    public synchronized long getAdaptiveDelay(int percentile) {
+        if (_sync_latencyCount < MIN_LATENCY_SAMPLE_COUNT) {
+            return 0;
+        }
+
+        if (percentile <= 0 || percentile > 100) {
+            percentile = DEFAULT_PERCENTILE;
+        }
+
+        long[] latencies = Arrays.copyOf(_sync_latencies, _sync_latencyCount);
+        Arrays.sort(latencies);
+        int index = (int)Math.ceil(latencies.length * percentile / 100.0) - 1;
+        return Math.max(MIN_ADAPTIVE_DELAY, latencies[Math.max(0, index)]);
+    }
+
+    public synchronized long getHedgeCount() {
+        return _sync_hedgeCount;
+    }
+
+    public synchronized long getHedgeWinCount() {
+        return _sync_hedgeWinCount;
+    }
+}
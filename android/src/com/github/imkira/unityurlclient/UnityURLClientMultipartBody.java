@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// A multipart/form-data request body that is streamed part by part, so
+// that files and buffers are never copied into memory as a whole.
+public class UnityURLClientMultipartBody {
+    private static final String TAG = "UnityURLClientMultipartBody";
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final char[] BOUNDARY_CHARS =
+        "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+    private static class Part {
+        byte[] header;
+        byte[] content;
+        ByteBuffer buffer;
+        String path;
+
+        long getContentLength() {
+            if (content != null) {
+                return content.length;
+            }
+
+            if (buffer != null) {
+                return buffer.remaining();
+            }
+
+            File file = new File(path);
+            return file.isFile() ? file.length() : -1;
+        }
+
+        InputStream openContent() throws IOException {
+            if (content != null) {
+                return new ByteArrayInputStream(content);
+            }
+
+            if (buffer != null) {
+                return new ByteBufferInputStream(buffer.duplicate());
+            }
+
+            return new FileInputStream(path);
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? (buffer.get() & 0xff) : -1;
+        }
+
+        public int read(byte[] dst, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            if (length > buffer.remaining()) {
+                length = buffer.remaining();
+            }
+
+            buffer.get(dst, offset, length);
+            return length;
+        }
+    }
+
+    // Walks the parts in order, opening each content stream only when it
+    // is reached.
+    private class BodyInputStream extends InputStream {
+        private int partIndex;
+        private int segment;
+        private InputStream current;
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) == -1) ? -1 : (b[0] & 0xff);
+        }
+
+        public int read(byte[] dst, int offset, int length) throws IOException {
+            for (;;) {
+                if (current == null && !openNext()) {
+                    return -1;
+                }
+
+                int size = current.read(dst, offset, length);
+
+                if (size != -1) {
+                    return size;
+                }
+
+                current.close();
+                current = null;
+            }
+        }
+
+        // every part is made of its header, content and trailing CRLF, and
+        // the body ends with the closing delimiter
+        private boolean openNext() throws IOException {
+            if (partIndex > parts.size()) {
+                return false;
+            }
+
+            if (partIndex == parts.size()) {
+                current = new ByteArrayInputStream(closingDelimiter);
+                ++partIndex;
+                return true;
+            }
+
+            Part part = parts.get(partIndex);
+
+            switch (segment++) {
+                case 0:
+                    current = new ByteArrayInputStream(part.header);
+                    break;
+                case 1:
+                    current = part.openContent();
+                    break;
+                default:
+                    current = new ByteArrayInputStream(CRLF);
+                    segment = 0;
+                    ++partIndex;
+                    break;
+            }
+
+            return true;
+        }
+
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+
+            partIndex = parts.size() + 1;
+        }
+    }
+
+    private final String boundary;
+    private final byte[] closingDelimiter;
+    private final List<Part> parts = new ArrayList<Part>();
+
+    public UnityURLClientMultipartBody() {
+        Random random = new Random();
+        char[] chars = new char[32];
+
+        for (int i = 0; i < chars.length; ++i) {
+            chars[i] = BOUNDARY_CHARS[random.nextInt(BOUNDARY_CHARS.length)];
+        }
+
+        boundary = "UnityURLClient" + new String(chars);
+        closingDelimiter = encode("--" + boundary + "--\r\n");
+    }
+
+    public String getContentType() {
+        return "multipart/form-data; boundary=" + boundary;
+    }
+
+    public void addField(String name, String value) {
+        Part part = new Part();
+        part.header = createHeader(name, null, null);
+        part.content = encode(value != null ? value : "");
+        parts.add(part);
+    }
+
+    public void addBytes(String name, String fileName, String contentType, byte[] content, long length) {
+        Part part = new Part();
+        part.header = createHeader(name, fileName, contentType);
+
+        if (content == null) {
+            part.content = new byte[0];
+        }
+        else if (length >= 0 && length < content.length) {
+            part.buffer = ByteBuffer.wrap(content, 0, (int)length);
+        }
+        else {
+            part.content = content;
+        }
+
+        parts.add(part);
+    }
+
+    // The bytes between the position and the limit of buffer are sent, and
+    // buffer must stay valid until the request content is released.
+    public void addBuffer(String name, String fileName, String contentType, ByteBuffer buffer) {
+        Part part = new Part();
+        part.header = createHeader(name, fileName, contentType);
+        part.buffer = buffer;
+        parts.add(part);
+    }
+
+    public void addFile(String name, String fileName, String contentType, String path) {
+        if (fileName == null) {
+            fileName = new File(path).getName();
+        }
+
+        Part part = new Part();
+        part.header = createHeader(name, fileName, contentType);
+        part.path = path;
+        parts.add(part);
+    }
+
+    // Returns -1 if a file part cannot be found, in which case opening the
+    // body fails as well.
+    public long getContentLength() {
+        long length = closingDelimiter.length;
+
+        for (int i = 0; i < parts.size(); ++i) {
+            Part part = parts.get(i);
+            long contentLength = part.getContentLength();
+
+            if (contentLength < 0) {
+                return -1;
+            }
+
+            length += part.header.length + contentLength + CRLF.length;
+        }
+
+        return length;
+    }
+
+    public InputStream open() throws IOException {
+        for (int i = 0; i < parts.size(); ++i) {
+            Part part = parts.get(i);
+
+            if (part.path != null && !new File(part.path).isFile()) {
+                UnityURLClientDebug.e(TAG, "open: File not found: " + part.path);
+                throw new FileNotFoundException(part.path);
+            }
+        }
+
+        return new BodyInputStream();
+    }
+
+    private byte[] createHeader(String name, String fileName, String contentType) {
+        StringBuilder header = new StringBuilder();
+        header.append("--").append(boundary).append("\r\n");
+        header.append("Content-Disposition: form-data; name=\"").append(escape(name)).append('"');
+
+        if (fileName != null) {
+            header.append("; filename=\"").append(escape(fileName)).append('"');
+
+            if (contentType == null) {
+                contentType = "application/octet-stream";
+            }
+        }
+
+        header.append("\r\n");
+
+        if (contentType != null) {
+            header.append("Content-Type: ").append(contentType).append("\r\n");
+        }
+
+        header.append("\r\n");
+        return encode(header.toString());
+    }
+
+    // quotes and line breaks cannot appear in a quoted header parameter
+    private static String escape(String value) {
+        if (value == null) {
+            return "";
+        }
+
+        return value.replace("\"", "%22").replace("\r", "%0D").replace("\n", "%0A");
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            return value.getBytes();
+        }
+    }
+}
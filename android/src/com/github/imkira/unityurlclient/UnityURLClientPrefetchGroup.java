@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A group of background downloads started together by prefetch. The group
+// shares a byte budget and is cancelled as a whole.
+public class UnityURLClientPrefetchGroup {
+    private static final String TAG = "UnityURLClientPrefetchGroup";
+
+    public final int groupID;
+    volatile long lastAccessTime = System.currentTimeMillis();
+    private final long _byteBudget;
+    private final boolean _allowMetered;
+    private List<UnityURLClientConnection> _sync_connections = new ArrayList<UnityURLClientConnection>();
+    private long _sync_bytesRead;
+    private boolean _sync_isCancelled;
+
+    // A byteBudget of 0 or less means no budget.
+    public UnityURLClientPrefetchGroup(int groupID, long byteBudget, boolean allowMetered) {
+        this.groupID = groupID;
+        _byteBudget = byteBudget;
+        _allowMetered = allowMetered;
+    }
+
+    public synchronized void addConnection(UnityURLClientConnection connection) {
+        _sync_connections.add(connection);
+    }
+
+    public boolean isAllowedOnMeteredNetwork() {
+        return _allowMetered;
+    }
+
+    public synchronized boolean isCancelled() {
+        return _sync_isCancelled;
+    }
+
+    public synchronized long getBytesRead() {
+        return _sync_bytesRead;
+    }
+
+    // Downloads that are neither finished nor failed.
+    public int getRemainingCount() {
+        List<UnityURLClientConnection> connections;
+
+        synchronized (this) {
+            connections = new ArrayList<UnityURLClientConnection>(_sync_connections);
+        }
+
+        int count = 0;
+
+        for (int i = 0; i < connections.size(); ++i) {
+            UnityURLClientConnection connection = connections.get(i);
+
+            if (connection.getState() < UnityURLClientConnection.State.FinishedState.ordinal() &&
+                    connection.getErrorCode() == UnityURLClientError.Error.NoneError.ordinal()) {
+                ++count;
+            }
+        }
+
+        return count;
+    }
+
+    // Returns false once the budget is used up.
+    public boolean consume(long size) {
+        synchronized (this) {
+            _sync_bytesRead += size;
+
+            if (_byteBudget <= 0 || _sync_bytesRead <= _byteBudget) {
+                return true;
+            }
+        }
+
+        UnityURLClientDebug.d(TAG, "consume: budget exhausted for group " + groupID);
+        return false;
+    }
+
+    // Connections are cancelled outside this group's lock, since their
+    // workers call consume while running.
+    public void cancel() {
+        List<UnityURLClientConnection> connections;
+
+        synchronized (this) {
+            if (_sync_isCancelled) {
+                return;
+            }
+
+            _sync_isCancelled = true;
+            connections = new ArrayList<UnityURLClientConnection>(_sync_connections);
+        }
+
+        for (int i = 0; i < connections.size(); ++i) {
+            connections.get(i).cancel();
+        }
+    }
+
+    public void releaseResources() {
+        List<UnityURLClientConnection> connections;
+
+        synchronized (this) {
+            connections = new ArrayList<UnityURLClientConnection>(_sync_connections);
+            _sync_connections.clear();
+        }
+
+        for (int i = 0; i < connections.size(); ++i) {
+            connections.get(i).releaseResources();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the targets of permanent (301/308) redirects so that later
+// requests to the same URL skip the round trip. Least recently used
+// entries are evicted once the capacity is reached.
+public class UnityURLClientRedirectCache {
+    private static final String TAG = "UnityURLClientRedirectCache";
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    // guards against cycles left behind by servers changing their minds
+    private static final int MAX_CHAIN_LENGTH = 8;
+
+    private int _sync_capacity = DEFAULT_CAPACITY;
+    private LinkedHashMap<String,String> _sync_targets;
+
+    public UnityURLClientRedirectCache() {
+        _sync_targets = new LinkedHashMap<String,String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,String> eldest) {
+                return size() > _sync_capacity;
+            }
+        };
+    }
+
+    public synchronized void setCapacity(int capacity) {
+        UnityURLClientDebug.d(TAG, "setCapacity:" + capacity);
+        _sync_capacity = (capacity < 0) ? 0 : capacity;
+
+        while (_sync_targets.size() > _sync_capacity) {
+            String eldest = _sync_targets.keySet().iterator().next();
+            _sync_targets.remove(eldest);
+        }
+    }
+
+    public synchronized int getCapacity() {
+        return _sync_capacity;
+    }
+
+    public synchronized int size() {
+        return _sync_targets.size();
+    }
+
+    public synchronized void clear() {
+        _sync_targets.clear();
+    }
+
+    public synchronized void put(String url, String target) {
+        if (_sync_capacity <= 0 || url.equals(target)) {
+            return;
+        }
+
+        UnityURLClientDebug.d(TAG, "put:" + url + " -> " + target);
+        _sync_targets.put(url, target);
+    }
+
+    public synchronized void remove(String url) {
+        _sync_targets.remove(url);
+    }
+
+    // Follows cached permanent redirects starting at url. Returns null if
+    // url itself is not cached.
+    public synchronized String resolve(String url) {
+        String target = _sync_targets.get(url);
+
+        if (target == null) {
+            return null;
+        }
+
+        for (int i = 1; i < MAX_CHAIN_LENGTH; ++i) {
+            String next = _sync_targets.get(target);
+
+            if (next == null || next.equals(url)) {
+                break;
+            }
+
+            target = next;
+        }
+
+        return target;
+    }
+}
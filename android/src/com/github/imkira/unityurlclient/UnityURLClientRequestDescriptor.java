@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.Iterator;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// Builds a fully configured connection out of a JSON request descriptor,
+// so that a request can be created, configured and sent with a single
+// call from Unity. Every key other than "url" is optional:
+//
+// {
+//   "method": "GET", "url": "http://...", "cachePolicy": 0, "timeout": 60,
+//   "connectTimeout": 60, "readTimeout": 60, "totalTimeout": 0,
+//   "priority": 0,
+//   "headers": { "name": "value" },
+//   "auth": { "user": "...", "password": "..." },
+//   "followRedirects": true, "maxRedirects": 10,
+//   "allowInvalidSSLCertificate": false,
+//   "acceptableStatusCodes": [ [200, 299] ],
+//   "srcPath": "...",
+//   "resumable": { "srcPath": "...", "chunkSize": 0 },
+//   "multipart": [ { "name": "...", "value": "..." },
+//                  { "name": "...", "path": "...", "fileName": "...", "contentType": "..." } ],
+//   "dstPath": "...", "allowResume": false, "conditional": true,
+//   "ranges": [ [from, to] ],
+//   "digest": { "algorithm": "SHA-1", "digest": "...", "chunkSize": 0, "chunks": [] },
+//   "extract": { "dir": "...", "format": 0, "allowResume": false },
+//   "retry": { "maxAttempts": 1, "baseDelay": 0.5, "maxDelay": 30, "jitter": 0.5 },
+//   "bandwidthLimit": 0,
+//   "bufferSizeLimits": [ min, max ],
+//   "diskWrite": { "queueCapacity": 4, "syncInterval": 0, "syncOnClose": false },
+//   "hedge": { "delay": 0, "percentile": 95 },
+//   "bufferWatermarks": [ high, low ]
+// }
+public class UnityURLClientRequestDescriptor {
+    private static final String TAG = "UnityURLClientRequestDescriptor";
+
+    public static UnityURLClientConnection createConnection(JSONObject descriptor) {
+        String url = descriptor.optString("url", null);
+
+        if (url == null) {
+            UnityURLClientDebug.e(TAG, "createConnection: Missing url.");
+            return null;
+        }
+
+        UnityURLClientConnection connection = new UnityURLClientConnection(
+            descriptor.optString("method", "GET"), url,
+            descriptor.optInt("cachePolicy", 0),
+            (float)descriptor.optDouble("timeout", 0.0));
+
+        connection.setPriority(descriptor.optInt("priority", 0));
+
+        if (descriptor.has("connectTimeout") || descriptor.has("readTimeout") || descriptor.has("totalTimeout")) {
+            float timeout = (float)descriptor.optDouble("timeout", 0.0);
+            connection.setTimeouts((float)descriptor.optDouble("connectTimeout", timeout),
+                                   (float)descriptor.optDouble("readTimeout", timeout),
+                                   (float)descriptor.optDouble("totalTimeout", 0.0));
+        }
+
+        configure(connection, descriptor);
+        return connection;
+    }
+
+    private static void configure(UnityURLClientConnection connection, JSONObject descriptor) {
+        JSONObject headers = descriptor.optJSONObject("headers");
+
+        if (headers != null) {
+            Iterator<?> names = headers.keys();
+
+            while (names.hasNext()) {
+                String name = (String)names.next();
+                connection.setRequestHeader(name, headers.optString(name));
+            }
+        }
+
+        JSONObject auth = descriptor.optJSONObject("auth");
+
+        if (auth != null) {
+            connection.setRequestAuthCredential(auth.optString("user"), auth.optString("password"));
+        }
+
+        if (descriptor.has("followRedirects")) {
+            connection.setAllowFollowRedirects(descriptor.optBoolean("followRedirects", true),
+                                               descriptor.optInt("maxRedirects", -1));
+        }
+
+        if (descriptor.optBoolean("allowInvalidSSLCertificate", false)) {
+            connection.setAllowInvalidSSLCertificate(true);
+        }
+
+        JSONArray ranges = descriptor.optJSONArray("acceptableStatusCodes");
+
+        if (ranges != null) {
+            for (int i = 0; i < ranges.length(); ++i) {
+                JSONArray range = ranges.optJSONArray(i);
+
+                if (range != null) {
+                    connection.addAcceptableResponseStatusCodeRange(range.optLong(0, 0), range.optLong(1, 0));
+                }
+            }
+        }
+
+        String srcPath = descriptor.optString("srcPath", null);
+
+        if (srcPath != null) {
+            connection.setRequestContentSource(srcPath);
+        }
+
+        JSONObject resumable = descriptor.optJSONObject("resumable");
+
+        if (resumable != null) {
+            connection.setRequestContentResumableSource(resumable.optString("srcPath", null),
+                                                        resumable.optLong("chunkSize", 0));
+        }
+
+        JSONArray multipart = descriptor.optJSONArray("multipart");
+
+        if (multipart != null) {
+            for (int i = 0; i < multipart.length(); ++i) {
+                JSONObject part = multipart.optJSONObject(i);
+
+                if (part == null) {
+                    continue;
+                }
+
+                String name = part.optString("name", "");
+                String path = part.optString("path", null);
+
+                if (path != null) {
+                    connection.addRequestMultipartFile(name, part.optString("fileName", null),
+                                                       part.optString("contentType", null), path);
+                }
+                else {
+                    connection.addRequestMultipartField(name, part.optString("value", ""));
+                }
+            }
+        }
+
+        String dstPath = descriptor.optString("dstPath", null);
+
+        if (dstPath != null) {
+            connection.setResponseContentDestination(dstPath, descriptor.optBoolean("allowResume", false));
+
+            JSONArray contentRanges = descriptor.optJSONArray("ranges");
+
+            if (contentRanges != null) {
+                long[] pairs = new long[contentRanges.length() * 2];
+
+                for (int i = 0; i < contentRanges.length(); ++i) {
+                    JSONArray range = contentRanges.optJSONArray(i);
+                    pairs[i * 2] = (range != null) ? range.optLong(0, -1) : -1;
+                    pairs[i * 2 + 1] = (range != null) ? range.optLong(1, -1) : -1;
+                }
+
+                connection.setResponseContentRanges(pairs);
+            }
+
+            if (descriptor.has("conditional")) {
+                connection.setResponseContentDestinationConditional(descriptor.optBoolean("conditional", true));
+            }
+        }
+
+        JSONObject digest = descriptor.optJSONObject("digest");
+
+        if (digest != null) {
+            JSONArray chunks = digest.optJSONArray("chunks");
+            String[] chunkDigests = null;
+
+            if (chunks != null) {
+                chunkDigests = new String[chunks.length()];
+
+                for (int i = 0; i < chunkDigests.length; ++i) {
+                    chunkDigests[i] = chunks.optString(i);
+                }
+            }
+
+            connection.setResponseContentDestinationDigest(digest.optString("algorithm", "SHA-1"),
+                    digest.optString("digest", null), digest.optLong("chunkSize", 0), chunkDigests);
+        }
+
+        JSONObject extract = descriptor.optJSONObject("extract");
+
+        if (extract != null) {
+            connection.setResponseContentExtraction(extract.optString("dir", null),
+                                                    extract.optInt("format", UnityURLClientArchiveExtractor.FORMAT_ZIP),
+                                                    extract.optBoolean("allowResume", false));
+        }
+
+        JSONObject retry = descriptor.optJSONObject("retry");
+
+        if (retry != null) {
+            connection.setRetryPolicy(retry.optInt("maxAttempts", UnityURLClientRetryPolicy.DEFAULT_MAX_ATTEMPTS),
+                                      (float)retry.optDouble("baseDelay", UnityURLClientRetryPolicy.DEFAULT_BASE_DELAY / 1000.0),
+                                      (float)retry.optDouble("maxDelay", UnityURLClientRetryPolicy.DEFAULT_MAX_DELAY / 1000.0),
+                                      (float)retry.optDouble("jitter", UnityURLClientRetryPolicy.DEFAULT_JITTER));
+        }
+
+        if (descriptor.has("bandwidthLimit")) {
+            connection.setBandwidthLimit(descriptor.optLong("bandwidthLimit", 0));
+        }
+
+        JSONArray bufferSizeLimits = descriptor.optJSONArray("bufferSizeLimits");
+
+        if (bufferSizeLimits != null) {
+            connection.setBufferSizeLimits(bufferSizeLimits.optInt(0, UnityURLClientBufferSizer.DEFAULT_MIN_SIZE),
+                                           bufferSizeLimits.optInt(1, UnityURLClientBufferSizer.DEFAULT_MAX_SIZE));
+        }
+
+        JSONObject diskWrite = descriptor.optJSONObject("diskWrite");
+
+        if (diskWrite != null) {
+            connection.setDiskWritePolicy(diskWrite.optInt("queueCapacity", UnityURLClientDiskWriter.DEFAULT_QUEUE_CAPACITY),
+                                          diskWrite.optLong("syncInterval", 0),
+                                          diskWrite.optBoolean("syncOnClose", false));
+        }
+
+        JSONObject hedge = descriptor.optJSONObject("hedge");
+
+        if (hedge != null) {
+            connection.setHedging(true, (long)(hedge.optDouble("delay", 0.0) * 1000.0),
+                                  hedge.optInt("percentile", UnityURLClientHedgingPolicy.DEFAULT_PERCENTILE));
+        }
+
+        JSONArray watermarks = descriptor.optJSONArray("bufferWatermarks");
+
+        if (watermarks != null) {
+            connection.setResponseBufferWatermarks(watermarks.optLong(0, 0), watermarks.optLong(1, -1));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+// State of a file upload that follows the tus resumable upload protocol
+// (https://tus.io/protocols/resumable-upload). The file is sent in chunks
+// to an upload URL, which is either given by the caller or created on the
+// first attempt, and the server tells us where to continue after a
+// failure.
+public class UnityURLClientResumableUpload {
+    public static final String TUS_VERSION = "1.0.0";
+    public static final long DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    private final String srcPath;
+    private final long chunkSize;
+    private final boolean isCreatable;
+    private String _sync_uploadURL;
+
+    public UnityURLClientResumableUpload(String srcPath, long chunkSize, String uploadURL, boolean isCreatable) {
+        this.srcPath = srcPath;
+        this.chunkSize = (chunkSize > 0) ? chunkSize : DEFAULT_CHUNK_SIZE;
+        this.isCreatable = isCreatable;
+        _sync_uploadURL = uploadURL;
+    }
+
+    public String getSrcPath() {
+        return srcPath;
+    }
+
+    public long getChunkSize() {
+        return chunkSize;
+    }
+
+    // whether a new upload may be created when the upload URL is unknown or
+    // no longer valid
+    public boolean isCreatable() {
+        return isCreatable;
+    }
+
+    // Unity may keep the upload URL to resume the upload in a new
+    // connection later on.
+    public synchronized String getUploadURL() {
+        return _sync_uploadURL;
+    }
+
+    public synchronized void setUploadURL(String uploadURL) {
+        _sync_uploadURL = uploadURL;
+    }
+
+    public static long parseOffset(String value) {
+        if (value == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
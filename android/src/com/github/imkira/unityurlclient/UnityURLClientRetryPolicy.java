@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+public class UnityURLClientRetryPolicy {
+    public static final int DEFAULT_MAX_ATTEMPTS = 1;
+    public static final long DEFAULT_BASE_DELAY = 500;
+    public static final long DEFAULT_MAX_DELAY = 30000;
+    public static final float DEFAULT_JITTER = 0.5f;
+
+    private static final Random random = new Random();
+
+    private int _maxAttempts = DEFAULT_MAX_ATTEMPTS;
+    private long _baseDelay = DEFAULT_BASE_DELAY;
+    private long _maxDelay = DEFAULT_MAX_DELAY;
+    private float _jitter = DEFAULT_JITTER;
+    private List<int[]> _retryableStatusCodeRanges;
+    private EnumSet<UnityURLClientError.Error> _retryableErrors;
+
+    public UnityURLClientRetryPolicy() {
+        _retryableErrors = EnumSet.of(
+            UnityURLClientError.Error.InitConnectionError,
+            UnityURLClientError.Error.HostLookupError,
+            UnityURLClientError.Error.CannotConnectToHostError,
+            UnityURLClientError.Error.ConnectionLostError,
+            UnityURLClientError.Error.ConnectionTimeoutError);
+    }
+
+    public int getMaxAttempts() {
+        return _maxAttempts;
+    }
+
+    public void setMaxAttempts(int maxAttempts) {
+        _maxAttempts = (maxAttempts < 1) ? 1 : maxAttempts;
+    }
+
+    public void setDelays(long baseDelay, long maxDelay, float jitter) {
+        _baseDelay = (baseDelay < 0) ? 0 : baseDelay;
+        _maxDelay = (maxDelay < _baseDelay) ? _baseDelay : maxDelay;
+        _jitter = (jitter < 0.0f) ? 0.0f : ((jitter > 1.0f) ? 1.0f : jitter);
+    }
+
+    // Adding a range replaces the default retryable status codes
+    // (408, 429 and 5xx).
+    public void addRetryableStatusCodeRange(int from, int to) {
+        if (_retryableStatusCodeRanges == null) {
+            _retryableStatusCodeRanges = new ArrayList<int[]>();
+        }
+
+        _retryableStatusCodeRanges.add(new int[] { from, to });
+    }
+
+    public boolean isRetryableStatusCode(int statusCode) {
+        if (_retryableStatusCodeRanges == null) {
+            return statusCode == 408 || statusCode == 429 || (statusCode >= 500 && statusCode <= 599);
+        }
+
+        for (int i = 0; i < _retryableStatusCodeRanges.size(); ++i) {
+            int[] range = _retryableStatusCodeRanges.get(i);
+
+            if (range[0] <= statusCode && statusCode <= range[1]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public void setRetryableErrors(int[] errorCodes) {
+        _retryableErrors = EnumSet.noneOf(UnityURLClientError.Error.class);
+
+        if (errorCodes == null) {
+            return;
+        }
+
+        UnityURLClientError.Error[] errors = UnityURLClientError.Error.values();
+
+        for (int i = 0; i < errorCodes.length; ++i) {
+            int code = errorCodes[i];
+
+            if (code > 0 && code < UnityURLClientError.Error.LastError.ordinal()) {
+                _retryableErrors.add(errors[code]);
+            }
+        }
+    }
+
+    public boolean isRetryableError(UnityURLClientError.Error error) {
+        return _retryableErrors.contains(error);
+    }
+
+    // Exponential backoff capped at the max delay. The jitter removes up to
+    // that fraction of the delay at random, so that clients failing together
+    // do not retry together.
+    public long getDelay(int attempt) {
+        long delay = _baseDelay;
+
+        for (int i = 1; i < attempt && delay < _maxDelay; ++i) {
+            delay <<= 1;
+        }
+
+        if (delay > _maxDelay) {
+            delay = _maxDelay;
+        }
+
+        double jitter;
+
+        synchronized (random) {
+            jitter = random.nextDouble();
+        }
+
+        return delay - (long)(delay * _jitter * jitter);
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class UnityURLClientScheduler {
+    private static final String TAG = "UnityURLClientScheduler";
+    public static final int DEFAULT_MAX_RUNNING_CONNECTIONS = 4;
+    public static final int DEFAULT_MAX_RUNNING_PREFETCH_CONNECTIONS = 1;
+    private static final long SLOT_WAIT_INTERVAL = 100;
+
+    private ExecutorService executor;
+    private List<UnityURLClientConnection> _sync_queuedConnections;
+    private List<UnityURLClientConnection> _sync_runningConnections;
+    private List<UnityURLClientConnection> _sync_resumingConnections;
+    private int _sync_maxRunningConnections = DEFAULT_MAX_RUNNING_CONNECTIONS;
+    private int _sync_maxRunningPrefetchConnections = DEFAULT_MAX_RUNNING_PREFETCH_CONNECTIONS;
+    private boolean _sync_isNetworkMetered;
+    private long _sync_sequence;
+    private int _sync_runningTaskCount;
+
+    public UnityURLClientScheduler() {
+        executor = Executors.newCachedThreadPool();
+        _sync_queuedConnections = new ArrayList<UnityURLClientConnection>();
+        _sync_runningConnections = new ArrayList<UnityURLClientConnection>();
+        _sync_resumingConnections = new ArrayList<UnityURLClientConnection>();
+    }
+
+    public void setMaxRunningConnections(int maxRunningConnections) {
+        synchronized (this) {
+            _sync_maxRunningConnections = (maxRunningConnections < 1) ? 1 : maxRunningConnections;
+        }
+
+        reschedule();
+    }
+
+    public void setMaxRunningPrefetchConnections(int maxRunningConnections) {
+        synchronized (this) {
+            _sync_maxRunningPrefetchConnections = (maxRunningConnections < 0) ? 0 : maxRunningConnections;
+        }
+
+        reschedule();
+    }
+
+    public void setNetworkMetered(boolean isNetworkMetered) {
+        synchronized (this) {
+            _sync_isNetworkMetered = isNetworkMetered;
+        }
+
+        reschedule();
+    }
+
+    public synchronized int getRunningConnectionCount() {
+        return _sync_runningConnections.size();
+    }
+
+    public synchronized int getQueuedConnectionCount() {
+        return _sync_queuedConnections.size();
+    }
+
+    public void schedule(UnityURLClientConnection connection) {
+        synchronized (this) {
+            connection.scheduleSequence = ++_sync_sequence;
+            _sync_queuedConnections.add(connection);
+        }
+
+        reschedule();
+    }
+
+    // Runs a task on the connection threads without taking a connection
+    // slot, for work that must not block its caller's thread.
+    public void execute(final Runnable task) {
+        synchronized (this) {
+            ++_sync_runningTaskCount;
+        }
+
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    task.run();
+                }
+                finally {
+                    synchronized (UnityURLClientScheduler.this) {
+                        --_sync_runningTaskCount;
+                    }
+                }
+            }
+        });
+    }
+
+    // Tasks started by execute that have not finished yet.
+    public synchronized int getRunningTaskCount() {
+        return _sync_runningTaskCount;
+    }
+
+    // Lets a running connection give up its slot while it waits for
+    // something other than the network, such as a retry backoff or Unity
+    // draining its response. Returns false if it held no slot.
+    public boolean releaseSlot(UnityURLClientConnection connection) {
+        synchronized (this) {
+            if (!_sync_runningConnections.remove(connection)) {
+                return false;
+            }
+        }
+
+        UnityURLClientDebug.d(TAG, "releaseSlot: " + connection.connectionID);
+        reschedule();
+        return true;
+    }
+
+    // Blocks until a connection that released its slot is given one again.
+    // It keeps its place in the queue, so it goes before connections of the
+    // same priority scheduled after it. Returns false if it was cancelled
+    // in the meantime.
+    public boolean reacquireSlot(UnityURLClientConnection connection) {
+        synchronized (this) {
+            _sync_resumingConnections.add(connection);
+            _sync_queuedConnections.add(connection);
+        }
+
+        reschedule();
+
+        synchronized (this) {
+            try {
+                while (!_sync_runningConnections.contains(connection) && !connection.isCancelled()) {
+                    wait(SLOT_WAIT_INTERVAL);
+                }
+            }
+            catch (InterruptedException e) {
+                // given up below
+            }
+
+            if (!_sync_runningConnections.contains(connection)) {
+                _sync_resumingConnections.remove(connection);
+                _sync_queuedConnections.remove(connection);
+                return false;
+            }
+        }
+
+        UnityURLClientDebug.d(TAG, "reacquireSlot: " + connection.connectionID);
+        return true;
+    }
+
+    public void onConnectionStopped(UnityURLClientConnection connection, boolean paused) {
+        synchronized (this) {
+            _sync_runningConnections.remove(connection);
+
+            // paused connections keep their place in the queue
+            if (paused) {
+                _sync_queuedConnections.add(connection);
+            }
+        }
+
+        reschedule();
+    }
+
+    // Higher priority first, then first come first served.
+    private static boolean isPreferred(UnityURLClientConnection a, UnityURLClientConnection b) {
+        int priorityA = a.getPriority();
+        int priorityB = b.getPriority();
+
+        if (priorityA != priorityB) {
+            return priorityA > priorityB;
+        }
+
+        return a.scheduleSequence < b.scheduleSequence;
+    }
+
+    private boolean _sync_isPrefetchAllowed(UnityURLClientConnection connection) {
+        UnityURLClientPrefetchGroup group = connection.prefetchGroup;
+        return !group.isCancelled() && (!_sync_isNetworkMetered || group.isAllowedOnMeteredNetwork());
+    }
+
+    private UnityURLClientConnection _sync_peekQueuedConnection(boolean isPrefetch) {
+        UnityURLClientConnection best = null;
+
+        for (int i = 0; i < _sync_queuedConnections.size(); ++i) {
+            UnityURLClientConnection connection = _sync_queuedConnections.get(i);
+
+            if ((connection.prefetchGroup != null) != isPrefetch) {
+                continue;
+            }
+
+            if (isPrefetch && !_sync_isPrefetchAllowed(connection)) {
+                continue;
+            }
+
+            if (best == null || isPreferred(connection, best)) {
+                best = connection;
+            }
+        }
+
+        return best;
+    }
+
+    private UnityURLClientConnection _sync_findPreemptableConnection(int priority) {
+        UnityURLClientConnection victim = null;
+
+        for (int i = 0; i < _sync_runningConnections.size(); ++i) {
+            UnityURLClientConnection connection = _sync_runningConnections.get(i);
+
+            if (connection.prefetchGroup != null) {
+                continue;
+            }
+
+            if (connection.getPriority() >= priority || !connection.isPausable()) {
+                continue;
+            }
+
+            if (victim == null || isPreferred(victim, connection)) {
+                victim = connection;
+            }
+        }
+
+        return victim;
+    }
+
+    public void reschedule() {
+        List<UnityURLClientConnection> startedConnections = null;
+
+        synchronized (this) {
+            for (int i = _sync_queuedConnections.size() - 1; i >= 0; --i) {
+                if (_sync_queuedConnections.get(i).isCancelled()) {
+                    _sync_queuedConnections.remove(i);
+                }
+            }
+
+            int runningPrefetchCount = 0;
+
+            for (int i = 0; i < _sync_runningConnections.size(); ++i) {
+                if (_sync_runningConnections.get(i).prefetchGroup != null) {
+                    ++runningPrefetchCount;
+                }
+            }
+
+            int runningForegroundCount = _sync_runningConnections.size() - runningPrefetchCount;
+
+            while (_sync_runningConnections.size() < _sync_maxRunningConnections) {
+                UnityURLClientConnection connection = _sync_peekQueuedConnection(false);
+
+                if (connection != null) {
+                    ++runningForegroundCount;
+                }
+                else if (runningForegroundCount == 0 && runningPrefetchCount < _sync_maxRunningPrefetchConnections) {
+                    // prefetches only use an otherwise idle network
+                    connection = _sync_peekQueuedConnection(true);
+
+                    if (connection == null) {
+                        break;
+                    }
+
+                    ++runningPrefetchCount;
+                }
+                else {
+                    break;
+                }
+
+                _sync_queuedConnections.remove(connection);
+                _sync_runningConnections.add(connection);
+
+                // its worker is still running and waits for the slot
+                if (_sync_resumingConnections.remove(connection)) {
+                    notifyAll();
+                    continue;
+                }
+
+                if (startedConnections == null) {
+                    startedConnections = new ArrayList<UnityURLClientConnection>();
+                }
+
+                startedConnections.add(connection);
+            }
+
+            UnityURLClientConnection waiting = _sync_peekQueuedConnection(false);
+
+            // running prefetches make way for any foreground traffic, and
+            // stop when the network becomes metered
+            for (int i = 0; i < _sync_runningConnections.size(); ++i) {
+                UnityURLClientConnection connection = _sync_runningConnections.get(i);
+
+                if (connection.prefetchGroup == null) {
+                    continue;
+                }
+
+                if ((runningForegroundCount > 0 || waiting != null || !_sync_isPrefetchAllowed(connection)) &&
+                        connection.isPausable()) {
+                    UnityURLClientDebug.d(TAG, "reschedule: pausing prefetch " + connection.connectionID);
+                    connection.requestPause();
+                }
+            }
+
+            if (waiting != null) {
+                UnityURLClientConnection victim = _sync_findPreemptableConnection(waiting.getPriority());
+
+                if (victim != null) {
+                    UnityURLClientDebug.d(TAG, "reschedule: pausing " + victim.connectionID + " for " + waiting.connectionID);
+                    victim.requestPause();
+                }
+            }
+        }
+
+        if (startedConnections != null) {
+            for (int i = 0; i < startedConnections.size(); ++i) {
+                executor.execute(startedConnections.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A hashed timer wheel shared by all connections, so that deadlines cost a
+// list entry instead of a timer thread each. Tasks run on the wheel's own
+// thread, which sleeps while nothing is scheduled.
+public class UnityURLClientTimerWheel implements Runnable {
+    private static final String TAG = "UnityURLClientTimerWheel";
+
+    public static final long TICK_INTERVAL = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    public static class Timeout {
+        private Runnable _task;
+        private int _slot;
+        private long _rounds;
+    }
+
+    private List<List<Timeout>> _sync_slots;
+    private long _sync_tick;
+    private int _sync_timeoutCount;
+    private Thread _sync_thread;
+
+    public UnityURLClientTimerWheel() {
+        _sync_slots = new ArrayList<List<Timeout>>(WHEEL_SIZE);
+
+        for (int i = 0; i < WHEEL_SIZE; ++i) {
+            _sync_slots.add(new ArrayList<Timeout>());
+        }
+    }
+
+    public synchronized Timeout schedule(Runnable task, long delayMillis) {
+        long ticks = (delayMillis + TICK_INTERVAL - 1) / TICK_INTERVAL;
+
+        if (ticks < 1) {
+            ticks = 1;
+        }
+
+        Timeout timeout = new Timeout();
+        timeout._task = task;
+        timeout._slot = (int)((_sync_tick + ticks) % WHEEL_SIZE);
+        timeout._rounds = (ticks - 1) / WHEEL_SIZE;
+        _sync_slots.get(timeout._slot).add(timeout);
+        ++_sync_timeoutCount;
+
+        if (_sync_thread == null) {
+            _sync_thread = new Thread(this, TAG);
+            _sync_thread.setDaemon(true);
+            _sync_thread.start();
+        }
+
+        notifyAll();
+        return timeout;
+    }
+
+    public synchronized void cancel(Timeout timeout) {
+        if (timeout != null && _sync_slots.get(timeout._slot).remove(timeout)) {
+            --_sync_timeoutCount;
+        }
+    }
+
+    private List<Timeout> _sync_advance() {
+        ++_sync_tick;
+        List<Timeout> slot = _sync_slots.get((int)(_sync_tick % WHEEL_SIZE));
+        List<Timeout> expired = null;
+
+        for (int i = slot.size() - 1; i >= 0; --i) {
+            Timeout timeout = slot.get(i);
+
+            if (timeout._rounds > 0) {
+                --timeout._rounds;
+                continue;
+            }
+
+            slot.remove(i);
+            --_sync_timeoutCount;
+
+            if (expired == null) {
+                expired = new ArrayList<Timeout>();
+            }
+
+            expired.add(timeout);
+        }
+
+        return expired;
+    }
+
+    public void run() {
+        long nextTickTime = System.currentTimeMillis() + TICK_INTERVAL;
+
+        for (;;) {
+            List<Timeout> expired;
+
+            synchronized (this) {
+                try {
+                    if (_sync_timeoutCount == 0) {
+                        wait();
+                        nextTickTime = System.currentTimeMillis() + TICK_INTERVAL;
+                        continue;
+                    }
+
+                    long delay = nextTickTime - System.currentTimeMillis();
+
+                    if (delay > 0) {
+                        wait(delay);
+                        continue;
+                    }
+                }
+                catch (InterruptedException e) {
+                    UnityURLClientDebug.e(TAG, "run:" + e.toString());
+                    _sync_thread = null;
+                    return;
+                }
+
+                expired = _sync_advance();
+                nextTickTime += TICK_INTERVAL;
+            }
+
+            if (expired == null) {
+                continue;
+            }
+
+            for (int i = 0; i < expired.size(); ++i) {
+                try {
+                    expired.get(i)._task.run();
+                }
+                catch (Exception e) {
+                    UnityURLClientDebug.e(TAG, "run:" + e.toString());
+                }
+            }
+        }
+    }
+}
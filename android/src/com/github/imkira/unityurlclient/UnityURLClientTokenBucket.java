@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+public class UnityURLClientTokenBucket {
+    // minimum amount of bytes that may be read or written at once when
+    // throttling, no matter how low the rate is
+    private static final int MIN_CHUNK_SIZE = 1024;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    // bytes per second, 0 means unlimited
+    private long _sync_rate;
+    private double _sync_tokens;
+    private long _sync_lastRefillTime;
+
+    public UnityURLClientTokenBucket() {
+        _sync_lastRefillTime = System.nanoTime();
+    }
+
+    private void _sync_refill() {
+        long now = System.nanoTime();
+        long elapsed = now - _sync_lastRefillTime;
+        _sync_lastRefillTime = now;
+
+        if (_sync_rate <= 0 || elapsed <= 0) {
+            return;
+        }
+
+        // allow at most one second worth of burst
+        _sync_tokens += (double)elapsed * (double)_sync_rate / (double)NANOS_PER_SECOND;
+
+        if (_sync_tokens > (double)_sync_rate) {
+            _sync_tokens = (double)_sync_rate;
+        }
+    }
+
+    public synchronized void setRate(long bytesPerSecond) {
+        _sync_refill();
+        _sync_rate = (bytesPerSecond < 0) ? 0 : bytesPerSecond;
+
+        // forget any debt accumulated with the previous rate
+        if (_sync_rate <= 0 || _sync_tokens < 0) {
+            _sync_tokens = 0;
+        }
+        else if (_sync_tokens > (double)_sync_rate) {
+            _sync_tokens = (double)_sync_rate;
+        }
+    }
+
+    public synchronized long getRate() {
+        return _sync_rate;
+    }
+
+    // Returns how many milliseconds to wait before reading or writing
+    // again, or 0 if it can be done right away.
+    public synchronized long getWaitTime() {
+        if (_sync_rate <= 0) {
+            return 0;
+        }
+
+        _sync_refill();
+
+        if (_sync_tokens >= 0) {
+            return 0;
+        }
+
+        long nanos = (long)(-_sync_tokens * (double)NANOS_PER_SECOND / (double)_sync_rate);
+        return (nanos + NANOS_PER_MILLI - 1) / NANOS_PER_MILLI;
+    }
+
+    // Tokens may go negative, in which case the debt is paid back by
+    // waiting before the next read or write.
+    public synchronized void consume(long bytes) {
+        if (_sync_rate <= 0) {
+            return;
+        }
+
+        _sync_refill();
+        _sync_tokens -= (double)bytes;
+    }
+
+    // Keeps each chunk around 1/10s worth of transfer so that throttled
+    // progress is reported smoothly.
+    public synchronized int getChunkSize(int maxChunkSize) {
+        if (_sync_rate <= 0) {
+            return maxChunkSize;
+        }
+
+        long chunkSize = _sync_rate / 10;
+
+        if (chunkSize < MIN_CHUNK_SIZE) {
+            chunkSize = MIN_CHUNK_SIZE;
+        }
+
+        return (chunkSize < maxChunkSize) ? (int)chunkSize : maxChunkSize;
+    }
+}
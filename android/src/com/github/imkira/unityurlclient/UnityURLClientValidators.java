@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2013 Mario Freitas (imkira@gmail.com)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.github.imkira.unityurlclient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.Properties;
+
+// The validators (ETag and Last-Modified) of a completed download, kept in a
+// sidecar file next to it so that later requests can be made conditional.
+public class UnityURLClientValidators {
+    private static final String TAG = "UnityURLClientValidators";
+    private static final String SIDECAR_SUFFIX = ".meta";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_LENGTH = "length";
+
+    public final String etag;
+    public final String lastModified;
+    public final long length;
+
+    public UnityURLClientValidators(String etag, String lastModified, long length) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    public static String sidecarPath(String dstPath) {
+        return dstPath + SIDECAR_SUFFIX;
+    }
+
+    // Returns null unless dstPath is a completed download whose validators
+    // were saved and whose length has not changed since.
+    public static UnityURLClientValidators load(String dstPath) {
+        File sidecar = new File(sidecarPath(dstPath));
+
+        if (!sidecar.isFile()) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        FileInputStream inputStream = null;
+
+        try {
+            inputStream = new FileInputStream(sidecar);
+            properties.load(inputStream);
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "load:" + e.toString());
+            return null;
+        }
+        finally {
+            try {
+                if (inputStream != null) {
+                    inputStream.close();
+                }
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "load:" + e.toString());
+            }
+        }
+
+        String etag = properties.getProperty(KEY_ETAG);
+        String lastModified = properties.getProperty(KEY_LAST_MODIFIED);
+        long length;
+
+        try {
+            length = Long.parseLong(properties.getProperty(KEY_LENGTH, "-1"));
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+
+        if ((etag == null && lastModified == null) || length != new File(dstPath).length()) {
+            return null;
+        }
+
+        return new UnityURLClientValidators(etag, lastModified, length);
+    }
+
+    public void save(String dstPath) {
+        Properties properties = new Properties();
+
+        if (etag != null) {
+            properties.setProperty(KEY_ETAG, etag);
+        }
+
+        if (lastModified != null) {
+            properties.setProperty(KEY_LAST_MODIFIED, lastModified);
+        }
+
+        properties.setProperty(KEY_LENGTH, Long.toString(length));
+        FileOutputStream outputStream = null;
+
+        try {
+            outputStream = new FileOutputStream(sidecarPath(dstPath));
+            properties.store(outputStream, null);
+        }
+        catch (Exception e) {
+            UnityURLClientDebug.e(TAG, "save:" + e.toString());
+            remove(dstPath);
+        }
+        finally {
+            try {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            }
+            catch (Exception e) {
+                UnityURLClientDebug.e(TAG, "save:" + e.toString());
+            }
+        }
+    }
+
+    public static void remove(String dstPath) {
+        File sidecar = new File(sidecarPath(dstPath));
+
+        if (sidecar.exists()) {
+            sidecar.delete();
+        }
+    }
+}
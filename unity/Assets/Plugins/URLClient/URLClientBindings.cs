@@ -54,6 +54,18 @@ namespace URLClient
     Cancelled = 9
   };
 
+  public enum ConnectionEvent
+  {
+    // reported with INVALID_CONNECTION_ID when events were dropped, after
+    // which every connection has to be polled once
+    Overflow = 0,
+    HeadersReady = 1,
+    Finished = 2,
+    Cancelled = 3,
+    Error = 4,
+    RequestContentReleased = 5
+  };
+
   public class Bindings : MonoBehaviour
   {
     public const string ERROR_DOMAIN = "UnityURLClient";
@@ -450,6 +462,75 @@ namespace URLClient
 #else
 #endif
 
+    // Creates, configures and sends a connection from a JSON request
+    // descriptor in a single call (Android only).
+    public static uint URLClientCreateAndSendHTTPConnection(string descriptor)
+    {
+#if UNITY_EDITOR || UNITY_STANDALONE_OSX || UNITY_IPHONE
+      return INVALID_CONNECTION_ID;
+#elif UNITY_ANDROID
+      return (uint)UnityURLClientBindingInstance.Call<int>(
+          "createAndSendHTTPConnection", descriptor);
+#endif
+    }
+
+    // Same as URLClientCreateAndSendHTTPConnection for a JSON array of
+    // descriptors. The IDs follow the order of the descriptors, with
+    // INVALID_CONNECTION_ID for those that could not be parsed.
+    public static uint[] URLClientCreateAndSendHTTPConnections(
+        string descriptors)
+    {
+#if UNITY_EDITOR || UNITY_STANDALONE_OSX || UNITY_IPHONE
+      return new uint[0];
+#elif UNITY_ANDROID
+      int[] ids = UnityURLClientBindingInstance.Call<int[]>(
+          "createAndSendHTTPConnections", descriptors);
+      uint[] connectionIDs = new uint[(ids != null) ? ids.Length : 0];
+
+      for (int i = 0; i < connectionIDs.Length; ++i)
+      {
+        connectionIDs[i] = (uint)ids[i];
+      }
+
+      return connectionIDs;
+#endif
+    }
+
+    // Returns up to maxEvents connection ID / ConnectionEvent pairs, so that
+    // the connections that changed can be found with a single call per
+    // frame (Android only).
+    public static int[] URLClientDrainEvents(int maxEvents)
+    {
+#if UNITY_EDITOR || UNITY_STANDALONE_OSX || UNITY_IPHONE
+      return new int[0];
+#elif UNITY_ANDROID
+      int[] events = UnityURLClientBindingInstance.Call<int[]>("drainEvents",
+          maxEvents);
+      return (events != null) ? events : new int[0];
+#endif
+    }
+
+    public static int URLClientGetPendingEventCount()
+    {
+#if UNITY_EDITOR || UNITY_STANDALONE_OSX || UNITY_IPHONE
+      return 0;
+#elif UNITY_ANDROID
+      return UnityURLClientBindingInstance.Call<int>("getPendingEventCount");
+#endif
+    }
+
+    // Blocks for up to timeout seconds until an event is pending, so it
+    // must not be called from the main thread. The calling thread has to be
+    // attached with AndroidJNI.AttachCurrentThread first.
+    public static bool URLClientAwaitEvents(float timeout)
+    {
+#if UNITY_EDITOR || UNITY_STANDALONE_OSX || UNITY_IPHONE
+      return false;
+#elif UNITY_ANDROID
+      return UnityURLClientBindingInstance.Call<bool>("awaitEvents", timeout);
+#endif
+    }
+
     public static ConnectionState URLClientGetState(uint connectionID)
     {
       int state = _URLClientGetState(connectionID);
@@ -46,7 +46,9 @@ namespace URLClient
       CannotConnectToInternetError = 13,
       ConnectionLostError = 14,
       ConnectionTimeoutError = 15,
-      BasicErrorMax = 16,
+      IntegrityCheckError = 16,
+      CircuitOpenError = 17,
+      BasicErrorMax = 18,
 
       // extended
       ExtendedErrorMin = 100,
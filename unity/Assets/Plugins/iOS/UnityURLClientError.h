@@ -73,6 +73,12 @@ typedef enum
 #define kUnityURLClientConnectionTimeoutError @"Connection timed out"
   ConnectionTimeoutError = 15,
 
+#define kUnityURLClientIntegrityCheckError @"Downloaded content failed integrity check"
+  IntegrityCheckError = 16,
+
+#define kUnityURLClientCircuitOpenError @"Host is unavailable after repeated failures"
+  CircuitOpenError = 17,
+
   // unused
   LastError
 } UnityURLClientError;
@@ -40,5 +40,7 @@ NSString* UnityURLClientErrorDescriptions[] =
   kUnityURLClientCannotConnectToHostError,
   kUnityURLClientCannotConnectToInternetError,
   kUnityURLClientConnectionLostError,
-  kUnityURLClientConnectionTimeoutError
+  kUnityURLClientConnectionTimeoutError,
+  kUnityURLClientIntegrityCheckError,
+  kUnityURLClientCircuitOpenError
 };